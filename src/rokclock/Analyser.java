@@ -4,15 +4,23 @@ import static java.lang.System.err;
 import static java.lang.System.exit;
 import static java.lang.System.out;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * The analyser of the log files. It currently provides a summary for top-level
@@ -27,9 +35,32 @@ public class Analyser {
 	/**
 	 * The main method of this analyser, which is used for running it from the
 	 * command prompt. As arguments, it expects the name of the log file,
-	 * followed by the start date (inclusive) and the stop date (exclusive). The
-	 * dates should have the "dd/MM/yyyy" format. The results are written to the
-	 * standard output.
+	 * optionally followed by the start date (inclusive) and the stop date
+	 * (exclusive), and optionally followed by "-filter" and a filter
+	 * expression (see {@link LogQuery}). The dates should have the
+	 * "dd/MM/yyyy" format. The results are written to the standard output.
+	 * With the "-resilient" option, lines that cannot be parsed are skipped
+	 * and reported on the standard error output, instead of stopping the
+	 * analysis. With any number of "-merge" options, each followed by the
+	 * name of another log file, the logs are merged (see {@link LogMerger})
+	 * and analysed as one. With the "-aggregate" option followed by a file
+	 * name, a partial aggregate of the analysed entries is also written into
+	 * that file (see {@link PartialAggregate}). If a log has Bloom filters
+	 * (see {@link BloomIndex}), they are brought up to date before a filtered
+	 * analysis, and the number of blocks they allowed to skip is reported on
+	 * the standard error output. With the "-checkpoint" option followed by a
+	 * file name, the analysis of a single log file is checkpointed in that
+	 * file, and repeated analyses only read the newly appended bytes (see
+	 * {@link AnalysisCheckpoint}); the aggregate is then of the whole log.
+	 * With the "-distribution" option followed by a file name, the
+	 * distributions of the session durations by project path are also written
+	 * into that file (see {@link DurationDistribution}); with the
+	 * "-percentiles" option, their percentiles are written to the standard
+	 * output instead of the sums. With the "-approximate" option, an
+	 * approximate summary by top-level project, with distinct counts and
+	 * percentiles within the error bound given by the "-error" option, is
+	 * written instead (see {@link ApproximateSummary}); with the "-sketch"
+	 * option followed by a file name, it is also written into that file.
 	 *
 	 * @param args
 	 *            The command-line arguments as specified above.
@@ -37,11 +68,65 @@ public class Analyser {
 	 *             Thrown if the processing fails.
 	 */
 	public static void main(String[] args) throws Exception {
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean resilient = argList.remove("-resilient");
+		boolean percentiles = argList.remove("-percentiles");
+		boolean approximate = argList.remove("-approximate");
+		List<String> logFilenames = new ArrayList<String>();
+		for (int i = argList.indexOf("-merge"); i != -1 && i + 1 < argList.size(); i = argList.indexOf("-merge")) {
+			logFilenames.add(argList.remove(i + 1));
+			argList.remove(i);
+		}
+		File aggregateFile = null;
+		int aggregateIndex = argList.indexOf("-aggregate");
+		if (aggregateIndex != -1 && aggregateIndex + 1 < argList.size()) {
+			aggregateFile = new File(argList.remove(aggregateIndex + 1));
+			argList.remove(aggregateIndex);
+		}
+		File distributionFile = null;
+		int distributionIndex = argList.indexOf("-distribution");
+		if (distributionIndex != -1 && distributionIndex + 1 < argList.size()) {
+			distributionFile = new File(argList.remove(distributionIndex + 1));
+			argList.remove(distributionIndex);
+		}
+		File sketchFile = null;
+		int sketchIndex = argList.indexOf("-sketch");
+		if (sketchIndex != -1 && sketchIndex + 1 < argList.size()) {
+			sketchFile = new File(argList.remove(sketchIndex + 1));
+			argList.remove(sketchIndex);
+		}
+		double error = ApproximateSummary.DEFAULT_ERROR;
+		int errorIndex = argList.indexOf("-error");
+		if (errorIndex != -1 && errorIndex + 1 < argList.size()) {
+			String errorS = argList.remove(errorIndex + 1);
+			argList.remove(errorIndex);
+			try {
+				error = Double.parseDouble(errorS);
+			} catch (NumberFormatException e) {
+				error = Double.NaN;
+			}
+			if (!(error > 0 && error < 1)) {
+				err.println("The error bound should be a fraction between 0 and 1, e.g. 0.01: " + errorS);
+				exit(1);
+			}
+		}
+		File checkpointFile = null;
+		int checkpointIndex = argList.indexOf("-checkpoint");
+		if (checkpointIndex != -1 && checkpointIndex + 1 < argList.size()) {
+			checkpointFile = new File(argList.remove(checkpointIndex + 1));
+			argList.remove(checkpointIndex);
+		}
+		args = argList.toArray(new String[argList.size()]);
+		String expression = null;
+		if (args.length >= 2 && args[args.length - 2].equals("-filter")) {
+			expression = args[args.length - 1];
+			args = Arrays.copyOf(args, args.length - 2);
+		}
 		if (args.length != 1 && args.length != 3) {
-			err.println("Usage: java -cp bin rokclock.Analyser <logFilename> [<start date inclusive> <stop date exclusive>]");
+			err.println("Usage: java -cp bin rokclock.Analyser [-resilient] [-percentiles] [-approximate] [-error <fraction>] [-aggregate <aggregateFilename>] [-distribution <distributionFilename>] [-sketch <sketchFilename>] [-checkpoint <checkpointFilename>] <logFilename> [-merge <logFilename>]... [<start date inclusive> <stop date exclusive>] [-filter <expression>]");
 			exit(1);
 		}
-		String logFilename = args[0];
+		logFilenames.add(0, args[0]);
 		Date fromDate = null, toDate = null;
 		String dfS = "dd/MM/yyyy";
 		DateFormat df = new SimpleDateFormat(dfS);
@@ -53,9 +138,57 @@ public class Analyser {
 				err.println("Dates should be specified in the following format: " + dfS);
 				exit(1);
 			}
-			Analyser a = new Analyser();
-			a.processLogFile(logFilename, fromDate, toDate);
+		LogFilter filter = LogFilter.range(fromDate, toDate);
+		if (expression != null)
+			try {
+				filter = new LogQuery(expression, filter.getFromTime(), filter.getToTime());
+			} catch (ParseException e) {
+				err.println("Invalid filter expression: " + e.getMessage() + " at position " + e.getErrorOffset());
+				err.println("  " + expression);
+				err.println("  " + String.format("%" + (e.getErrorOffset() + 1) + "s", "^"));
+				exit(1);
+			}
+		if (expression != null)
+			for (String logFilename : logFilenames) {
+				BloomIndex index = BloomIndex.load(logFilename);
+				if (index != null) index.update();
+			}
+		Analyser a = new Analyser();
+		a.setResilient(resilient);
+		a.setAggregating(aggregateFile != null);
+		a.setDistributing(percentiles || distributionFile != null);
+		if (approximate || sketchFile != null)
+			a.setSummaryError(error);
+		if (checkpointFile != null && (logFilenames.size() > 1 || SegmentedLog.exists(logFilenames.get(0)))) {
+			err.println("Checkpoints are only supported for a single (not segmented) log file.");
+			exit(1);
+		}
+		if (checkpointFile != null && (percentiles || distributionFile != null || approximate || sketchFile != null)) {
+			err.println("Checkpoints do not support session distributions or approximate summaries.");
+			exit(1);
+		}
+		if (checkpointFile != null) {
+			if (a.processLogFile(logFilenames.get(0), new AnalysisCheckpoint(checkpointFile), expression, fromDate, toDate) == null)
+				exit(1);
+		} else if (a.processLogFiles(logFilenames, filter) == null)
+			exit(1);
+		if (aggregateFile != null)
+			a.getAggregate().write(aggregateFile);
+		if (distributionFile != null)
+			a.getDistribution().write(distributionFile);
+		if (sketchFile != null)
+			a.getSummary().write(sketchFile);
+		if (approximate) {
+			err.println(a.getSummary().getErrorBounds());
+			a.getSummary().writeResults(out, new Config().getTeam());
+		} else if (percentiles)
+			a.getDistribution().writePercentiles(out, new Config().getTeam());
+		else
 			a.displayResults(false);
+		if (a.getQuarantine() != null)
+			err.print(a.getQuarantine().getReport());
+		if (expression != null && a.skipReport != null)
+			err.println(a.skipReport);
 	}
 
 	/**
@@ -64,18 +197,139 @@ public class Analyser {
 	 */
 	private Map<String,Long> sums;
 	/**
-	 * The start of a specified time period.
+	 * Whether lines that cannot be parsed are skipped instead of stopping the
+	 * analysis.
+	 */
+	private boolean resilient = false;
+	/**
+	 * The lines skipped during the last analysis in the resilient mode.
+	 */
+	private Quarantine quarantine;
+
+	/**
+	 * The report of the blocks skipped thanks to Bloom filters during the last
+	 * analysis of a single log, or null.
+	 */
+	private String skipReport;
+	/**
+	 * Whether the analysis also produces a partial aggregate.
+	 */
+	private boolean aggregating = false;
+	/**
+	 * The partial aggregate of the last analysis, if produced.
+	 */
+	private PartialAggregate aggregate;
+
+	/**
+	 * Whether the analysis also records the distributions of the session
+	 * durations.
+	 */
+	private boolean distributing = false;
+	/**
+	 * The distributions of the session durations of the last analysis, if
+	 * recorded.
+	 */
+	private DurationDistribution distribution;
+
+	/**
+	 * The error bound of the approximate summary, or 0 if the analysis does
+	 * not produce one.
+	 */
+	private double summaryError = 0;
+	/**
+	 * The approximate summary of the last analysis, if produced.
+	 */
+	private ApproximateSummary summary;
+
+	/**
+	 * Sets whether the analysis also produces an approximate summary, and its
+	 * error bound.
+	 *
+	 * @param summaryError
+	 *            The error bound (see {@link ApproximateSummary}), or 0 not
+	 *            to produce the summary.
+	 */
+	void setSummaryError(double summaryError) {
+		this.summaryError = summaryError;
+	}
+
+	/**
+	 * Obtains the approximate summary of the last analysis.
+	 *
+	 * @return The summary, or null if it was not produced.
+	 */
+	ApproximateSummary getSummary() {
+		return summary;
+	}
+
+	/**
+	 * Sets whether the analysis also records the distributions of the session
+	 * durations by project path.
+	 *
+	 * @param distributing
+	 *            True to record the distributions.
+	 */
+	void setDistributing(boolean distributing) {
+		this.distributing = distributing;
+	}
+
+	/**
+	 * Obtains the distributions of the session durations of the last
+	 * analysis.
+	 *
+	 * @return The distributions, or null if they were not recorded.
 	 */
-	private Date fromDate;
+	DurationDistribution getDistribution() {
+		return distribution;
+	}
+
 	/**
-	 * The end of a specified time period.
+	 * Sets whether the analysis also produces a partial aggregate of the
+	 * entries (by user, day and project path).
+	 *
+	 * @param aggregating
+	 *            True to produce the aggregate.
 	 */
-	private Date toDate;
+	void setAggregating(boolean aggregating) {
+		this.aggregating = aggregating;
+	}
+
+	/**
+	 * Obtains the partial aggregate of the last analysis.
+	 *
+	 * @return The aggregate, or null if it was not produced.
+	 */
+	PartialAggregate getAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Sets whether lines that cannot be parsed are skipped and quarantined
+	 * (the resilient mode), or stop the analysis (the default).
+	 *
+	 * @param resilient
+	 *            True for the resilient mode.
+	 */
+	void setResilient(boolean resilient) {
+		this.resilient = resilient;
+	}
+
+	/**
+	 * Obtains the lines skipped during the last analysis.
+	 *
+	 * @return The quarantine, or null if the last analysis was not run in
+	 *         the resilient mode.
+	 */
+	Quarantine getQuarantine() {
+		return quarantine;
+	}
 
 	/**
 	 * This method reads the specified log file for the specified time period.
-	 * The processing of individual log entries is delegated to @
-	 * #readLogEntry(String)} .
+	 * The log is read in parallel through a {@link LogSource}; if a segmented
+	 * log exists for the log file, only the segments that overlap with the
+	 * time period are read. The entries are summed up by
+	 * {@link #sum(Stream, LogFilter)}.
 	 *
 	 * @param logFilename
 	 *            The name of the log file.
@@ -83,85 +337,226 @@ public class Analyser {
 	 *            The start of the time period.
 	 * @param toDate
 	 *            The end of the time period.
-	 * @return The resulting map of results.
+	 * @return The resulting map of results, or null if any entry could not be
+	 *         processed.
 	 * @throws IOException
-	 *             Thrown if reading or parsing fails.
+	 *             Thrown if reading fails.
 	 */
 	Map<String, Long> processLogFile(String logFilename, Date fromDate, Date toDate) throws IOException {
-		sums = new TreeMap<String,Long>();
-		this.fromDate = fromDate;
-		this.toDate = toDate;
-		BufferedReader br = new BufferedReader(new FileReader(logFilename));
-		String line;
-		int lineNumber = 0;
-		while ((line = br.readLine()) != null)
-			try {lineNumber++; readLogEntry(line);}
-		catch (Exception e) {
-			err.println("Could not process log entry on line "
-					+ lineNumber + ": \"" + line + "\"");
-			e.printStackTrace();
-			return null;
-		}
-		br.close();
+		return processLogFile(logFilename, LogFilter.range(fromDate, toDate));
+	}
+
+	/**
+	 * This method reads the entries of the specified log file that are
+	 * accepted by the filter, and sums them up within the filter's time
+	 * period. The filter is applied while the log is read. In the resilient
+	 * mode, lines that cannot be parsed are quarantined instead.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param filter
+	 *            The filter, e.g. a compiled {@link LogQuery}.
+	 * @return The resulting map of results, or null if any entry could not be
+	 *         processed.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	Map<String, Long> processLogFile(String logFilename, LogFilter filter) throws IOException {
+		long analysisStart = System.nanoTime();
+		FlightEvents.Analysis event = new FlightEvents.Analysis();
+		LogSource source = new LogSource(logFilename);
+		source.setStrict(!resilient);
+		quarantine = null;
+		sums = sumSafely(source.stream(filter, true), filter);
+		skipReport = source.getSkipReport();
+		if (resilient)
+			quarantine = source.getQuarantine();
+		Metrics.INSTANCE.recordAnalysedLines(source.getLinesRead(), source.getBytesRead(), source.getMalformedLines());
+		Metrics.INSTANCE.recordAnalysis(analysisStart);
+		event.finish(logFilename, filter.getFromTime() == Long.MIN_VALUE ? 0 : filter.getFromTime(),
+				filter.getToTime() == Long.MAX_VALUE ? 0 : filter.getToTime(), source.getLinesRead(), source.getBytesRead());
 		return sums;
 	}
 
 	/**
-	 * Parses a single log entry. Fields should be separated by commas; any
-	 * spaces around commas are ignored. If the first field is recognised as a
-	 * date, the new log format (from,to,project,sub-project,...) is used;
-	 * otherwise, the old log format (project,sub-project,from,to) is used. The
-	 * recording of data is delegated to
-	 * {@link #recordData(String, String, String, String)}.
+	 * This method reads the bytes of the specified log file appended since
+	 * its checkpoint, adds their entries to the checkpointed aggregate, and
+	 * sums up the aggregate for the specified days. If there is no valid
+	 * checkpoint, the whole log file is read. The checkpoint is then updated
+	 * and saved.
 	 *
-	 * @param entry
-	 *            A single log entry to process.
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param checkpoint
+	 *            The checkpoints.
+	 * @param expression
+	 *            The filter expression (see {@link LogQuery}). Can be null.
+	 * @param fromDate
+	 *            The start of the time period; it should be a midnight. Can
+	 *            be null.
+	 * @param toDate
+	 *            The end of the time period; it should be a midnight. Can be
+	 *            null.
+	 * @return The resulting map of results, or null if any entry could not be
+	 *         processed.
+	 * @throws IOException
+	 *             Thrown if reading fails, or the checkpoint cannot be saved.
+	 * @throws ParseException
+	 *             Thrown if the filter expression is not valid.
 	 */
-	private void readLogEntry(String entry) {
-		String[] fields = entry.split("\\s*,\\s*", 3);
-		try { // try new format
-			Config.df.parse(fields[0]);
-			recordData(fields[0], fields[1], fields[2]);
-		} catch (ParseException e) { // old format
-			fields = entry.split("\\s*,\\s*", 4);
-			recordData(fields[2], fields[3], fields[0]);
+	Map<String, Long> processLogFile(String logFilename, AnalysisCheckpoint checkpoint, String expression,
+			Date fromDate, Date toDate) throws IOException, ParseException {
+		long analysisStart = System.nanoTime();
+		File file = new File(logFilename);
+		if (!file.isFile())
+			throw new FileNotFoundException(logFilename);
+		if (expression == null) expression = "";
+		LogFilter filter = expression.isEmpty() ? LogFilter.ALL : new LogQuery(expression, Long.MIN_VALUE, Long.MAX_VALUE);
+		AnalysisCheckpoint.Entry entry = checkpoint.get(file, expression);
+		long start = entry == null ? 0 : entry.offset;
+		long end = AnalysisCheckpoint.findLastLineEnd(file);
+		LogSource source = new LogSource(logFilename);
+		source.setStrict(!resilient);
+		source.setRange(start, end);
+		quarantine = null;
+		Stream<LogEntry> entries = source.stream(filter, true);
+		try {
+			aggregate = PartialAggregate.of(entries, filter);
+		} catch (LogFormatException e) {
+			err.println(e.getMessage());
+			e.getCause().printStackTrace();
+			return sums = null;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			entries.close();
 		}
+		if (entry != null)
+			aggregate.merge(entry.aggregate);
+		checkpoint.put(file, end, expression, aggregate);
+		checkpoint.save();
+		if (resilient)
+			quarantine = source.getQuarantine();
+		err.printf("Read %d bytes of %s from %s." + nl, end - start, logFilename,
+				entry == null ? "the start (no valid checkpoint)" : "the checkpoint at byte " + start);
+		Metrics.INSTANCE.recordAnalysedLines(source.getLinesRead(), source.getBytesRead(), source.getMalformedLines());
+		Metrics.INSTANCE.recordAnalysis(analysisStart);
+		ZoneId zone = ZoneId.systemDefault();
+		return sums = aggregate.sumByPath(fromDate == null ? null : fromDate.toInstant().atZone(zone).toLocalDate(),
+				toDate == null ? null : toDate.toInstant().atZone(zone).toLocalDate());
+	}
+
+	/**
+	 * This method merges the specified time-ordered log files into a single
+	 * stream (see {@link LogMerger}), and sums up the entries accepted by the
+	 * filter in the same way as {@link #processLogFile(String, LogFilter)}.
+	 * The report of the merge is written to the standard error output.
+	 *
+	 * @param logFilenames
+	 *            The names of the log files.
+	 * @param filter
+	 *            The filter.
+	 * @return The resulting map of results, or null if any entry could not be
+	 *         processed.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	Map<String, Long> processLogFiles(List<String> logFilenames, LogFilter filter) throws IOException {
+		if (logFilenames.size() == 1)
+			return processLogFile(logFilenames.get(0), filter);
+		long analysisStart = System.nanoTime();
+		LogMerger merger = new LogMerger(logFilenames);
+		quarantine = resilient ? new Quarantine(100) : null;
+		merger.setQuarantine(quarantine);
+		sums = sumSafely(merger.stream(filter), filter);
+		if (quarantine != null)
+			quarantine.resolveLineNumbers();
+		err.print(merger.getReport());
+		Metrics.INSTANCE.recordAnalysedLines(merger.getLinesRead(), merger.getBytesRead(),
+				quarantine == null ? 0 : quarantine.getTotal());
+		Metrics.INSTANCE.recordAnalysis(analysisStart);
+		return sums;
 	}
 
 	/**
-	 * Records the data from a single log entry, independent from the log
-	 * format.
+	 * Sums up the entries by {@link #sum(Stream, LogFilter)}, or through a
+	 * partial aggregate if one should be produced, records the distributions
+	 * of their durations and the approximate summary if they should be
+	 * produced, reports any entry that cannot be processed, and closes the
+	 * stream.
 	 *
-	 * @param start
-	 *            The start of the activity.
-	 * @param end
-	 *            The end of the activity.
-	 * @param projectPath
-	 *            The name of the top-level project.
+	 * @param entries
+	 *            The entries to sum up.
+	 * @param filter
+	 *            The filter whose time period the durations are clipped to.
+	 * @return The map from project paths to sums of milliseconds, or null if
+	 *         any entry could not be processed.
+	 * @throws IOException
+	 *             Thrown if reading fails.
 	 */
-	private void recordData(String start, String end, String projectPath) {
+	private Map<String, Long> sumSafely(Stream<LogEntry> entries, LogFilter filter) throws IOException {
+		aggregate = null;
+		distribution = null;
+		if (distributing) {
+			distribution = new DurationDistribution();
+			entries = entries.peek(distribution.recorder(filter));
+		}
+		summary = null;
+		if (summaryError > 0) {
+			summary = new ApproximateSummary(summaryError);
+			entries = entries.peek(summary.recorder(filter));
+		}
 		try {
-			Date startDate = Config.df.parse(start);
-			Date endDate = Config.df.parse(end);
-			// fit within the specified period
-			if (fromDate != null && startDate.before(fromDate))
-				startDate = fromDate;
-			if (toDate != null && endDate.after(toDate))
-				endDate = toDate;
-			// ignore if a reverse period
-			if (startDate.after(endDate))
-				return;
-			// calculate and add
-			Long sum = sums.get(projectPath);
-			if (sum == null)
-				sum = 0L;
-			sum += endDate.getTime() - startDate.getTime();
-			sums.put(projectPath, sum);
-		} catch (ParseException e) {
-			err.println("Could not parse log entry dates: " + start + ", " + end);
+			if (!aggregating)
+				return sum(entries, filter);
+			aggregate = PartialAggregate.of(entries, filter);
+			return aggregate.sumByPath();
+		} catch (LogFormatException e) {
+			err.println(e.getMessage());
+			e.getCause().printStackTrace();
+			return null;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			entries.close();
 		}
 	}
 
+	/**
+	 * Sums up the durations of the entries within the filter's time period by
+	 * their project path. The stream can be parallel.
+	 *
+	 * @param entries
+	 *            The entries to sum up.
+	 * @param filter
+	 *            The filter whose time period the durations are clipped to.
+	 * @return The map from project paths to sums of milliseconds.
+	 */
+	static Map<String, Long> sum(Stream<LogEntry> entries, final LogFilter filter) {
+		return entries.collect(new Supplier<Map<String, Long>>() {
+			@Override
+			public Map<String, Long> get() {
+				return new TreeMap<String, Long>();
+			}
+		}, new BiConsumer<Map<String, Long>, LogEntry>() {
+			@Override
+			public void accept(Map<String, Long> sums, LogEntry entry) {
+				long duration = entry.getDurationWithin(filter.getFromTime(), filter.getToTime());
+				if (duration < 0) return;
+				Long sum = sums.get(entry.projectPath);
+				sums.put(entry.projectPath, (sum == null ? 0L : sum) + duration);
+			}
+		}, new BiConsumer<Map<String, Long>, Map<String, Long>>() {
+			@Override
+			public void accept(Map<String, Long> sums, Map<String, Long> other) {
+				for (Map.Entry<String, Long> entry : other.entrySet()) {
+					Long sum = sums.get(entry.getKey());
+					sums.put(entry.getKey(), (sum == null ? 0L : sum) + entry.getValue());
+				}
+			}
+		});
+	}
+
 	/**
 	 * Outputs results of the analyser to the standard output.
 	 *
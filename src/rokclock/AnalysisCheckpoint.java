@@ -0,0 +1,252 @@
+package rokclock;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoints of repeated analyses of growing log files, e.g. by a nightly
+ * job. For every log file, a checkpoint records how many bytes were analysed,
+ * a fingerprint of those bytes, the filter expression, and the
+ * {@link PartialAggregate} of the analysed entries. The next analysis then
+ * with the same filter only reads the bytes appended since; if the analysed
+ * bytes changed, the log is analysed from the start again.
+ * <p>
+ * The fingerprint is the length and the CRC-32 of all the analysed bytes, so
+ * any change to them is detected. Computing it reads the analysed bytes, but
+ * this is much faster than parsing them again.
+ * <p>
+ * The checkpoints of many logs (and filters) can be kept in the same file.
+ * After a header line, every checkpoint is a line with the tab-separated
+ * fields "log", the
+ * absolute name of the log file, the number of analysed bytes, the
+ * fingerprint, the number of the following aggregate lines and the filter
+ * expression, followed by those lines in the format of aggregate files.
+ */
+class AnalysisCheckpoint {
+	/**
+	 * The header of the current version of the file format.
+	 */
+	private static final String HEADER = "rokclock-checkpoint 1";
+	/**
+	 * The number of bytes read at once when computing fingerprints or
+	 * searching for the end of the last line.
+	 */
+	private static final int BUFFER_BYTES = 1 << 16;
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+
+	/**
+	 * The checkpoint of a single log file.
+	 */
+	static class Entry {
+		/**
+		 * The absolute name of the log file.
+		 */
+		final String logPath;
+		/**
+		 * The number of analysed bytes.
+		 */
+		final long offset;
+		/**
+		 * The fingerprint of the analysed bytes.
+		 */
+		final long fingerprint;
+		/**
+		 * The filter expression, or an empty string.
+		 */
+		final String expression;
+		/**
+		 * The aggregate of the analysed entries.
+		 */
+		final PartialAggregate aggregate;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param logPath
+		 *            The absolute name of the log file.
+		 * @param offset
+		 *            The number of analysed bytes.
+		 * @param fingerprint
+		 *            The fingerprint of the analysed bytes.
+		 * @param expression
+		 *            The filter expression, or an empty string.
+		 * @param aggregate
+		 *            The aggregate of the analysed entries.
+		 */
+		Entry(String logPath, long offset, long fingerprint, String expression, PartialAggregate aggregate) {
+			this.logPath = logPath;
+			this.offset = offset;
+			this.fingerprint = fingerprint;
+			this.expression = expression;
+			this.aggregate = aggregate;
+		}
+	}
+
+	/**
+	 * The checkpoint file.
+	 */
+	private final File file;
+	/**
+	 * The checkpoints by the absolute names of the log files and the filter
+	 * expressions.
+	 */
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/**
+	 * Opens a checkpoint file, and reads it if it exists.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @throws IOException
+	 *             Thrown if the file exists but cannot be read.
+	 */
+	AnalysisCheckpoint(File file) throws IOException {
+		this.file = file;
+		if (!file.exists()) return;
+		BufferedReader br = Main.openVersionedFile(file, HEADER, "a checkpoint file");
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] fields = line.split("\t", 6);
+				try {
+					if (fields.length != 6 || !fields[0].equals("log"))
+						throw new IllegalArgumentException("Expected a checkpoint");
+					PartialAggregate aggregate = new PartialAggregate();
+					for (int i = Integer.parseInt(fields[4]); i > 0; i--)
+						aggregate.addLine(br.readLine());
+					entries.put(fields[1] + "\t" + fields[5],
+							new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[5], aggregate));
+				} catch (RuntimeException e) {
+					throw new IOException("Could not read the checkpoint file " + file + " at: " + line, e);
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Obtains the checkpoint of a log file analysed with a filter expression,
+	 * if it is still valid, i.e. the analysed bytes are unchanged.
+	 *
+	 * @param logFile
+	 *            The log file.
+	 * @param expression
+	 *            The filter expression, or an empty string.
+	 * @return The checkpoint, or null if there is no valid checkpoint.
+	 * @throws IOException
+	 *             Thrown if the log file cannot be read.
+	 */
+	Entry get(File logFile, String expression) throws IOException {
+		Entry entry = entries.get(logFile.getAbsolutePath() + "\t" + expression);
+		if (entry == null || logFile.length() < entry.offset
+				|| computeFingerprint(logFile, entry.offset) != entry.fingerprint)
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Records the checkpoint of a log file. Call {@link #save()} to write it.
+	 *
+	 * @param logFile
+	 *            The log file.
+	 * @param offset
+	 *            The number of analysed bytes.
+	 * @param expression
+	 *            The filter expression, or an empty string.
+	 * @param aggregate
+	 *            The aggregate of the analysed entries.
+	 * @throws IOException
+	 *             Thrown if the log file cannot be read.
+	 */
+	void put(File logFile, long offset, String expression, PartialAggregate aggregate) throws IOException {
+		String logPath = logFile.getAbsolutePath();
+		entries.put(logPath + "\t" + expression,
+				new Entry(logPath, offset, computeFingerprint(logFile, offset), expression, aggregate));
+	}
+
+	/**
+	 * Writes the checkpoint file. The file is only replaced once it is written
+	 * completely.
+	 *
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	void save() throws IOException {
+		Main.writeFileAtomically(file, false, new Main.ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				Writer w = new OutputStreamWriter(os, "UTF-8");
+				w.write(HEADER + nl);
+				for (Entry e : entries.values()) {
+					w.write("log\t" + e.logPath + "\t" + e.offset + "\t" + e.fingerprint + "\t"
+							+ e.aggregate.size() + "\t" + e.expression.replace('\n', ' ') + nl);
+					e.aggregate.writeLines(w);
+				}
+				w.flush();
+			}
+		});
+	}
+
+	/**
+	 * Finds the end of the last complete line of a log file, up to which it
+	 * can be analysed.
+	 *
+	 * @param logFile
+	 *            The log file.
+	 * @return The offset after the last newline, or 0 if there is none.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	static long findLastLineEnd(File logFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+		try {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			for (long end = raf.length(); end > 0;) {
+				int length = (int) Math.min(buffer.length, end);
+				raf.seek(end - length);
+				raf.readFully(buffer, 0, length);
+				for (int i = length - 1; i >= 0; i--)
+					if (buffer[i] == '\n') return end - length + i + 1;
+				end -= length;
+			}
+			return 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Computes the fingerprint of the first bytes of a log file: the CRC-32 of
+	 * all of them, combined with their number.
+	 *
+	 * @param logFile
+	 *            The log file.
+	 * @param length
+	 *            The number of bytes.
+	 * @return The fingerprint.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private static long computeFingerprint(File logFile, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(logFile);
+		try {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			for (long remaining = length; remaining > 0;) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n == -1) throw new EOFException(logFile + " is shorter than " + length + " bytes.");
+				crc.update(buffer, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue() << 32 ^ length;
+	}
+}
@@ -0,0 +1,520 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * An approximate summary of very large logs by top-level project: the exact
+ * time and number of entries, the approximate numbers of distinct users and
+ * of distinct project paths (e.g. tickets), kept in {@link HyperLogLog}
+ * sketches, and the approximate percentiles of the entry durations, kept in a
+ * {@link LogHistogram}. The memory used only depends on the error bound and
+ * the number of top-level projects, so summaries can be computed over tens of
+ * millions of entries, and merged across machines.
+ * <p>
+ * The error bound is both the standard error of the distinct counts and the
+ * relative error of the percentiles. The file format is versioned text,
+ * gzip-compressed if the file name ends with ".gz". After the header line and
+ * a line with the tab-separated precisions of the sketches and histograms,
+ * every line contains the tab-separated top-level project, milliseconds,
+ * number of entries, the sketches of users and of project paths, and the
+ * encoded histogram of the durations in seconds.
+ */
+class ApproximateSummary {
+	/**
+	 * The header of the current version of the file format.
+	 */
+	static final String HEADER = "rokclock-sketch 1";
+	/**
+	 * The default error bound.
+	 */
+	static final double DEFAULT_ERROR = 0.01;
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+
+	/**
+	 * The sketches of a single top-level project. Adding is synchronised, so
+	 * that entries can be added from parallel streams.
+	 */
+	private class ProjectSketch {
+		/**
+		 * The sum of milliseconds within the time period.
+		 */
+		long millis;
+		/**
+		 * The number of entries.
+		 */
+		long count;
+		/**
+		 * The users.
+		 */
+		final HyperLogLog users;
+		/**
+		 * The project paths.
+		 */
+		final HyperLogLog paths;
+		/**
+		 * The durations in seconds.
+		 */
+		final LogHistogram durations;
+
+		/**
+		 * Creates empty sketches with the precision of the summary.
+		 */
+		ProjectSketch() {
+			this(new HyperLogLog(distinctBits), new HyperLogLog(distinctBits),
+					DurationDistribution.createHistogram(durationBits));
+		}
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param users
+		 *            The sketch of the users.
+		 * @param paths
+		 *            The sketch of the project paths.
+		 * @param durations
+		 *            The histogram of the durations in seconds.
+		 */
+		ProjectSketch(HyperLogLog users, HyperLogLog paths, LogHistogram durations) {
+			this.users = users;
+			this.paths = paths;
+			this.durations = durations;
+		}
+
+		/**
+		 * Adds an entry.
+		 *
+		 * @param entry
+		 *            The entry.
+		 * @param duration
+		 *            The duration of the entry within the time period.
+		 */
+		synchronized void add(LogEntry entry, long duration) {
+			millis += duration;
+			count++;
+			users.add(entry.uid == null ? "" : entry.uid);
+			paths.add(entry.projectPath);
+			durations.record((entry.endTime - entry.startTime) / 1000);
+		}
+
+		/**
+		 * Adds all the entries of other sketches.
+		 *
+		 * @param other
+		 *            The sketches to merge.
+		 */
+		synchronized void merge(ProjectSketch other) {
+			millis += other.millis;
+			count += other.count;
+			users.merge(other.users);
+			paths.merge(other.paths);
+			durations.merge(other.durations);
+		}
+	}
+
+	/**
+	 * The precision of the distinct counts.
+	 */
+	private final int distinctBits;
+	/**
+	 * The precision of the duration histograms.
+	 */
+	private final int durationBits;
+	/**
+	 * The sketches by top-level project.
+	 */
+	private final ConcurrentMap<String, ProjectSketch> sketches = new ConcurrentHashMap<String, ProjectSketch>();
+
+	/**
+	 * Creates an empty summary whose distinct counts and percentiles are
+	 * within the specified error bound, as far as the precision of the
+	 * sketches allows.
+	 *
+	 * @param error
+	 *            The relative error bound, e.g. 0.01 for 1%.
+	 * @throws IllegalArgumentException
+	 *             Thrown if the error bound is not between 0 and 1.
+	 */
+	ApproximateSummary(double error) {
+		this(checkError(error), Math.max(1, Math.min(16, (int) Math.ceil(-Math.log(error) / Math.log(2)))));
+	}
+
+	/**
+	 * Checks an error bound, and computes the precision of the distinct
+	 * counts for it.
+	 *
+	 * @param error
+	 *            The relative error bound.
+	 * @return The precision of the distinct counts.
+	 * @throws IllegalArgumentException
+	 *             Thrown if the error bound is not between 0 and 1.
+	 */
+	private static int checkError(double error) {
+		if (!(error > 0 && error < 1))
+			throw new IllegalArgumentException("The error bound should be between 0 and 1: " + error);
+		return HyperLogLog.precisionFor(error);
+	}
+
+	/**
+	 * Creates an empty summary with the specified precisions.
+	 *
+	 * @param distinctBits
+	 *            The precision of the distinct counts.
+	 * @param durationBits
+	 *            The precision of the duration histograms.
+	 */
+	private ApproximateSummary(int distinctBits, int durationBits) {
+		this.distinctBits = distinctBits;
+		this.durationBits = durationBits;
+	}
+
+	/**
+	 * Obtains the sketches of a top-level project, creating them if
+	 * necessary.
+	 *
+	 * @param project
+	 *            The top-level project.
+	 * @return The sketches.
+	 */
+	private ProjectSketch sketch(String project) {
+		ProjectSketch sketch = sketches.get(project);
+		if (sketch == null) {
+			ProjectSketch created = new ProjectSketch();
+			sketch = sketches.putIfAbsent(project, created);
+			if (sketch == null) sketch = created;
+		}
+		return sketch;
+	}
+
+	/**
+	 * Adds an entry that overlaps with the filter's time period. Its time is
+	 * clipped to the period, but its whole duration is recorded.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @param filter
+	 *            The filter whose time period the entry should overlap with.
+	 */
+	void add(LogEntry entry, LogFilter filter) {
+		long duration = entry.getDurationWithin(filter.getFromTime(), filter.getToTime());
+		if (duration < 0) return;
+		sketch(entry.getTopLevelProject()).add(entry, duration);
+	}
+
+	/**
+	 * Creates a consumer that adds the entries accepted by a filter, e.g. to
+	 * add the entries of a stream while they are summed up.
+	 *
+	 * @param filter
+	 *            The filter whose time period the entries should overlap
+	 *            with.
+	 * @return The consumer.
+	 */
+	Consumer<LogEntry> recorder(final LogFilter filter) {
+		return new Consumer<LogEntry>() {
+			@Override
+			public void accept(LogEntry entry) {
+				add(entry, filter);
+			}
+		};
+	}
+
+	/**
+	 * Adds all the entries of another summary to this one.
+	 *
+	 * @param other
+	 *            The summary to merge; it should have the same error bound.
+	 */
+	void merge(ApproximateSummary other) {
+		if (other.distinctBits != distinctBits || other.durationBits != durationBits)
+			throw new IllegalArgumentException("Cannot merge summaries with different error bounds.");
+		for (Map.Entry<String, ProjectSketch> entry : other.sketches.entrySet())
+			sketch(entry.getKey()).merge(entry.getValue());
+	}
+
+	/**
+	 * Describes the error bounds of the summary.
+	 *
+	 * @return The description.
+	 */
+	String getErrorBounds() {
+		return String.format("Distinct counts have a standard error of %.2f%%, and duration percentiles are within %.2f%%.",
+				100 * new HyperLogLog(distinctBits).getStandardError(), 100.0 / (1 << durationBits));
+	}
+
+	/**
+	 * Obtains the size of the sketches in bytes, which is independent of the
+	 * number of entries.
+	 *
+	 * @return The size.
+	 */
+	long getSizeBytes() {
+		return sketches.size() * ((2L << distinctBits) + DurationDistribution.createHistogram(durationBits).getSizeBytes());
+	}
+
+	/**
+	 * Writes the summary of every top-level project in the CSV style of the
+	 * {@link Analyser}: the team, the hours, the number of entries, the
+	 * approximate numbers of distinct users and project paths, the
+	 * approximate median, 90th and 99th percentiles of the durations in
+	 * minutes, and the top-level project.
+	 *
+	 * @param out
+	 *            The output.
+	 * @param team
+	 *            The team.
+	 */
+	void writeResults(PrintStream out, String team) {
+		for (Map.Entry<String, ProjectSketch> entry : new TreeMap<String, ProjectSketch>(sketches).entrySet()) {
+			ProjectSketch sketch = entry.getValue();
+			out.printf("%s, %.2f, %d, %d, %d, %.1f, %.1f, %.1f, %s" + nl, team, sketch.millis / (1000 * 3600.0),
+					sketch.count, sketch.users.estimate(), sketch.paths.estimate(),
+					sketch.durations.getPercentile(50) / 60.0, sketch.durations.getPercentile(90) / 60.0,
+					sketch.durations.getPercentile(99) / 60.0, entry.getKey());
+		}
+	}
+
+	/**
+	 * Reads and merges many summary files.
+	 *
+	 * @param files
+	 *            The summary files; there should be at least one.
+	 * @return The merged summary.
+	 * @throws IOException
+	 *             Thrown if a file cannot be read, or the files have
+	 *             different error bounds.
+	 */
+	static ApproximateSummary mergeAll(List<File> files) throws IOException {
+		ApproximateSummary summary = null;
+		for (File file : files) {
+			ApproximateSummary other = read(file);
+			if (summary == null)
+				summary = other;
+			else if (other.distinctBits != summary.distinctBits || other.durationBits != summary.durationBits)
+				throw new IOException(file + " has different error bounds than " + files.get(0) + ".");
+			else
+				summary.merge(other);
+		}
+		return summary;
+	}
+
+	/**
+	 * Reads a summary file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The summary.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read, or is not a summary file
+	 *             of a supported version.
+	 */
+	static ApproximateSummary read(File file) throws IOException {
+		BufferedReader br = Main.openVersionedFile(file, HEADER, "a sketch file");
+		try {
+			String line = br.readLine();
+			int lineNumber = 2;
+			try {
+				String[] fields = line.split("\t");
+				if (fields.length != 3 || !fields[0].equals("precision"))
+					throw new IllegalArgumentException("Expected the precisions");
+				ApproximateSummary summary = new ApproximateSummary(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+				while ((line = br.readLine()) != null) {
+					lineNumber++;
+					if (line.isEmpty()) continue;
+					fields = line.split("\t", 6);
+					ProjectSketch sketch = summary.new ProjectSketch(HyperLogLog.decode(fields[3]),
+							HyperLogLog.decode(fields[4]), LogHistogram.decode(fields[5]));
+					sketch.millis = Long.parseLong(fields[1]);
+					sketch.count = Long.parseLong(fields[2]);
+					summary.sketch(fields[0]).merge(sketch);
+				}
+				return summary;
+			} catch (RuntimeException e) {
+				throw new IOException("Could not read line " + lineNumber + " of " + file + ": " + line, e);
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Writes the summary into a file, compressing it if its name ends with
+	 * ".gz". The file is only replaced once it is written completely.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	void write(File file) throws IOException {
+		Main.writeFileAtomically(file, file.getName().endsWith(".gz"), new Main.ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				Writer w = new OutputStreamWriter(os, "UTF-8");
+				w.write(HEADER + nl);
+				w.write("precision\t" + distinctBits + "\t" + durationBits + nl);
+				for (Map.Entry<String, ProjectSketch> entry : new TreeMap<String, ProjectSketch>(sketches).entrySet()) {
+					ProjectSketch sketch = entry.getValue();
+					w.write(entry.getKey().replace('\t', ' ') + "\t" + sketch.millis + "\t" + sketch.count + "\t"
+							+ sketch.users.encode() + "\t" + sketch.paths.encode() + "\t" + sketch.durations.encode() + nl);
+				}
+				w.flush();
+			}
+		});
+	}
+
+	/**
+	 * Compares the summary of a log with the exact computation of the same
+	 * values, and writes the errors and the times of both to the standard
+	 * output. The log is loaded into memory first, so that only the
+	 * computation is timed; both are run a few times, and the fastest run is
+	 * reported.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param error
+	 *            The error bound of the summary.
+	 * @throws IOException
+	 *             Thrown if the log cannot be read.
+	 */
+	static void benchmark(String logFilename, double error) throws IOException {
+		List<LogEntry> entries = new ArrayList<LogEntry>();
+		LogSource source = new LogSource(logFilename);
+		source.setStrict(false);
+		try {
+			for (Iterator<LogEntry> i = source.iterator(LogFilter.ALL); i.hasNext();)
+				entries.add(i.next());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			source.close();
+		}
+		Map<String, Set<String>> users = null, paths = null;
+		Map<String, long[]> durations = null;
+		ApproximateSummary summary = null;
+		long exactNanos = Long.MAX_VALUE, approximateNanos = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			users = new HashMap<String, Set<String>>();
+			paths = new HashMap<String, Set<String>>();
+			Map<String, List<Long>> lists = new HashMap<String, List<Long>>();
+			for (LogEntry entry : entries) {
+				String project = entry.getTopLevelProject();
+				if (!users.containsKey(project)) {
+					users.put(project, new HashSet<String>());
+					paths.put(project, new HashSet<String>());
+					lists.put(project, new ArrayList<Long>());
+				}
+				users.get(project).add(entry.uid == null ? "" : entry.uid);
+				paths.get(project).add(entry.projectPath);
+				lists.get(project).add((entry.endTime - entry.startTime) / 1000);
+			}
+			durations = new HashMap<String, long[]>();
+			for (Map.Entry<String, List<Long>> entry : lists.entrySet()) {
+				long[] sorted = new long[entry.getValue().size()];
+				for (int i = 0; i < sorted.length; i++)
+					sorted[i] = entry.getValue().get(i);
+				Arrays.sort(sorted);
+				durations.put(entry.getKey(), sorted);
+			}
+			exactNanos = Math.min(exactNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			summary = new ApproximateSummary(error);
+			for (LogEntry entry : entries)
+				summary.add(entry, LogFilter.ALL);
+			approximateNanos = Math.min(approximateNanos, System.nanoTime() - start);
+		}
+		out.println(summary.getErrorBounds());
+		out.printf("%-20s %21s %21s %15s %15s %15s" + nl, "project", "users (error)", "paths (error)",
+				"p50 min", "p90 min", "p99 min");
+		double maxDistinctError = 0, maxPercentileError = 0;
+		long exactValues = 0;
+		for (Map.Entry<String, ProjectSketch> entry : new TreeMap<String, ProjectSketch>(summary.sketches).entrySet()) {
+			String project = entry.getKey();
+			ProjectSketch sketch = entry.getValue();
+			long[] sorted = durations.get(project);
+			exactValues += users.get(project).size() + paths.get(project).size() + sorted.length;
+			StringBuilder sb = new StringBuilder(String.format("%-20s", project));
+			long[][] distincts = {{users.get(project).size(), sketch.users.estimate()},
+					{paths.get(project).size(), sketch.paths.estimate()}};
+			for (long[] d : distincts) {
+				double e = 1.0 * Math.abs(d[1] - d[0]) / d[0];
+				maxDistinctError = Math.max(maxDistinctError, e);
+				sb.append(String.format(" %8d ~%-8d%+.1f%%", d[0], d[1], 100.0 * (d[1] - d[0]) / d[0]));
+			}
+			for (double percentile : new double[] {50, 90, 99}) {
+				long exact = sorted[(int) Math.max(0, Math.ceil(percentile / 100 * sorted.length) - 1)];
+				long approximate = sketch.durations.getPercentile(percentile);
+				if (exact > 0)
+					maxPercentileError = Math.max(maxPercentileError, 1.0 * Math.abs(approximate - exact) / exact);
+				sb.append(String.format(" %6.1f ~%-6.1f", exact / 60.0, approximate / 60.0));
+			}
+			out.println(sb);
+		}
+		out.printf("Largest errors: %.2f%% for distinct counts, %.2f%% for percentiles." + nl,
+				100 * maxDistinctError, 100 * maxPercentileError);
+		out.printf("Exact: %.1f ms, keeping %d distinct values and durations; approximate: %.1f ms, keeping %d KB of sketches (%d entries)." + nl,
+				exactNanos / 1e6, exactValues, approximateNanos / 1e6, summary.getSizeBytes() >> 10, entries.size());
+	}
+
+	/**
+	 * The entry method, which merges summary files, optionally writes the
+	 * merged summary, and writes the results by top-level project to the
+	 * standard output (see {@link #writeResults(PrintStream, String)}); or,
+	 * with the "-benchmark" option, benchmarks the summary of a log against
+	 * the exact computation (see {@link #benchmark(String, double)}).
+	 *
+	 * @param args
+	 *            Optionally "-o" and the name of the merged summary file,
+	 *            followed by the names of the summary files to merge; or
+	 *            "-benchmark", the name of a log file and optionally the
+	 *            error bound.
+	 * @throws Exception
+	 *             Thrown if merging or benchmarking fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 2 && args.length <= 3 && args[0].equals("-benchmark")) {
+			double error = DEFAULT_ERROR;
+			if (args.length == 3)
+				try {
+					error = Double.parseDouble(args[2]);
+				} catch (NumberFormatException e) {
+					err.println("The error bound should be a fraction, e.g. 0.01: " + args[2]);
+					exit(1);
+				}
+			if (!(error > 0 && error < 1)) {
+				err.println("The error bound should be between 0 and 1: " + error);
+				exit(1);
+			}
+			benchmark(args[1], error);
+			return;
+		}
+		File output = null;
+		if (args.length >= 2 && args[0].equals("-o")) {
+			output = new File(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length == 0) {
+			err.println("Usage: java -cp bin rokclock.ApproximateSummary [-o <outputSketch>] <sketch>...");
+			err.println("       java -cp bin rokclock.ApproximateSummary -benchmark <logFilename> [<error>]");
+			exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (String arg : args)
+			files.add(new File(arg));
+		ApproximateSummary summary = mergeAll(files);
+		if (output != null)
+			summary.write(output);
+		err.println(summary.getErrorBounds());
+		summary.writeResults(out, new Config().getTeam());
+	}
+}
@@ -0,0 +1,226 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.text.*;
+import java.time.*;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.Stream;
+
+/**
+ * The exporter of weekly timesheets for many weeks at once. The log is read
+ * in a single (parallel) pass, in which every entry is split between the ISO
+ * 8601 weeks it overlaps with. Then a timesheet is written for every week
+ * with logged time, in the same format and with the same name as the review
+ * dialog would produce for that week.
+ */
+class BatchExporter {
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+	/**
+	 * The number of milliseconds in an hour.
+	 */
+	private static final double MILLIS_PER_HOUR = 1000 * 3600;
+
+	/**
+	 * Sums up the entries of a log by week and project path.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param filter
+	 *            The filter of the entries, e.g. a time period.
+	 * @return The map from the start of each week (Monday midnight, in
+	 *         milliseconds from epoch) to the sums of milliseconds by project
+	 *         path.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	static SortedMap<Long, Map<String, Long>> sumByWeek(String logFilename, final LogFilter filter) throws IOException {
+		Stream<LogEntry> entries = new LogSource(logFilename).stream(filter, true);
+		try {
+			return entries.collect(new Supplier<SortedMap<Long, Map<String, Long>>>() {
+				@Override
+				public SortedMap<Long, Map<String, Long>> get() {
+					return new TreeMap<Long, Map<String, Long>>();
+				}
+			}, new BiConsumer<SortedMap<Long, Map<String, Long>>, LogEntry>() {
+				@Override
+				public void accept(SortedMap<Long, Map<String, Long>> weeks, LogEntry entry) {
+					long start = Math.max(entry.startTime, filter.getFromTime());
+					long end = Math.min(entry.endTime, filter.getToTime());
+					while (start < end) {
+						long weekStart = getWeekStart(start);
+						long weekEnd = getWeekStart(weekStart + 8L * 24 * 3600 * 1000);
+						add(weeks, weekStart, entry.projectPath, Math.min(end, weekEnd) - start);
+						start = weekEnd;
+					}
+				}
+			}, new BiConsumer<SortedMap<Long, Map<String, Long>>, SortedMap<Long, Map<String, Long>>>() {
+				@Override
+				public void accept(SortedMap<Long, Map<String, Long>> weeks, SortedMap<Long, Map<String, Long>> other) {
+					for (Map.Entry<Long, Map<String, Long>> week : other.entrySet())
+						for (Map.Entry<String, Long> sum : week.getValue().entrySet())
+							add(weeks, week.getKey(), sum.getKey(), sum.getValue());
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			entries.close();
+		}
+	}
+
+	/**
+	 * Adds a duration to the sums of a week.
+	 *
+	 * @param weeks
+	 *            The sums by week.
+	 * @param weekStart
+	 *            The start of the week.
+	 * @param projectPath
+	 *            The project path.
+	 * @param millis
+	 *            The duration in milliseconds.
+	 */
+	private static void add(Map<Long, Map<String, Long>> weeks, long weekStart, String projectPath, long millis) {
+		Map<String, Long> sums = weeks.get(weekStart);
+		if (sums == null)
+			weeks.put(weekStart, sums = new TreeMap<String, Long>());
+		Long sum = sums.get(projectPath);
+		sums.put(projectPath, (sum == null ? 0L : sum) + millis);
+	}
+
+	/**
+	 * Obtains the start of the week (Monday midnight in the default time
+	 * zone) that contains the specified time.
+	 *
+	 * @param time
+	 *            The time in milliseconds from epoch.
+	 * @return The start of the week in milliseconds from epoch.
+	 */
+	static long getWeekStart(long time) {
+		ZoneId zone = ZoneId.systemDefault();
+		LocalDate date = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+		return date.minusDays(date.getDayOfWeek().getValue() - 1).atStartOfDay(zone).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Obtains the ISO 8601 week-based year of the specified time, e.g. 2020
+	 * for 1 January 2021, which belongs to the last week of 2020.
+	 *
+	 * @param time
+	 *            The time in milliseconds from epoch.
+	 * @return The week-based year.
+	 */
+	static int getWeekBasedYear(long time) {
+		return Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).get(IsoFields.WEEK_BASED_YEAR);
+	}
+
+	/**
+	 * Generates the overview of a period in the format of a timesheet: a line
+	 * "team, fraction, project" for every project with at least half a
+	 * percent of the total. As in the review dialog, the hours are rounded to
+	 * two decimals before the fractions are computed.
+	 *
+	 * @param team
+	 *            The team.
+	 * @param projects
+	 *            The projects.
+	 * @param hours
+	 *            The hours of the projects, in the same order.
+	 * @return The overview, or null if no hours were logged.
+	 */
+	static String generateOverviewText(String team, List<String> projects, List<Double> hours) {
+		DecimalFormat decimalFormat = new DecimalFormat("0.00");
+		double total = 0;
+		for (double h : hours)
+			total += h;
+		if (total == 0) return null;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < projects.size(); i++) {
+			double fraction = hours.get(i) / total;
+			if (fraction < 0.004) continue;
+			sb.append(team + ", " + decimalFormat.format(fraction) + ", " + projects.get(i) + nl);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a timesheet for every week with logged time into the specified
+	 * directory, named as by the review dialog, e.g. "timesheet-2024wk7.txt".
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param filter
+	 *            The filter of the entries, e.g. a time period.
+	 * @param team
+	 *            The team.
+	 * @param directory
+	 *            The directory to write into.
+	 * @return The number of timesheets written.
+	 * @throws IOException
+	 *             Thrown if reading or writing fails.
+	 */
+	static int export(String logFilename, LogFilter filter, String team, File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		int written = 0;
+		for (Map.Entry<Long, Map<String, Long>> week : sumByWeek(logFilename, filter).entrySet()) {
+			List<String> projects = new ArrayList<String>();
+			List<Double> hours = new ArrayList<Double>();
+			for (Map.Entry<String, Long> sum : week.getValue().entrySet()) {
+				projects.add(sum.getKey());
+				hours.add(Math.round(sum.getValue() / MILLIS_PER_HOUR * 100) / 100.0);
+			}
+			String overview = generateOverviewText(team, projects, hours);
+			if (overview == null) continue;
+			LocalDate monday = Instant.ofEpochMilli(week.getKey()).atZone(ZoneId.systemDefault()).toLocalDate();
+			String filename = "timesheet-" + monday.get(IsoFields.WEEK_BASED_YEAR) + "wk"
+					+ monday.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR) + ".txt";
+			FileWriter fw = new FileWriter(new File(directory, filename));
+			try {fw.write(overview);}
+			finally {fw.close();}
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * The entry method, which exports the timesheets of all weeks (or of the
+	 * weeks within the specified period) of a log into a directory. The team
+	 * is taken from the configuration.
+	 *
+	 * @param args
+	 *            The name of the log file, the output directory, and
+	 *            optionally the start date (inclusive) and the stop date
+	 *            (exclusive) as dd/MM/yyyy.
+	 * @throws Exception
+	 *             Thrown if the export fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2 && args.length != 4) {
+			err.println("Usage: java -cp bin rokclock.BatchExporter <logFilename> <outputDirectory> [<start date inclusive> <stop date exclusive>]");
+			exit(1);
+		}
+		Date fromDate = null, toDate = null;
+		if (args.length == 4)
+			try {
+				DateFormat df = new SimpleDateFormat("dd/MM/yyyy");
+				fromDate = df.parse(args[2]);
+				toDate = df.parse(args[3]);
+			} catch (ParseException e) {
+				err.println("Dates should be specified in the following format: dd/MM/yyyy");
+				exit(1);
+			}
+		long start = System.nanoTime();
+		int written = export(args[0], LogFilter.range(fromDate, toDate), new Config().getTeam(), new File(args[1]));
+		out.printf("Wrote %d timesheets into %s in %.1f s." + nl, written, args[1], (System.nanoTime() - start) / 1e9);
+	}
+}
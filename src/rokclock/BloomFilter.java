@@ -0,0 +1,172 @@
+package rokclock;
+
+import java.io.*;
+
+/**
+ * A Bloom filter over strings: a compact set that can tell for sure that a
+ * string was never added, but may wrongly claim that it was (a false
+ * positive). With b bits per added string and the matching number of hash
+ * functions (b ln 2), the false positive rate is about 0.6185^b, e.g. 1% for
+ * 10 bits.
+ */
+class BloomFilter {
+	/**
+	 * The bits.
+	 */
+	private final long[] bits;
+	/**
+	 * The number of hash functions.
+	 */
+	private final int numHashes;
+	/**
+	 * The number of added strings.
+	 */
+	private int count;
+
+	/**
+	 * Creates an empty filter sized for the specified number of strings.
+	 *
+	 * @param expectedKeys
+	 *            The expected number of strings.
+	 * @param bitsPerKey
+	 *            The number of bits per string.
+	 */
+	BloomFilter(int expectedKeys, int bitsPerKey) {
+		this(new long[(Math.max(64, expectedKeys * bitsPerKey) + 63) / 64],
+				Math.max(1, (int) Math.round(bitsPerKey * Math.log(2))), 0);
+	}
+
+	/**
+	 * A simple constructor.
+	 *
+	 * @param bits
+	 *            The bits.
+	 * @param numHashes
+	 *            The number of hash functions.
+	 * @param count
+	 *            The number of added strings.
+	 */
+	private BloomFilter(long[] bits, int numHashes, int count) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+		this.count = count;
+	}
+
+	/**
+	 * Computes a 64-bit hash of a string (FNV-1a, followed by the final mix
+	 * of MurmurHash3). It is also used by {@link HyperLogLog}.
+	 *
+	 * @param key
+	 *            The string.
+	 * @return The hash.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ h >>> 33;
+	}
+
+	/**
+	 * Adds a string.
+	 *
+	 * @param key
+	 *            The string.
+	 */
+	void add(String key) {
+		long h = hash(key);
+		int h1 = (int) h, h2 = (int) (h >>> 32);
+		long numBits = 64L * bits.length;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		count++;
+	}
+
+	/**
+	 * Checks whether a string may have been added.
+	 *
+	 * @param key
+	 *            The string.
+	 * @return False if the string was certainly not added.
+	 */
+	boolean mightContain(String key) {
+		long h = hash(key);
+		int h1 = (int) h, h2 = (int) (h >>> 32);
+		long numBits = 64L * bits.length;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % numBits;
+			if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Obtains the size of the bits in bytes.
+	 *
+	 * @return The size.
+	 */
+	int getSizeBytes() {
+		return 8 * bits.length;
+	}
+
+	/**
+	 * Obtains the number of added strings.
+	 *
+	 * @return The count.
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Estimates the false positive rate from the size and the number of added
+	 * strings.
+	 *
+	 * @return The rate (between 0 and 1).
+	 */
+	double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-1.0 * numHashes * count / (64.0 * bits.length)), numHashes);
+	}
+
+	/**
+	 * Writes the filter.
+	 *
+	 * @param out
+	 *            The output.
+	 * @throws IOException
+	 *             Thrown if writing fails.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(numHashes);
+		out.writeInt(count);
+		out.writeInt(bits.length);
+		for (long word : bits)
+			out.writeLong(word);
+	}
+
+	/**
+	 * Reads a filter written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            The input.
+	 * @return The filter.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	static BloomFilter read(DataInput in) throws IOException {
+		int numHashes = in.readInt();
+		int count = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++)
+			bits[i] = in.readLong();
+		return new BloomFilter(bits, numHashes, count);
+	}
+}
@@ -0,0 +1,578 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The Bloom filters over the project paths of a log, stored in a sidecar file
+ * next to the log (e.g. "log.txt.bloom"). There is a filter for every closed
+ * segment of a segmented log, or for every complete block of a fixed number of
+ * bytes of a single log file (a line belongs to the block in which it
+ * starts). A {@link LogSource} skips the segments and blocks whose filter
+ * shows that they cannot contain entries accepted by its {@link LogFilter}.
+ * <p>
+ * Every filter contains all the prefixes of the project paths of its entries,
+ * in the form used by {@link LogQuery} (e.g. "COW" and "COW/A sub-project").
+ * The index is updated incrementally: only new blocks and changed segments
+ * are read. The blocks of a log file are dropped if the start of the file
+ * changes. Every block of a log file also records the CRC-32 of its bytes,
+ * and the index records the length and the modification time of the log file
+ * it was last updated for. When the index is loaded, the blocks are trusted if
+ * these are unchanged. If the file only grew, only the last block's CRC-32 is
+ * verified, as the log is normally only appended to; otherwise, the CRC-32 of
+ * every block is verified, so a block that was edited in place is not
+ * skipped.
+ */
+class BloomIndex {
+	/**
+	 * The format version of the sidecar file.
+	 */
+	private static final int VERSION = 3;
+	/**
+	 * The default number of bits per project path in a filter.
+	 */
+	static final int DEFAULT_BITS_PER_KEY = 10;
+	/**
+	 * The default size of the blocks of a single log file in bytes.
+	 */
+	static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+	/**
+	 * The number of bytes at the start of a log file used as its fingerprint.
+	 */
+	private static final int FINGERPRINT_BYTES = 4096;
+
+	/**
+	 * A block of a single log file, or a segment of a segmented log, with its
+	 * filter.
+	 */
+	static class Block {
+		/**
+		 * The name of the segment (without the compression suffix), or an
+		 * empty string for a block of a single log file.
+		 */
+		final String segment;
+		/**
+		 * The start of the block (inclusive) in bytes.
+		 */
+		final long start;
+		/**
+		 * The end of the block (exclusive) in bytes; for a segment, its size.
+		 */
+		final long end;
+		/**
+		 * The CRC-32 of the bytes of a block of a single log file; zero for
+		 * a segment.
+		 */
+		final long crc;
+		/**
+		 * The filter.
+		 */
+		final BloomFilter filter;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param segment
+		 *            The name of the segment, or an empty string.
+		 * @param start
+		 *            The start of the block.
+		 * @param end
+		 *            The end of the block.
+		 * @param crc
+		 *            The CRC-32 of the block's bytes, or zero.
+		 * @param filter
+		 *            The filter.
+		 */
+		Block(String segment, long start, long end, long crc, BloomFilter filter) {
+			this.segment = segment;
+			this.start = start;
+			this.end = end;
+			this.crc = crc;
+			this.filter = filter;
+		}
+	}
+
+	/**
+	 * The name of the log file.
+	 */
+	private final String logFilename;
+	/**
+	 * The number of bits per project path.
+	 */
+	private int bitsPerKey = DEFAULT_BITS_PER_KEY;
+	/**
+	 * The size of the blocks of a single log file.
+	 */
+	private int blockBytes = DEFAULT_BLOCK_BYTES;
+	/**
+	 * The fingerprint of the start of the single log file.
+	 */
+	private long fingerprint = 0;
+	/**
+	 * The length of the single log file when the index was last updated.
+	 */
+	private long fileLength = 0;
+	/**
+	 * The modification time of the single log file when the index was last
+	 * updated.
+	 */
+	private long fileModified = 0;
+	/**
+	 * The blocks of the single log file, in order.
+	 */
+	private final List<Block> fileBlocks = new ArrayList<Block>();
+	/**
+	 * The blocks of the segments, by the names of the segments.
+	 */
+	private final Map<String, Block> segmentBlocks = new HashMap<String, Block>();
+
+	/**
+	 * Creates an empty index for the specified log file.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 */
+	private BloomIndex(String logFilename) {
+		this.logFilename = logFilename;
+	}
+
+	/**
+	 * Obtains the sidecar file of the specified log file.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @return The sidecar file.
+	 */
+	static File getFile(String logFilename) {
+		return new File(logFilename + ".bloom");
+	}
+
+	/**
+	 * Loads the index of the specified log file, and drops the filters that
+	 * no longer match the log.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @return The index, or null if there is no (readable) sidecar file.
+	 */
+	static BloomIndex load(String logFilename) {
+		File file = getFile(logFilename);
+		if (!file.exists()) return null;
+		BloomIndex index = new BloomIndex(logFilename);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION) return null;
+				index.bitsPerKey = in.readInt();
+				index.blockBytes = in.readInt();
+				index.fingerprint = in.readLong();
+				index.fileLength = in.readLong();
+				index.fileModified = in.readLong();
+				for (int i = in.readInt(); i > 0; i--) {
+					Block block = new Block(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), BloomFilter.read(in));
+					if (block.segment.isEmpty())
+						index.fileBlocks.add(block);
+					else
+						index.segmentBlocks.put(block.segment, block);
+				}
+			} finally {
+				in.close();
+			}
+			index.dropStale();
+		} catch (IOException e) {
+			err.println("Ignoring the unreadable Bloom filters in " + file + ": " + e);
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * Drops the filters that no longer match the log: those of segments that
+	 * changed or disappeared, and those of the single log file if it became
+	 * shorter or its start changed. If the single log file changed otherwise
+	 * since the index was last updated, its blocks are verified (see
+	 * {@link #verifyFileBlocks(File)}).
+	 *
+	 * @throws IOException
+	 *             Thrown if the log cannot be read.
+	 */
+	private void dropStale() throws IOException {
+		if (SegmentedLog.exists(logFilename)) {
+			Map<String, Long> sizes = new HashMap<String, Long>();
+			for (SegmentedLog.Segment segment : new SegmentedLog(logFilename).getSegments(null, null))
+				sizes.put(getSegmentKey(segment), segment.bytes);
+			for (Iterator<Block> i = segmentBlocks.values().iterator(); i.hasNext();) {
+				Block block = i.next();
+				if (!Long.valueOf(block.end).equals(sizes.get(block.segment))) i.remove();
+			}
+		}
+		File file = new File(logFilename);
+		if (fileBlocks.isEmpty()) return;
+		if (!file.isFile() || file.length() < fileBlocks.get(fileBlocks.size() - 1).end
+				|| computeFingerprint(file, fileBlocks.get(0).end) != fingerprint)
+			fileBlocks.clear();
+		else
+			verifyFileBlocks(file);
+	}
+
+	/**
+	 * Obtains the name of a segment without its compression suffix, which
+	 * does not change when the segment is compressed.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return The name.
+	 */
+	private static String getSegmentKey(SegmentedLog.Segment segment) {
+		return segment.name.replaceFirst("\\.(gz|deflate)$", "");
+	}
+
+	/**
+	 * Computes the fingerprint of the start of a log file, which lies within
+	 * its first block.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @param firstBlockEnd
+	 *            The end of the first block.
+	 * @return The fingerprint.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private static long computeFingerprint(File file, long firstBlockEnd) throws IOException {
+		byte[] start = new byte[(int) Math.min(FINGERPRINT_BYTES, firstBlockEnd)];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {in.readFully(start);}
+		finally {in.close();}
+		CRC32 crc = new CRC32();
+		crc.update(start);
+		return crc.getValue() << 32 | start.length;
+	}
+
+	/**
+	 * Computes the CRC-32 of a byte range of a file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param start
+	 *            The start of the range (inclusive).
+	 * @param end
+	 *            The end of the range (exclusive).
+	 * @return The CRC-32, or -1 if the file is shorter than the range.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private static long computeCrc(File file, long start, long end) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(start);
+			for (long remaining = end - start; remaining > 0;) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n == -1) return -1;
+				crc.update(buffer, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Drops the blocks of a single log file that changed since the index was
+	 * last updated. If the file has the same length and modification time,
+	 * all the blocks are kept. If it only grew, the last block is verified
+	 * against its CRC-32, and all the blocks are kept if it matches. Otherwise,
+	 * every block is verified, and the blocks are dropped from the first one
+	 * whose bytes changed on.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private void verifyFileBlocks(File file) throws IOException {
+		long length = file.length();
+		if (length == fileLength && file.lastModified() == fileModified) return;
+		Block last = fileBlocks.get(fileBlocks.size() - 1);
+		if (length > fileLength && computeCrc(file, last.start, last.end) == last.crc) return;
+		for (int i = 0; i < fileBlocks.size(); i++) {
+			Block block = fileBlocks.get(i);
+			if (computeCrc(file, block.start, block.end) != block.crc) {
+				fileBlocks.subList(i, fileBlocks.size()).clear();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Obtains the blocks of the single log file, in order.
+	 *
+	 * @return The blocks.
+	 */
+	List<Block> getFileBlocks() {
+		return fileBlocks;
+	}
+
+	/**
+	 * Obtains the block of a segment.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return The block, or null if the segment has no (current) filter.
+	 */
+	Block getSegmentBlock(SegmentedLog.Segment segment) {
+		Block block = segmentBlocks.get(getSegmentKey(segment));
+		return block != null && block.end == segment.bytes ? block : null;
+	}
+
+	/**
+	 * Adds all the prefixes of an entry's project path to a set of keys.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @param keys
+	 *            The keys.
+	 */
+	private static void addKeys(LogEntry entry, Set<String> keys) {
+		String path = LogQuery.normalisePath(entry.projectPath);
+		for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1))
+			keys.add(path.substring(0, slash));
+		keys.add(path);
+		keys.add(entry.getTopLevelProject());
+	}
+
+	/**
+	 * Creates a filter for a set of keys.
+	 *
+	 * @param keys
+	 *            The keys.
+	 * @return The filter.
+	 */
+	private BloomFilter createFilter(Set<String> keys) {
+		BloomFilter filter = new BloomFilter(keys.size(), bitsPerKey);
+		for (String key : keys)
+			filter.add(key);
+		return filter;
+	}
+
+	/**
+	 * Builds the filters of the new blocks and of the new or changed closed
+	 * segments, and writes the sidecar file.
+	 *
+	 * @return The number of built filters.
+	 * @throws IOException
+	 *             Thrown if the log cannot be read, or the sidecar written.
+	 */
+	int update() throws IOException {
+		int built = 0;
+		DateFormat df = new SimpleDateFormat(Config.dfS);
+		if (SegmentedLog.exists(logFilename)) {
+			SegmentedLog log = new SegmentedLog(logFilename);
+			List<SegmentedLog.Segment> segments = log.getSegments(null, null);
+			Set<String> present = new HashSet<String>();
+			for (SegmentedLog.Segment segment : segments) {
+				present.add(getSegmentKey(segment));
+				if (!log.isClosed(segment) || getSegmentBlock(segment) != null) continue;
+				Set<String> keys = new HashSet<String>();
+				BufferedReader br = log.openReader(segment);
+				try {
+					String line;
+					while ((line = br.readLine()) != null)
+						addKeys(line, df, keys);
+				} finally {
+					br.close();
+				}
+				segmentBlocks.put(getSegmentKey(segment), new Block(getSegmentKey(segment), 0, segment.bytes, 0, createFilter(keys)));
+				built++;
+			}
+			segmentBlocks.keySet().retainAll(present);
+			fileBlocks.clear(); // the single log file is not read any more
+		} else {
+			File file = new File(logFilename);
+			if (file.isFile()) {
+				built += updateFileBlocks(file, df);
+				fileLength = file.length();
+				fileModified = file.lastModified();
+			}
+		}
+		write();
+		return built;
+	}
+
+	/**
+	 * Parses a line, and adds the prefixes of its project path to a set of
+	 * keys. Lines that cannot be parsed are ignored.
+	 *
+	 * @param line
+	 *            The line.
+	 * @param df
+	 *            The date format.
+	 * @param keys
+	 *            The keys.
+	 */
+	private static void addKeys(String line, DateFormat df, Set<String> keys) {
+		line = line.trim();
+		if (line.isEmpty()) return;
+		try {addKeys(LogEntry.parse(line, df), keys);}
+		catch (ParseException e) {}
+	}
+
+	/**
+	 * Builds the filters of the complete blocks of a single log file that
+	 * follow the last indexed block.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @param df
+	 *            The date format.
+	 * @return The number of built filters.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private int updateFileBlocks(File file, DateFormat df) throws IOException {
+		long position = fileBlocks.isEmpty() ? 0 : fileBlocks.get(fileBlocks.size() - 1).end;
+		if (file.length() - position < blockBytes) return 0;
+		int built = 0;
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			long blockStart = position;
+			position = Math.max(0, position - 1);
+			fis.getChannel().position(position);
+			InputStream in = new BufferedInputStream(fis, 1 << 16);
+			int b;
+			if (blockStart > 0) // skip the line that belongs to the previous block
+				while ((b = in.read()) != -1) {
+					position++;
+					if (b == '\n') break;
+				}
+			Set<String> keys = new HashSet<String>();
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			while ((b = in.read()) != -1) {
+				position++;
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				addKeys(line.toString(), df, keys);
+				line.reset();
+				// the next line starts at the position; close the block(s) it passed
+				if (position >= blockStart + blockBytes) {
+					long blockEnd = blockStart + (position - blockStart) / blockBytes * blockBytes;
+					fileBlocks.add(new Block("", blockStart, blockEnd, computeCrc(file, blockStart, blockEnd),
+							createFilter(keys)));
+					keys.clear();
+					blockStart = blockEnd;
+					built++;
+				}
+			}
+		} finally {
+			fis.close();
+		}
+		if (!fileBlocks.isEmpty())
+			fingerprint = computeFingerprint(file, fileBlocks.get(0).end);
+		return built;
+	}
+
+	/**
+	 * Writes the sidecar file.
+	 *
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	private void write() throws IOException {
+		Main.writeFileAtomically(getFile(logFilename), false, new Main.ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				writeTo(new DataOutputStream(os));
+			}
+		});
+	}
+
+	/**
+	 * Writes the contents of the sidecar file.
+	 *
+	 * @param dos
+	 *            The stream to write to.
+	 * @throws IOException
+	 *             Thrown if writing fails.
+	 */
+	private void writeTo(DataOutputStream dos) throws IOException {
+		dos.writeInt(VERSION);
+			dos.writeInt(bitsPerKey);
+		dos.writeInt(blockBytes);
+		dos.writeLong(fingerprint);
+		dos.writeLong(fileLength);
+		dos.writeLong(fileModified);
+		List<Block> blocks = new ArrayList<Block>(fileBlocks);
+		blocks.addAll(segmentBlocks.values());
+		dos.writeInt(blocks.size());
+		for (Block block : blocks) {
+			dos.writeUTF(block.segment);
+			dos.writeLong(block.start);
+			dos.writeLong(block.end);
+			dos.writeLong(block.crc);
+			block.filter.write(dos);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Describes the index: the number and size of the filters, and their
+	 * estimated false positive rate.
+	 *
+	 * @return The description.
+	 */
+	String describe() {
+		List<Block> blocks = new ArrayList<Block>(fileBlocks);
+		blocks.addAll(segmentBlocks.values());
+		long bytes = 0, keys = 0;
+		double falsePositives = 0;
+		for (Block block : blocks) {
+			bytes += block.filter.getSizeBytes();
+			keys += block.filter.getCount();
+			falsePositives += block.filter.getFalsePositiveRate();
+		}
+		return String.format("%d filters (%d bits per path, %d byte blocks): %d paths, %d bytes, estimated false positive rate %.2f%%.",
+				blocks.size(), bitsPerKey, blockBytes, keys, bytes, blocks.isEmpty() ? 0 : 100 * falsePositives / blocks.size());
+	}
+
+	/**
+	 * The entry method, which creates or updates the Bloom filters of a log.
+	 * If the number of bits per path or the block size is specified, the
+	 * filters are rebuilt.
+	 *
+	 * @param args
+	 *            The name of the log file, optionally followed by the number
+	 *            of bits per project path and the block size in bytes.
+	 * @throws Exception
+	 *             Thrown if the filters cannot be built.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 3) {
+			err.println("Usage: java -cp bin rokclock.BloomIndex <logFilename> [<bitsPerPath> [<blockBytes>]]");
+			exit(1);
+		}
+		BloomIndex index = args.length == 1 ? load(args[0]) : null;
+		if (index == null) {
+			index = new BloomIndex(args[0]);
+			if (args.length >= 2) index.bitsPerKey = Integer.parseInt(args[1]);
+			if (args.length >= 3) index.blockBytes = Integer.parseInt(args[2]);
+			if (index.bitsPerKey < 1 || index.blockBytes < 1) {
+				err.println("The number of bits and the block size should be positive.");
+				exit(1);
+			}
+		}
+		long start = System.nanoTime();
+		int built = index.update();
+		out.printf("Built %d filters in %.1f s; %s%n", built, (System.nanoTime() - start) / 1e9, index.describe());
+	}
+}
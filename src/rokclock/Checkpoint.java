@@ -0,0 +1,202 @@
+package rokclock;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe checkpoint of the currently running log entry. The checkpoint
+ * is a tiny, fixed-size file that is memory-mapped, so updating it is just a
+ * few writes to memory that the operating system flushes to the disk. If the
+ * program is killed before the entry is written to the log, the entry can be
+ * recovered from the checkpoint on the next startup.
+ * <p>
+ * The slot layout is: a magic number, the start time, the time of the last
+ * heartbeat, the length of the project path, the project path (as a
+ * comma-separated UTF-8 string), and finally a CRC32 checksum of everything
+ * before it. An open entry is only recovered if the checksum matches, so a
+ * torn write is never turned into a bogus log entry.
+ */
+class Checkpoint {
+	/**
+	 * The size of the checkpoint file in bytes.
+	 */
+	private static final int SIZE = 4096;
+	/**
+	 * The magic number marking an open entry.
+	 */
+	private static final int OPEN = 0x524b4331;
+	/**
+	 * The offset of the start time.
+	 */
+	private static final int START_OFFSET = 4;
+	/**
+	 * The offset of the heartbeat time.
+	 */
+	private static final int HEARTBEAT_OFFSET = 12;
+	/**
+	 * The offset of the project path length.
+	 */
+	private static final int LENGTH_OFFSET = 20;
+	/**
+	 * The offset of the project path.
+	 */
+	private static final int PATH_OFFSET = 24;
+	/**
+	 * The maximal length of the encoded project path; the rest of the slot is
+	 * used for the checksum.
+	 */
+	private static final int MAX_PATH_LENGTH = SIZE - PATH_OFFSET - 8;
+
+	/**
+	 * An entry recovered from the checkpoint.
+	 */
+	static class Entry {
+		/**
+		 * The start time in milliseconds from epoch.
+		 */
+		final long startTime;
+		/**
+		 * The time of the last heartbeat in milliseconds from epoch.
+		 */
+		final long endTime;
+		/**
+		 * The full path to the sub-project.
+		 */
+		final String[] projectPath;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param startTime
+		 *            The start time.
+		 * @param endTime
+		 *            The time of the last heartbeat.
+		 * @param projectPath
+		 *            The project path.
+		 */
+		Entry(long startTime, long endTime, String[] projectPath) {
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.projectPath = projectPath;
+		}
+	}
+
+	/**
+	 * The memory-mapped slot.
+	 */
+	private final MappedByteBuffer slot;
+
+	/**
+	 * Opens (and, if necessary, creates) the checkpoint file.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @throws IOException
+	 *             Thrown if the file cannot be opened or mapped.
+	 */
+	Checkpoint(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(SIZE);
+			slot = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Records a newly started entry.
+	 *
+	 * @param startTime
+	 *            The start time in milliseconds from epoch.
+	 * @param projectPath
+	 *            The full path to the sub-project.
+	 */
+	synchronized void open(long startTime, String[] projectPath) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < projectPath.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(projectPath[i]);
+		}
+		byte[] path;
+		try {path = sb.toString().getBytes("UTF-8");}
+		catch (UnsupportedEncodingException e) {throw new RuntimeException(e);}
+		if (path.length > MAX_PATH_LENGTH) {
+			clear();
+			return;
+		}
+		slot.putInt(0, 0); // invalidate while writing
+		slot.putLong(START_OFFSET, startTime);
+		slot.putLong(HEARTBEAT_OFFSET, startTime);
+		slot.putInt(LENGTH_OFFSET, path.length);
+		for (int i = 0; i < path.length; i++)
+			slot.put(PATH_OFFSET + i, path[i]);
+		slot.putInt(0, OPEN);
+		updateChecksum();
+		slot.force();
+	}
+
+	/**
+	 * Records that the open entry is still running. Nothing happens if no
+	 * entry is open.
+	 *
+	 * @param time
+	 *            The current time in milliseconds from epoch.
+	 */
+	synchronized void heartbeat(long time) {
+		if (slot.getInt(0) != OPEN) return;
+		slot.putLong(HEARTBEAT_OFFSET, time);
+		updateChecksum();
+	}
+
+	/**
+	 * Clears the open entry, e.g. once it has been written to the log.
+	 */
+	synchronized void clear() {
+		slot.putInt(0, 0);
+		slot.force();
+	}
+
+	/**
+	 * Obtains the open entry left behind by a previous run, if any.
+	 *
+	 * @return The open entry, or null if there is none or it is corrupt.
+	 */
+	synchronized Entry recover() {
+		if (slot.getInt(0) != OPEN) return null;
+		int length = slot.getInt(LENGTH_OFFSET);
+		if (length < 0 || length > MAX_PATH_LENGTH) return null;
+		if (slot.getLong(PATH_OFFSET + length) != computeChecksum(length)) return null;
+		byte[] path = new byte[length];
+		for (int i = 0; i < length; i++)
+			path[i] = slot.get(PATH_OFFSET + i);
+		String pathS;
+		try {pathS = new String(path, "UTF-8");}
+		catch (UnsupportedEncodingException e) {throw new RuntimeException(e);}
+		return new Entry(slot.getLong(START_OFFSET), slot.getLong(HEARTBEAT_OFFSET), pathS.split(","));
+	}
+
+	/**
+	 * Stores the checksum of the slot right after the project path.
+	 */
+	private void updateChecksum() {
+		int length = slot.getInt(LENGTH_OFFSET);
+		slot.putLong(PATH_OFFSET + length, computeChecksum(length));
+	}
+
+	/**
+	 * Computes the checksum of the slot up to the end of the project path.
+	 *
+	 * @param length
+	 *            The length of the project path.
+	 * @return The checksum.
+	 */
+	private long computeChecksum(int length) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < PATH_OFFSET + length; i++)
+			crc.update(slot.get(i));
+		return crc.getValue();
+	}
+}
@@ -48,6 +48,14 @@ public class Config {
 	 * The options of window behaviour when the active time ends.
 	 */
 	enum Behaviour {MINIMISE, HIDE, SHOW}
+	/**
+	 * The options for splitting the log into segments.
+	 */
+	enum LogSegmentation {NONE, MONTHLY, SIZE}
+	/**
+	 * The options for compressing closed log segments.
+	 */
+	enum LogCompression {NONE, GZIP, DEFLATE}
 
 	/**
 	 * A constructor that reads the configuration file. If the configuration
@@ -59,6 +67,7 @@ public class Config {
 	 *             configuration file fails.
 	 */
 	public Config() throws IOException {
+		long loadStart = System.nanoTime();
 		File defaultConfigFile = new File(defaultConfigFilename);
 		File userConfigFile = new File(userConfigFilename);
 		if (!userConfigFile.exists())
@@ -66,6 +75,7 @@ public class Config {
 		defaultProperties.load(new FileInputStream(defaultConfigFile));
 		userProperties.load(new FileInputStream(userConfigFile));
 		USER_HOME = System.getProperty("user.home");
+		Metrics.INSTANCE.recordReload(loadStart);
 	}
 
 	/**
@@ -106,6 +116,77 @@ public class Config {
 		return processFilePath(get("logFilename", String.class));
 	}
 
+	/**
+	 * Obtains the port on the local machine that the headless daemon listens
+	 * on. Default is 7456.
+	 *
+	 * @return The port number.
+	 */
+	int getDaemonPort() {
+		return get("daemonPort", Integer.class);
+	}
+
+	/**
+	 * Obtains the time in milliseconds after which the Event Dispatch Thread
+	 * is considered stalled by the {@link EdtWatchdog}. Default is 500; zero
+	 * disables the watchdog.
+	 *
+	 * @return The threshold in milliseconds.
+	 */
+	int getEdtStallThresholdMillis() {
+		return get("edtStallThresholdMillis", Integer.class);
+	}
+
+	/**
+	 * Obtains the name of the file that the {@link EdtWatchdog} records stalls
+	 * into, which is the log file's name with the suffix ".diagnostics".
+	 *
+	 * @return The name of the diagnostics file.
+	 */
+	String getDiagnosticsFilename() {
+		return getLogFilename() + ".diagnostics";
+	}
+
+	/**
+	 * Obtains the port on the local machine that the query server listens on.
+	 * Default is 7457.
+	 *
+	 * @return The port number.
+	 */
+	int getQueryPort() {
+		return get("queryPort", Integer.class);
+	}
+
+	/**
+	 * Obtains the option for splitting the log into segments. Default is
+	 * {@link LogSegmentation#NONE}, i.e. a single log file.
+	 *
+	 * @return One of the {@link LogSegmentation} options.
+	 */
+	LogSegmentation getLogSegmentation() {
+		return get(LogSegmentation.class);
+	}
+
+	/**
+	 * Obtains the size in bytes after which a new log segment is started when
+	 * the log is split by size. Default is 1048576.
+	 *
+	 * @return The maximal segment size in bytes.
+	 */
+	int getLogSegmentMaxBytes() {
+		return get("logSegmentMaxBytes", Integer.class);
+	}
+
+	/**
+	 * Obtains the option for compressing closed log segments. Default is
+	 * {@link LogCompression#NONE}.
+	 *
+	 * @return One of the {@link LogCompression} options.
+	 */
+	LogCompression getLogCompression() {
+		return get(LogCompression.class);
+	}
+
 	/**
 	 * Obtains the current user's full name. This is used for logging purposes
 	 * on the hub only.
@@ -116,6 +197,17 @@ public class Config {
 		return get("fullname", String.class);
 	}
 
+	/**
+	 * Obtains the address of the ingestion server that log entries should be
+	 * sent to, in addition to the local log. Default is empty, i.e. none.
+	 *
+	 * @return The address as [host:]port, or null if none.
+	 */
+	String getIngestServer() {
+		String address = get("ingestServer", String.class);
+		return address == null || address.trim().isEmpty() ? null : address.trim();
+	}
+
 	/**
 	 * Obtains the interval in seconds of the active period. Default is 3600.
 	 *
@@ -363,7 +455,9 @@ public class Config {
 	private <T extends Enum<T>> T getPropertyFrom(Properties p, Class<T> c) {
 		String propertyName = c.getSimpleName();
 		propertyName = propertyName.substring(0, 1).toLowerCase() + propertyName.substring(1);
-		String value = getPropertyFrom(p, propertyName, String.class).toUpperCase();
+		String value = getPropertyFrom(p, propertyName, String.class);
+		if (value == null) return null;
+		value = value.toUpperCase();
 		T result = null;
 		try {result = Enum.valueOf(c, value);}
 		catch (IllegalArgumentException e) {
@@ -0,0 +1,347 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.Executor;
+
+/**
+ * A headless implementation of the time logging program. It runs the same
+ * state machine as {@link ProjectsTree}, and writes the same log, but it has no
+ * user interface; instead, it is controlled through a socket on the local
+ * machine, so it does not need AWT or Swing at all.
+ * <p>
+ * The protocol is line-based: each line sent to the socket is a command, and
+ * each command is answered with a single line. The commands are:
+ * <ul>
+ * <li><code>start &lt;project&gt;[,&lt;sub-project&gt;...]</code> starts
+ * recording the specified project path;</li>
+ * <li><code>stop</code> stops recording;</li>
+ * <li><code>status</code> reports the current state and project path;</li>
+ * <li><code>shutdown</code> stops recording and terminates the daemon.</li>
+ * </ul>
+ */
+class Daemon implements TimeLog {
+	/**
+	 * The enumeration of the possible states of the program.
+	 */
+	enum State {STOPPED, RUNNING, AUTOMATIC}
+
+	/**
+	 * The period in milliseconds between updates of the checkpoint.
+	 */
+	private static final long HEARTBEAT_MILLIS = 5000;
+	/**
+	 * A link to the configuration object.
+	 */
+	private final Config config;
+	/**
+	 * The writer of log entries.
+	 */
+	private final LogWriter logWriter;
+	/**
+	 * The scheduler used for triggering events after specified periods. Its
+	 * callbacks are run directly on its own thread, outside of its lock.
+	 */
+	private final Scheduler scheduler = new Scheduler(new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	});
+	/**
+	 * The listener that performs the periodic action when a scheduled period
+	 * ends.
+	 */
+	private final Scheduler.Listener periodicListener = new Scheduler.Listener() {
+		@Override
+		public void periodEnded(long endTime) {
+			synchronized (Daemon.this) {
+				periodEndTime = endTime;
+				try {doPeriodicAction();}
+				finally {periodEndTime = Long.MAX_VALUE;}
+			}
+		}
+	};
+	/**
+	 * The crash-safe checkpoint of the currently running entry.
+	 */
+	private final Checkpoint checkpoint;
+	/**
+	 * The current state of the program.
+	 */
+	private State state = State.STOPPED;
+	/**
+	 * The currently running project path. Can be null.
+	 */
+	private String[] currentProjectPath = null;
+	/**
+	 * The time that the last (can be current) activity started, in milliseconds
+	 * from epoch.
+	 */
+	private long startTime = 0;
+	/**
+	 * The time at which the period that triggered the current periodic action
+	 * ended, in milliseconds from epoch. Outside of a periodic action, it is
+	 * {@link Long#MAX_VALUE}.
+	 */
+	private long periodEndTime = Long.MAX_VALUE;
+
+	/**
+	 * Creates the daemon, and recovers any entry left behind by a previous run.
+	 *
+	 * @param config
+	 *            The configuration object.
+	 * @throws IOException
+	 *             Thrown if the checkpoint cannot be opened.
+	 */
+	Daemon(Config config) throws IOException {
+		this.config = config;
+		logWriter = new LogWriter(config);
+		checkpoint = new Checkpoint(new File(config.getLogFilename() + ".checkpoint"));
+		Checkpoint.Entry entry = checkpoint.recover();
+		if (entry != null) {
+			logWriter.write(entry.startTime, entry.endTime, entry.projectPath);
+			checkpoint.clear();
+		}
+		scheduler.repeat(HEARTBEAT_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				checkpoint.heartbeat(System.currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Accepts connections on the local socket, and processes their commands
+	 * one connection at a time. This method only returns once the daemon is
+	 * shut down.
+	 *
+	 * @throws IOException
+	 *             Thrown if the socket cannot be opened.
+	 */
+	void serve() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(config.getDaemonPort(), 5, InetAddress.getByName(null));
+		out.println("RokClock daemon listening on port " + serverSocket.getLocalPort() + ".");
+		try {
+			while (true) {
+				Socket socket = serverSocket.accept();
+				try {
+					if (!handle(socket)) return;
+				} catch (IOException e) {
+					displayProblem(e);
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Processes the commands sent over a single connection.
+	 *
+	 * @param socket
+	 *            The connection.
+	 * @return False if the daemon should shut down.
+	 * @throws IOException
+	 *             Thrown if the connection fails.
+	 */
+	private boolean handle(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		PrintWriter reply = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty()) continue;
+			String command = line, argument = "";
+			int space = line.indexOf(' ');
+			if (space != -1) {
+				command = line.substring(0, space);
+				argument = line.substring(space + 1).trim();
+			}
+			try {
+				if (command.equals("start") && !argument.isEmpty()) {
+					startRecording(argument.split("\\s*,\\s*"));
+					reply.println("OK " + getStatus());
+				} else if (command.equals("stop")) {
+					stopRecording();
+					reply.println("OK " + getStatus());
+				} else if (command.equals("status")) {
+					reply.println("OK " + getStatus());
+				} else if (command.equals("shutdown")) {
+					stopRecording();
+					reply.println("OK shutting down");
+					return false;
+				} else
+					reply.println("ERROR unknown command: " + line);
+			} catch (Exception e) {
+				displayProblem(e);
+				reply.println("ERROR " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Describes the current state and project path.
+	 *
+	 * @return The description.
+	 */
+	private synchronized String getStatus() {
+		if (state == State.STOPPED) return State.STOPPED.toString();
+		StringBuilder sb = new StringBuilder(state.toString()).append(' ');
+		for (int i = 0; i < currentProjectPath.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(currentProjectPath[i]);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized void startRecording(String[] projectPath) throws Exception {
+		if (state != State.STOPPED) stopRecording();
+		currentProjectPath = projectPath;
+		startTime = System.currentTimeMillis();
+		checkpoint.open(startTime, projectPath);
+		switchToActiveState(projectPath);
+	}
+
+	@Override
+	public synchronized void stopRecording() throws Exception {
+		switch (state) {
+		case STOPPED:
+			return;
+		case AUTOMATIC:
+			scheduler.cancel();
+			switch (config.getAutoCountTowards()) {
+			case NOTHING:
+				break;
+			case UNKNOWN:
+				currentProjectPath = new String[] {"unknown"};
+				writeLogEntry(startTime, System.currentTimeMillis());
+				break;
+			case PREVIOUS:
+				writeLogEntry(startTime, System.currentTimeMillis());
+			}
+			break;
+		case RUNNING:
+			writeLogEntry(startTime, Math.min(periodEndTime, System.currentTimeMillis()));
+		}
+		switchToStoppedState();
+	}
+
+	@Override
+	public synchronized void doPeriodicAction() {
+		try {
+			if (state == State.AUTOMATIC) {
+				scheduler.cancel();
+				if (config.getWriteTimeouts()) {
+					currentProjectPath = new String[] {"(timed out)"};
+					writeLogEntry(startTime, startTime);
+				}
+				switchToStoppedState();
+			} else if (state == State.RUNNING) {
+				stopRecording();
+				startRecording(currentProjectPath);
+				switchToSemiActiveState();
+			}
+		} catch (Exception ex) {displayProblem(ex);}
+		unminimiseOrShow();
+	}
+
+	@Override
+	public void writeLogEntry(long startTime, long endTime) throws Exception {
+		logWriter.write(startTime, endTime, currentProjectPath);
+	}
+
+	@Override
+	public synchronized void switchToActiveState(String[] projectPath) {
+		scheduler.schedule(config.getIntervalInSeconds() * 1000L, periodicListener);
+		state = State.RUNNING;
+	}
+
+	@Override
+	public synchronized void switchToSemiActiveState() {
+		scheduler.schedule(config.getWaitInSeconds() * 1000L, periodicListener);
+		checkpoint.clear();
+		state = State.AUTOMATIC;
+	}
+
+	@Override
+	public synchronized void switchToStoppedState() {
+		checkpoint.clear();
+		state = State.STOPPED;
+	}
+
+	@Override
+	public void minimiseOrHide() {
+		// nothing to hide
+	}
+
+	@Override
+	public void unminimiseOrShow() {
+		out.println(config.getTitle() + ": " + getStatus());
+	}
+
+	@Override
+	public void displayProblem(Exception e) {
+		err.println("A problem has occurred: " + e.getMessage());
+	}
+
+	/**
+	 * Sends a single command to a running daemon, and prints its reply.
+	 *
+	 * @param port
+	 *            The port of the daemon.
+	 * @param command
+	 *            The command to send.
+	 * @throws IOException
+	 *             Thrown if the daemon cannot be reached.
+	 */
+	private static void sendCommand(int port, String command) throws IOException {
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		try {
+			PrintWriter request = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			request.println(command);
+			socket.shutdownOutput();
+			String line;
+			while ((line = in.readLine()) != null)
+				out.println(line);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * The entry method. Without arguments, it starts the daemon; otherwise, the
+	 * arguments form a command that is sent to the running daemon.
+	 *
+	 * @param args
+	 *            Either nothing, or a command, e.g. "start COW,CA-5644".
+	 * @throws Exception
+	 *             Thrown if the daemon cannot be started or reached.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		Config config = new Config();
+		if (args.length == 0) {
+			Metrics.register();
+			new Daemon(config).serve();
+			return;
+		}
+		StringBuilder command = new StringBuilder();
+		for (String arg : args)
+			command.append(command.length() == 0 ? "" : " ").append(arg);
+		try {sendCommand(config.getDaemonPort(), command.toString());}
+		catch (ConnectException e) {
+			err.println("The RokClock daemon is not running on port " + config.getDaemonPort() + ".");
+			exit(1);
+		}
+	}
+}
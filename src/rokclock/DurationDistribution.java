@@ -0,0 +1,305 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * The distributions of the durations of entries (work sessions) by project
+ * path, e.g. to tell how long the typical session on a project is, and how
+ * fragmented the work on it is. Every duration is recorded, in seconds, into
+ * a fixed-memory {@link LogHistogram} of its project path, so the memory used
+ * (11 KB per path) only depends on the number of project paths, never on the
+ * number of entries; percentiles are reported with a relative error of at most
+ * 2%. Durations of up to 2^{@value #DURATION_BITS} seconds (over four years)
+ * are tracked.
+ * Recording is thread-safe, and distributions can be merged across users and
+ * files.
+ * <p>
+ * The file format is versioned text, gzip-compressed if the file name ends
+ * with ".gz". After the header line, every line contains a project path and
+ * its encoded histogram (see {@link LogHistogram#encode()}), separated by a
+ * tab.
+ */
+class DurationDistribution {
+	/**
+	 * The header of the current version of the file format.
+	 */
+	static final String HEADER = "rokclock-distribution 1";
+	/**
+	 * The precision of the histograms (about 2% relative error).
+	 */
+	private static final int PRECISION_BITS = 6;
+	/**
+	 * The number of bits of the tracked durations in seconds; longer ones are
+	 * counted in the highest bucket of the histograms.
+	 */
+	static final int DURATION_BITS = 27;
+	/**
+	 * The sessions shorter than this many seconds are counted as fragmented
+	 * work.
+	 */
+	static final long SHORT_SESSION_SECONDS = 15 * 60;
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+	/**
+	 * The histograms by project path.
+	 */
+	private final ConcurrentMap<String, LogHistogram> histograms = new ConcurrentHashMap<String, LogHistogram>();
+
+	/**
+	 * Creates an empty histogram of durations in seconds, which tracks the
+	 * durations below 2^{@link #DURATION_BITS} seconds.
+	 *
+	 * @param precisionBits
+	 *            The number of bits of precision.
+	 * @return The histogram.
+	 */
+	static LogHistogram createHistogram(int precisionBits) {
+		return new LogHistogram(precisionBits, Math.max(DURATION_BITS, precisionBits + 1));
+	}
+
+	/**
+	 * Obtains the histogram of a project path, creating it if necessary.
+	 *
+	 * @param projectPath
+	 *            The project path.
+	 * @return The histogram.
+	 */
+	private LogHistogram histogram(String projectPath) {
+		LogHistogram h = histograms.get(projectPath);
+		if (h == null) {
+			LogHistogram created = createHistogram(PRECISION_BITS);
+			h = histograms.putIfAbsent(projectPath, created);
+			if (h == null) h = created;
+		}
+		return h;
+	}
+
+	/**
+	 * Records the duration of an entry that overlaps with the filter's time
+	 * period. The whole duration is recorded, so that sessions crossing the
+	 * boundaries of the period are not cut short.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @param filter
+	 *            The filter whose time period the entry should overlap with.
+	 */
+	void record(LogEntry entry, LogFilter filter) {
+		if (entry.getDurationWithin(filter.getFromTime(), filter.getToTime()) < 0) return;
+		histogram(entry.projectPath).record((entry.endTime - entry.startTime) / 1000);
+	}
+
+	/**
+	 * Adds all the durations of another distribution to this one.
+	 *
+	 * @param other
+	 *            The distribution to merge.
+	 */
+	void merge(DurationDistribution other) {
+		for (Map.Entry<String, LogHistogram> entry : other.histograms.entrySet())
+			histogram(entry.getKey()).merge(entry.getValue());
+	}
+
+	/**
+	 * Obtains the histograms of the durations in seconds.
+	 *
+	 * @return The map from project paths to histograms, ordered by path.
+	 */
+	SortedMap<String, LogHistogram> getHistograms() {
+		return new TreeMap<String, LogHistogram>(histograms);
+	}
+
+	/**
+	 * Creates a consumer that records the entries accepted by a filter, e.g.
+	 * to record the entries of a stream while they are summed up.
+	 *
+	 * @param filter
+	 *            The filter whose time period the entries should overlap
+	 *            with.
+	 * @return The consumer.
+	 */
+	Consumer<LogEntry> recorder(final LogFilter filter) {
+		return new Consumer<LogEntry>() {
+			@Override
+			public void accept(LogEntry entry) {
+				record(entry, filter);
+			}
+		};
+	}
+
+	/**
+	 * Writes the percentiles of every project path in the CSV style of the
+	 * {@link Analyser}: the team, the number of sessions, the mean, the
+	 * median, the 90th and 99th percentiles and the longest session in
+	 * minutes, the percentage of sessions shorter than
+	 * {@link #SHORT_SESSION_SECONDS}, and the project path.
+	 *
+	 * @param out
+	 *            The output.
+	 * @param team
+	 *            The team.
+	 */
+	void writePercentiles(PrintStream out, String team) {
+		for (Map.Entry<String, LogHistogram> entry : getHistograms().entrySet()) {
+			LogHistogram h = entry.getValue();
+			out.printf("%s, %d, %.1f, %.1f, %.1f, %.1f, %.1f, %.0f%%, %s" + nl, team, h.getCount(), h.getMean() / 60,
+					h.getPercentile(50) / 60.0, h.getPercentile(90) / 60.0, h.getPercentile(99) / 60.0,
+					h.getMax() / 60.0, getShortPercentage(h), entry.getKey());
+		}
+	}
+
+	/**
+	 * Creates a readable table of the percentiles of every project path, with
+	 * the durations in hours and minutes.
+	 *
+	 * @return The table, or a note if there are no sessions.
+	 */
+	String getReport() {
+		if (histograms.isEmpty()) return "There are no sessions in the selected period." + nl;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%8s %7s %7s %7s %7s %7s %7s  %s" + nl,
+				"sessions", "mean", "median", "p90", "p99", "longest", "<15min", "project"));
+		for (Map.Entry<String, LogHistogram> entry : getHistograms().entrySet()) {
+			LogHistogram h = entry.getValue();
+			sb.append(String.format("%8d %7s %7s %7s %7s %7s %6.0f%%  %s" + nl, h.getCount(),
+					formatDuration((long) h.getMean()), formatDuration(h.getPercentile(50)),
+					formatDuration(h.getPercentile(90)), formatDuration(h.getPercentile(99)),
+					formatDuration(h.getMax()), getShortPercentage(h), entry.getKey()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Computes the percentage of sessions shorter than
+	 * {@link #SHORT_SESSION_SECONDS}.
+	 *
+	 * @param h
+	 *            The histogram of the durations in seconds.
+	 * @return The percentage.
+	 */
+	private static double getShortPercentage(LogHistogram h) {
+		return h.getCount() == 0 ? 0 : 100.0 * h.getCountBelow(SHORT_SESSION_SECONDS) / h.getCount();
+	}
+
+	/**
+	 * Formats a duration as hours and minutes.
+	 *
+	 * @param seconds
+	 *            The duration in seconds.
+	 * @return The formatted duration, e.g. "1:05".
+	 */
+	private static String formatDuration(long seconds) {
+		long minutes = Math.round(seconds / 60.0);
+		return String.format("%d:%02d", minutes / 60, minutes % 60);
+	}
+
+	/**
+	 * Reads and merges many distribution files.
+	 *
+	 * @param files
+	 *            The distribution files.
+	 * @return The merged distribution.
+	 * @throws IOException
+	 *             Thrown if a file cannot be read.
+	 */
+	static DurationDistribution mergeAll(List<File> files) throws IOException {
+		DurationDistribution distribution = new DurationDistribution();
+		for (File file : files)
+			distribution.merge(read(file));
+		return distribution;
+	}
+
+	/**
+	 * Reads a distribution file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The distribution.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read, or is not a distribution
+	 *             file of a supported version.
+	 */
+	static DurationDistribution read(File file) throws IOException {
+		DurationDistribution distribution = new DurationDistribution();
+		BufferedReader br = Main.openVersionedFile(file, HEADER, "a distribution file");
+		try {
+			String line;
+			int lineNumber = 1;
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) continue;
+				try {
+					int tab = line.indexOf('\t');
+					distribution.histogram(line.substring(0, tab)).merge(LogHistogram.decode(line.substring(tab + 1)));
+				} catch (RuntimeException e) {
+					throw new IOException("Could not read line " + lineNumber + " of " + file + ": " + line, e);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return distribution;
+	}
+
+	/**
+	 * Writes the distribution into a file, compressing it if its name ends
+	 * with ".gz". The file is only replaced once it is written completely.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	void write(File file) throws IOException {
+		Main.writeFileAtomically(file, file.getName().endsWith(".gz"), new Main.ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				Writer w = new OutputStreamWriter(os, "UTF-8");
+				w.write(HEADER + nl);
+				for (Map.Entry<String, LogHistogram> entry : getHistograms().entrySet())
+					w.write(entry.getKey().replace('\t', ' ') + "\t" + entry.getValue().encode() + nl);
+				w.flush();
+			}
+		});
+	}
+
+	/**
+	 * The entry method, which merges distribution files, optionally writes
+	 * the merged distribution, and writes the percentiles by project path to
+	 * the standard output (see {@link #writePercentiles(PrintStream, String)}).
+	 *
+	 * @param args
+	 *            Optionally "-o" and the name of the merged distribution
+	 *            file, followed by the names of the distribution files to
+	 *            merge.
+	 * @throws Exception
+	 *             Thrown if merging fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		File output = null;
+		if (args.length >= 2 && args[0].equals("-o")) {
+			output = new File(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length == 0) {
+			err.println("Usage: java -cp bin rokclock.DurationDistribution [-o <outputDistribution>] <distribution>...");
+			exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (String arg : args)
+			files.add(new File(arg));
+		DurationDistribution distribution = mergeAll(files);
+		if (output != null)
+			distribution.write(output);
+		distribution.writePercentiles(out, new Config().getTeam());
+	}
+}
@@ -0,0 +1,141 @@
+package rokclock;
+
+import java.awt.EventQueue;
+import java.io.*;
+import java.text.*;
+import java.util.Date;
+
+/**
+ * A watchdog that measures the responsiveness of the Event Dispatch Thread
+ * (EDT). It regularly posts a probe event to the EDT, and if the probe is not
+ * run within the configured threshold, it captures the stack of the EDT (i.e.
+ * what is blocking it). Once the EDT runs the probe, the stall is recorded
+ * into a rolling diagnostics file, together with its duration and the
+ * captured stack.
+ * <p>
+ * The diagnostics file is rolled over to a single backup (with the suffix
+ * ".1") once it reaches {@link #MAX_FILE_BYTES}.
+ */
+class EdtWatchdog implements Runnable {
+	/**
+	 * The period in milliseconds between probes.
+	 */
+	private static final long PROBE_MILLIS = 100;
+	/**
+	 * The size in bytes after which the diagnostics file is rolled over.
+	 */
+	private static final long MAX_FILE_BYTES = 256 * 1024;
+	/**
+	 * A platform-independent newline.
+	 */
+	private final String nl = System.getProperty("line.separator");
+	/**
+	 * The diagnostics file.
+	 */
+	private final File file;
+	/**
+	 * The time in milliseconds after which the EDT is considered stalled.
+	 */
+	private final long thresholdMillis;
+	/**
+	 * The EDT, as seen by the first probe; it changes if the EDT is restarted.
+	 */
+	private volatile Thread edt;
+	/**
+	 * The time (from {@link System#nanoTime()}) at which the pending probe was
+	 * posted, or 0 if no probe is pending.
+	 */
+	private volatile long pendingSince = 0;
+
+	/**
+	 * A simple constructor.
+	 *
+	 * @param file
+	 *            The diagnostics file.
+	 * @param thresholdMillis
+	 *            The time in milliseconds after which the EDT is considered
+	 *            stalled.
+	 */
+	EdtWatchdog(File file, long thresholdMillis) {
+		this.file = file;
+		this.thresholdMillis = thresholdMillis;
+	}
+
+	/**
+	 * Starts the watchdog on a background daemon thread, unless the threshold
+	 * is not positive.
+	 */
+	void start() {
+		if (thresholdMillis <= 0) return;
+		Thread t = new Thread(this, "edt-watchdog");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * The main loop of the watchdog thread.
+	 */
+	@Override
+	public void run() {
+		final long thresholdNanos = thresholdMillis * 1000000;
+		while (true) {
+			long posted = System.nanoTime();
+			pendingSince = posted;
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					edt = Thread.currentThread();
+					pendingSince = 0;
+				}
+			});
+			StackTraceElement[] stack = null;
+			try {
+				while (pendingSince == posted) {
+					Thread.sleep(PROBE_MILLIS);
+					Thread thread = edt;
+					if (stack == null && thread != null && System.nanoTime() - posted >= thresholdNanos)
+						stack = thread.getStackTrace();
+				}
+				if (stack != null)
+					record(posted, (System.nanoTime() - posted) / 1000000, stack);
+				Thread.sleep(PROBE_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records a single stall into the diagnostics file.
+	 *
+	 * @param posted
+	 *            The time (from {@link System#nanoTime()}) at which the stall
+	 *            started.
+	 * @param durationMillis
+	 *            The duration of the stall in milliseconds.
+	 * @param stack
+	 *            The stack of the EDT captured during the stall.
+	 */
+	private void record(long posted, long durationMillis, StackTraceElement[] stack) {
+		long startTime = System.currentTimeMillis() - (System.nanoTime() - posted) / 1000000;
+		DateFormat df = new SimpleDateFormat(Config.dfS);
+		StringBuilder sb = new StringBuilder();
+		sb.append("EDT stalled at ").append(df.format(new Date(startTime)))
+		.append(" for ").append(durationMillis).append(" ms:").append(nl);
+		for (StackTraceElement element : stack)
+			sb.append("\tat ").append(element).append(nl);
+		sb.append(nl);
+		try {
+			if (file.length() >= MAX_FILE_BYTES) {
+				File backup = new File(file.getPath() + ".1");
+				backup.delete();
+				file.renameTo(backup);
+			}
+			FileOutputStream fos = new FileOutputStream(file, true);
+			try {fos.write(sb.toString().getBytes());}
+			finally {fos.close();}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package rokclock;
+
+import jdk.jfr.*;
+
+/**
+ * The Java Flight Recorder events emitted by the application. They can be
+ * recorded by starting the program with
+ * <code>-XX:StartFlightRecording=filename=rokclock.jfr</code>, and inspected
+ * with JDK Mission Control or <code>jfr print --categories RokClock</code>.
+ * <p>
+ * When no recording is running, the events are disabled, and emitting them
+ * only costs a check of a flag; the (short-lived) event objects are usually
+ * optimised away by the JIT compiler.
+ */
+class FlightEvents {
+	/**
+	 * A state transition of the time tracker, e.g. starting to record, or the
+	 * end of an active period.
+	 */
+	@Name("rokclock.StateTransition")
+	@Label("State Transition")
+	@Category("RokClock")
+	@Description("A state transition of the time tracker")
+	static class StateTransition extends Event {
+		@Label("Action")
+		String action;
+		@Label("From State")
+		String fromState;
+		@Label("To State")
+		String toState;
+		@Label("Project")
+		String project;
+
+		/**
+		 * Starts timing a transition.
+		 *
+		 * @param action
+		 *            The name of the action causing the transition.
+		 * @param fromState
+		 *            The state before the transition.
+		 */
+		StateTransition(String action, Object fromState) {
+			if (!isEnabled()) return;
+			this.action = action;
+			this.fromState = String.valueOf(fromState);
+			begin();
+		}
+
+		/**
+		 * Finishes timing the transition, and commits the event if it is
+		 * being recorded.
+		 *
+		 * @param toState
+		 *            The state after the transition.
+		 * @param projectPath
+		 *            The current project path. Can be null.
+		 */
+		void finish(Object toState, String[] projectPath) {
+			if (!isEnabled()) return;
+			end();
+			if (!shouldCommit()) return;
+			this.toState = String.valueOf(toState);
+			project = join(projectPath);
+			commit();
+		}
+	}
+
+	/**
+	 * The writing of a single log entry.
+	 */
+	@Name("rokclock.LogWrite")
+	@Label("Log Write")
+	@Category("RokClock")
+	@Description("The writing of a single log entry")
+	static class LogWrite extends Event {
+		@Label("Project")
+		String project;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Starts timing a write.
+		 */
+		LogWrite() {
+			if (isEnabled()) begin();
+		}
+
+		/**
+		 * Finishes timing the write, and commits the event if it is being
+		 * recorded.
+		 *
+		 * @param projectPath
+		 *            The project path written.
+		 * @param bytes
+		 *            The number of bytes written.
+		 */
+		void finish(String[] projectPath, long bytes) {
+			if (!isEnabled()) return;
+			end();
+			if (!shouldCommit()) return;
+			project = join(projectPath);
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+	/**
+	 * A single run of the analyser over a log.
+	 */
+	@Name("rokclock.Analysis")
+	@Label("Analysis")
+	@Category("RokClock")
+	@Description("A single run of the analyser over a log")
+	static class Analysis extends Event {
+		@Label("Log File")
+		String file;
+		@Label("From")
+		@Timestamp
+		long from;
+		@Label("To")
+		@Timestamp
+		long to;
+		@Label("Lines")
+		long lines;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Starts timing an analysis.
+		 */
+		Analysis() {
+			if (isEnabled()) begin();
+		}
+
+		/**
+		 * Finishes timing the analysis, and commits the event if it is being
+		 * recorded.
+		 *
+		 * @param file
+		 *            The name of the log file.
+		 * @param from
+		 *            The start of the analysed period in milliseconds from
+		 *            epoch, or 0 if unbounded.
+		 * @param to
+		 *            The end of the analysed period in milliseconds from
+		 *            epoch, or 0 if unbounded.
+		 * @param lines
+		 *            The number of lines read.
+		 * @param bytes
+		 *            The number of bytes read.
+		 */
+		void finish(String file, long from, long to, long lines, long bytes) {
+			if (!isEnabled()) return;
+			end();
+			if (!shouldCommit()) return;
+			this.file = file;
+			this.from = from;
+			this.to = to;
+			this.lines = lines;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+	/**
+	 * Joins a project path with commas, as in the log.
+	 *
+	 * @param projectPath
+	 *            The project path. Can be null.
+	 * @return The joined path, or null.
+	 */
+	private static String join(String[] projectPath) {
+		if (projectPath == null) return null;
+		StringBuilder sb = new StringBuilder();
+		for (String node : projectPath)
+			sb.append(sb.length() == 0 ? "" : ",").append(node);
+		return sb.toString();
+	}
+}
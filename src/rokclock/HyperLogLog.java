@@ -0,0 +1,153 @@
+package rokclock;
+
+import java.util.Base64;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct strings added
+ * to it in a fixed amount of memory: 2^precisionBits registers of a byte each.
+ * The standard error of the estimate is about 1.04 / sqrt(2^precisionBits),
+ * e.g. 0.8% for 16 KB; small counts are estimated by linear counting, which is
+ * nearly exact. Sketches with the same precision can be merged, giving the
+ * sketch of the union.
+ * <p>
+ * The sketch is not thread-safe.
+ */
+class HyperLogLog {
+	/**
+	 * The smallest supported precision.
+	 */
+	static final int MIN_PRECISION_BITS = 4;
+	/**
+	 * The largest supported precision.
+	 */
+	static final int MAX_PRECISION_BITS = 18;
+	/**
+	 * The number of bits of the hash used to select a register.
+	 */
+	private final int precisionBits;
+	/**
+	 * The registers: the largest number of leading zeros (plus one) seen in
+	 * the remaining bits of the hashes selecting each register.
+	 */
+	private final byte[] registers;
+
+	/**
+	 * Creates an empty sketch with the specified precision.
+	 *
+	 * @param precisionBits
+	 *            The number of bits of precision (between
+	 *            {@link #MIN_PRECISION_BITS} and {@link #MAX_PRECISION_BITS}).
+	 */
+	HyperLogLog(int precisionBits) {
+		if (precisionBits < MIN_PRECISION_BITS || precisionBits > MAX_PRECISION_BITS)
+			throw new IllegalArgumentException("Precision should be between " + MIN_PRECISION_BITS + " and "
+					+ MAX_PRECISION_BITS + " bits: " + precisionBits);
+		this.precisionBits = precisionBits;
+		registers = new byte[1 << precisionBits];
+	}
+
+	/**
+	 * Computes the smallest precision whose standard error is within the
+	 * specified bound, capped at {@link #MAX_PRECISION_BITS}.
+	 *
+	 * @param standardError
+	 *            The relative standard error, e.g. 0.01 for 1%.
+	 * @return The number of bits of precision.
+	 */
+	static int precisionFor(double standardError) {
+		int bits = (int) Math.ceil(2 * Math.log(1.04 / standardError) / Math.log(2));
+		return Math.max(MIN_PRECISION_BITS, Math.min(MAX_PRECISION_BITS, bits));
+	}
+
+	/**
+	 * Obtains the relative standard error of the estimates.
+	 *
+	 * @return The standard error, e.g. 0.01 for 1%.
+	 */
+	double getStandardError() {
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+	/**
+	 * Obtains the size of the registers in bytes.
+	 *
+	 * @return The size.
+	 */
+	int getSizeBytes() {
+		return registers.length;
+	}
+
+	/**
+	 * Adds a string.
+	 *
+	 * @param key
+	 *            The string.
+	 */
+	void add(String key) {
+		long h = BloomFilter.hash(key);
+		int index = (int) (h >>> 64 - precisionBits);
+		byte rank = (byte) (Long.numberOfLeadingZeros(h << precisionBits | 1L << precisionBits - 1) + 1);
+		if (rank > registers[index]) registers[index] = rank;
+	}
+
+	/**
+	 * Estimates the number of distinct strings added.
+	 *
+	 * @return The estimate.
+	 */
+	long estimate() {
+		int m = registers.length, zeros = 0;
+		double sum = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) zeros++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log(1.0 * m / zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Adds all the strings added to another sketch to this one.
+	 *
+	 * @param other
+	 *            The sketch to merge; it should have the same precision.
+	 */
+	void merge(HyperLogLog other) {
+		if (other.precisionBits != precisionBits)
+			throw new IllegalArgumentException("Cannot merge sketches of different precision.");
+		for (int i = 0; i < registers.length; i++)
+			if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+	}
+
+	/**
+	 * Encodes the sketch as a single line of text: the precision and the
+	 * registers in Base64, separated by a colon.
+	 *
+	 * @return The encoded sketch.
+	 */
+	String encode() {
+		return precisionBits + ":" + Base64.getEncoder().encodeToString(registers);
+	}
+
+	/**
+	 * Decodes a sketch encoded by {@link #encode()}.
+	 *
+	 * @param s
+	 *            The encoded sketch.
+	 * @return The sketch.
+	 * @throws IllegalArgumentException
+	 *             Thrown if the string is not an encoded sketch.
+	 */
+	static HyperLogLog decode(String s) {
+		int colon = s.indexOf(':');
+		HyperLogLog sketch = new HyperLogLog(Integer.parseInt(s.substring(0, colon)));
+		byte[] registers = Base64.getDecoder().decode(s.substring(colon + 1));
+		if (registers.length != sketch.registers.length)
+			throw new IllegalArgumentException("Expected " + sketch.registers.length + " registers: " + registers.length);
+		System.arraycopy(registers, 0, sketch.registers, 0, registers.length);
+		return sketch;
+	}
+}
@@ -0,0 +1,627 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import rokclock.Config.LogSegmentation;
+
+/**
+ * A server that collects log entries from many trackers over TCP and writes
+ * them into per-user segmented logs in a hub directory, so that the trackers
+ * do not contend for files on a shared network drive.
+ * <p>
+ * The protocol is a stream of frames in both directions. A request frame is a
+ * 4-byte big-endian length followed by that many bytes of UTF-8 text: the
+ * user's name, a newline, optionally the client's identifier, a comma, the
+ * entry's sequence number and a newline, and finally the log entry. The server
+ * remembers the last committed sequence number of every client, and
+ * acknowledges entries with a sequence number that is not larger without
+ * storing them again. Once the entry has been committed
+ * to the disk, the server replies with a single byte: {@link #ACK} if the entry
+ * was stored, {@link #NACK} if it was rejected as invalid, or {@link #RETRY}
+ * if it could not be stored (e.g. the disk is full) and should be sent again
+ * later. The replies on a connection are always sent in the order of the
+ * frames.
+ * <p>
+ * The connections are served by a single non-blocking selector thread. The
+ * parsed entries are handed over to a single writer thread, which commits them
+ * in groups: all the entries that arrive while a group is being written are
+ * written (and synced) together in the next group, and only then acknowledged.
+ * Once an entry on a connection could not be committed, all the later entries
+ * on that connection are answered with {@link #RETRY} as well, so that the
+ * sequence numbers are always committed in order.
+ */
+class IngestServer {
+	/**
+	 * The reply byte for a committed entry.
+	 */
+	static final byte ACK = 'A';
+	/**
+	 * The reply byte for a rejected entry.
+	 */
+	static final byte NACK = 'N';
+	/**
+	 * The reply byte for an entry that could not be committed.
+	 */
+	static final byte RETRY = 'R';
+	/**
+	 * The maximal size of a single frame's payload in bytes.
+	 */
+	static final int MAX_FRAME = 64 * 1024;
+	/**
+	 * The maximal number of entries committed in a single group.
+	 */
+	private static final int MAX_GROUP = 4096;
+	/**
+	 * The name of the file in every user's directory that holds the last
+	 * committed sequence number of every client.
+	 */
+	private static final String SEQUENCES_FILENAME = "clients.txt";
+
+	/**
+	 * A received entry waiting to be committed.
+	 */
+	private static class Pending {
+		/**
+		 * The connection to acknowledge the entry on.
+		 */
+		final SocketChannel channel;
+		/**
+		 * The user's name. Null if the frame is invalid.
+		 */
+		final String user;
+		/**
+		 * The log entry.
+		 */
+		final String entry;
+		/**
+		 * The client's identifier. Null if the entry has no sequence number.
+		 */
+		final String client;
+		/**
+		 * The entry's sequence number.
+		 */
+		final long sequence;
+		/**
+		 * The start and the end time of the entry.
+		 */
+		final long[] times;
+		/**
+		 * The reply byte; it stays {@link #RETRY} until the entry is committed.
+		 */
+		byte reply = RETRY;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param channel
+		 *            The connection.
+		 * @param user
+		 *            The user's name.
+		 * @param entry
+		 *            The log entry.
+		 * @param times
+		 *            The start and the end time of the entry.
+		 * @param client
+		 *            The client's identifier. Can be null.
+		 * @param sequence
+		 *            The entry's sequence number.
+		 */
+		Pending(SocketChannel channel, String user, String entry, long[] times, String client, long sequence) {
+			this.channel = channel;
+			this.user = user;
+			this.entry = entry;
+			this.times = times;
+			this.client = client;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Creates a rejected entry for an invalid frame, which is only queued
+		 * so that its reply is sent in order.
+		 *
+		 * @param channel
+		 *            The connection.
+		 */
+		Pending(SocketChannel channel) {
+			this(channel, null, null, null, null, 0);
+			reply = NACK;
+		}
+	}
+
+	/**
+	 * The per-connection state.
+	 */
+	private static class Connection {
+		/**
+		 * The buffer for the incoming bytes.
+		 */
+		ByteBuffer in = ByteBuffer.allocate(4 + MAX_FRAME);
+		/**
+		 * The buffer for the outgoing replies.
+		 */
+		ByteBuffer out = ByteBuffer.allocate(1024);
+	}
+
+	/**
+	 * The hub directory, containing a directory per user.
+	 */
+	private final File hubDirectory;
+	/**
+	 * The option for splitting the per-user logs into segments.
+	 */
+	private final LogSegmentation segmentation;
+	/**
+	 * The maximal segment size, used when splitting by size.
+	 */
+	private final long maxBytes;
+	/**
+	 * The per-user segmented logs, opened on first use. Only accessed by the
+	 * writer thread.
+	 */
+	private final Map<String, SegmentedLog> logs = new HashMap<String, SegmentedLog>();
+	/**
+	 * The last committed sequence number of every client, per user, loaded on
+	 * first use. Only accessed by the writer thread.
+	 */
+	private final Map<String, Map<String, Long>> sequences = new HashMap<String, Map<String, Long>>();
+	/**
+	 * The connections on which an entry could not be committed. Only accessed
+	 * by the writer thread.
+	 */
+	private final Set<SocketChannel> failedChannels = Collections.newSetFromMap(new WeakHashMap<SocketChannel, Boolean>());
+	/**
+	 * The entries waiting to be committed, including the rejected ones, so
+	 * that the replies are sent in order.
+	 */
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	/**
+	 * The entries that have been committed, waiting to be acknowledged by the
+	 * selector thread.
+	 */
+	private final Queue<Pending> committed = new ConcurrentLinkedQueue<Pending>();
+	/**
+	 * The date format used for validating entries; only used by the selector
+	 * thread.
+	 */
+	private final DateFormat df = new SimpleDateFormat(Config.dfS);
+	/**
+	 * The selector used for all the connections.
+	 */
+	private Selector selector;
+	/**
+	 * The channel accepting new connections.
+	 */
+	private ServerSocketChannel serverChannel;
+	/**
+	 * Whether the server is running.
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a server that writes into the specified hub directory.
+	 *
+	 * @param hubDirectory
+	 *            The hub directory.
+	 * @param segmentation
+	 *            The option for splitting the per-user logs into segments;
+	 *            {@link LogSegmentation#NONE} is treated as monthly.
+	 * @param maxBytes
+	 *            The maximal segment size, used when splitting by size.
+	 */
+	IngestServer(File hubDirectory, LogSegmentation segmentation, long maxBytes) {
+		this.hubDirectory = hubDirectory;
+		this.segmentation = segmentation == LogSegmentation.SIZE ? segmentation : LogSegmentation.MONTHLY;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Binds the server to the specified address, and starts the selector and
+	 * the writer threads.
+	 *
+	 * @param address
+	 *            The address to listen on.
+	 * @return The port the server is listening on.
+	 * @throws IOException
+	 *             Thrown if the server cannot be bound.
+	 */
+	int start(InetSocketAddress address) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().bind(address);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		Thread selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {select();}
+				catch (IOException e) {
+					err.println("The ingestion server has failed.");
+					e.printStackTrace();
+				}
+			}
+		}, "ingest-selector");
+		Thread writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitGroups();
+			}
+		}, "ingest-writer");
+		writerThread.setDaemon(true);
+		selectorThread.start();
+		writerThread.start();
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops the server. Entries that have not been committed yet are not
+	 * acknowledged, so the clients keep them in their spools.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * The main loop of the selector thread.
+	 *
+	 * @throws IOException
+	 *             Thrown if the selector fails.
+	 */
+	private void select() throws IOException {
+		try {
+			while (running) {
+				selector.select();
+				acknowledgeCommitted();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) accept();
+						if (key.isValid() && key.isReadable()) read(key);
+						if (key.isValid() && key.isWritable()) write(key);
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		}
+	}
+
+	/**
+	 * Accepts a new connection.
+	 *
+	 * @throws IOException
+	 *             Thrown if the connection cannot be configured.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	/**
+	 * Reads from a connection, and queues all the complete frames.
+	 *
+	 * @param key
+	 *            The connection's key.
+	 * @throws IOException
+	 *             Thrown if reading fails or a frame is invalid.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		if (channel.read(connection.in) == -1) {
+			close(key);
+			return;
+		}
+		ByteBuffer in = connection.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < 0 || length > MAX_FRAME)
+				throw new IOException("Invalid frame length: " + length);
+			if (in.remaining() < 4 + length) break;
+			in.getInt();
+			byte[] payload = new byte[length];
+			in.get(payload);
+			queue.add(parseFrame(channel, new String(payload, "UTF-8")));
+		}
+		in.compact();
+	}
+
+	/**
+	 * Parses the payload of a frame.
+	 *
+	 * @param channel
+	 *            The connection the frame was received on.
+	 * @param text
+	 *            The frame's payload.
+	 * @return The received entry, which is rejected if the frame is invalid.
+	 */
+	private Pending parseFrame(SocketChannel channel, String text) {
+		int newline = text.indexOf('\n');
+		if (newline == -1) return new Pending(channel);
+		String user = text.substring(0, newline).trim();
+		String entry = text.substring(newline + 1).trim();
+		String client = null;
+		long sequence = 0;
+		newline = entry.indexOf('\n');
+		if (newline != -1) {
+			String header = entry.substring(0, newline).trim();
+			entry = entry.substring(newline + 1).trim();
+			int comma = header.indexOf(',');
+			if (comma == -1) return new Pending(channel);
+			client = header.substring(0, comma);
+			try {sequence = Long.parseLong(header.substring(comma + 1));}
+			catch (NumberFormatException e) {return new Pending(channel);}
+			if (!client.matches("[\\w-]+") || sequence <= 0) return new Pending(channel);
+		}
+		long[] times = SegmentedLog.parseTimes(entry, df);
+		if (!isValidUser(user) || times == null || entry.indexOf('\n') != -1)
+			return new Pending(channel);
+		return new Pending(channel, user, entry, times, client, sequence);
+	}
+
+	/**
+	 * Checks whether a user's name can safely be used as a directory name.
+	 *
+	 * @param user
+	 *            The user's name.
+	 * @return True if valid.
+	 */
+	private static boolean isValidUser(String user) {
+		return user.matches("[\\w.@-]+") && !user.startsWith(".");
+	}
+
+	/**
+	 * Hands the acknowledgements of committed entries over to their
+	 * connections.
+	 */
+	private void acknowledgeCommitted() {
+		Pending pending;
+		while ((pending = committed.poll()) != null) {
+			SelectionKey key = pending.channel.keyFor(selector);
+			if (key != null && key.isValid())
+				reply(key, pending.reply);
+		}
+	}
+
+	/**
+	 * Queues a reply byte on a connection.
+	 *
+	 * @param key
+	 *            The connection's key.
+	 * @param reply
+	 *            The reply byte.
+	 */
+	private void reply(SelectionKey key, byte reply) {
+		Connection connection = (Connection) key.attachment();
+		if (!connection.out.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(connection.out.capacity() * 2);
+			connection.out.flip();
+			larger.put(connection.out);
+			connection.out = larger;
+		}
+		connection.out.put(reply);
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes the queued replies to a connection.
+	 *
+	 * @param key
+	 *            The connection's key.
+	 * @throws IOException
+	 *             Thrown if writing fails.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		connection.out.flip();
+		((SocketChannel) key.channel()).write(connection.out);
+		connection.out.compact();
+		if (connection.out.position() == 0)
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Closes a connection.
+	 *
+	 * @param key
+	 *            The connection's key.
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {key.channel().close();}
+		catch (IOException e) {} // already broken
+	}
+
+	/**
+	 * The main loop of the writer thread: it waits for entries, takes all that
+	 * are available, commits them as a group, and hands them over for
+	 * acknowledgement.
+	 */
+	private void commitGroups() {
+		List<Pending> group = new ArrayList<Pending>();
+		while (running) {
+			try {
+				Pending first = queue.poll(500, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				group.add(first);
+				queue.drainTo(group, MAX_GROUP - 1);
+				commit(group);
+				committed.addAll(group);
+				selector.wakeup();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes a group of entries into the per-user logs, skipping the rejected
+	 * ones, the ones already committed, and the ones following an entry that
+	 * could not be committed on the same connection. Every log that the group
+	 * touches is written once and synced once.
+	 *
+	 * @param group
+	 *            The entries to commit.
+	 */
+	private void commit(List<Pending> group) {
+		Map<String, List<Pending>> byUser = new LinkedHashMap<String, List<Pending>>();
+		for (Pending pending : group) {
+			if (pending.user == null) continue;
+			List<Pending> list = byUser.get(pending.user);
+			if (list == null) byUser.put(pending.user, list = new ArrayList<Pending>());
+			list.add(pending);
+		}
+		for (Map.Entry<String, List<Pending>> entry : byUser.entrySet())
+			try {
+				SegmentedLog log = getLog(entry.getKey());
+				Map<String, Long> committedSequences = getSequences(entry.getKey());
+				Map<String, Long> groupSequences = new HashMap<String, Long>(committedSequences);
+				List<Pending> accepted = new ArrayList<Pending>();
+				List<String> lines = new ArrayList<String>();
+				List<long[]> times = new ArrayList<long[]>();
+				for (Pending pending : entry.getValue()) {
+					if (failedChannels.contains(pending.channel)) continue;
+					accepted.add(pending);
+					if (pending.client != null) {
+						Long last = groupSequences.get(pending.client);
+						if (last != null && pending.sequence <= last) continue;
+						groupSequences.put(pending.client, pending.sequence);
+					}
+					lines.add(pending.entry);
+					times.add(pending.times);
+				}
+				if (!lines.isEmpty())
+					log.appendAll(lines, times, segmentation, maxBytes);
+				for (Pending pending : accepted)
+					pending.reply = ACK;
+				if (!groupSequences.equals(committedSequences)) {
+					committedSequences.putAll(groupSequences);
+					saveSequences(entry.getKey(), committedSequences);
+				}
+			} catch (IOException e) {
+				err.println("Could not commit the entries of user " + entry.getKey() + ".");
+				e.printStackTrace();
+				for (Pending pending : entry.getValue())
+					failedChannels.add(pending.channel);
+			}
+	}
+
+	/**
+	 * Obtains the last committed sequence number of every client of the
+	 * specified user.
+	 *
+	 * @param user
+	 *            The user's name.
+	 * @return The mutable map from the clients' identifiers to their sequence
+	 *         numbers.
+	 * @throws IOException
+	 *             Thrown if the sequence numbers cannot be read.
+	 */
+	private Map<String, Long> getSequences(String user) throws IOException {
+		Map<String, Long> userSequences = sequences.get(user);
+		if (userSequences == null) {
+			userSequences = new HashMap<String, Long>();
+			File file = new File(new File(hubDirectory, user), SEQUENCES_FILENAME);
+			if (file.exists())
+				for (String line : Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))) {
+					int comma = line.indexOf(',');
+					if (comma == -1) continue;
+					try {userSequences.put(line.substring(0, comma), Long.parseLong(line.substring(comma + 1).trim()));}
+					catch (NumberFormatException e) {} // skip a damaged line
+				}
+			sequences.put(user, userSequences);
+		}
+		return userSequences;
+	}
+
+	/**
+	 * Saves the last committed sequence number of every client of the
+	 * specified user. This happens after the entries have been committed; if
+	 * the server stops in between, the entries may be stored again once they
+	 * are resent.
+	 *
+	 * @param user
+	 *            The user's name.
+	 * @param userSequences
+	 *            The sequence numbers of the user's clients.
+	 */
+	private void saveSequences(String user, Map<String, Long> userSequences) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : userSequences.entrySet())
+			sb.append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+		try {Main.writeFileAtomically(new File(new File(hubDirectory, user), SEQUENCES_FILENAME), sb.toString());}
+		catch (IOException e) {
+			err.println("Could not save the sequence numbers of user " + user + ".");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Obtains the segmented log of the specified user.
+	 *
+	 * @param user
+	 *            The user's name.
+	 * @return The user's log.
+	 * @throws IOException
+	 *             Thrown if the log's manifest cannot be read.
+	 */
+	private SegmentedLog getLog(String user) throws IOException {
+		SegmentedLog log = logs.get(user);
+		if (log == null) {
+			File userDirectory = new File(hubDirectory, user);
+			userDirectory.mkdirs();
+			log = new SegmentedLog(new File(userDirectory, "log.txt").getPath());
+			logs.put(user, log);
+		}
+		return log;
+	}
+
+	/**
+	 * The entry method, which starts the server.
+	 *
+	 * @param args
+	 *            The hub directory, and the address to listen on
+	 *            (&lt;port&gt; for the loopback interface, or
+	 *            &lt;host&gt;:&lt;port&gt;).
+	 * @throws Exception
+	 *             Thrown if the server cannot be started.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			err.println("Usage: java -cp bin rokclock.IngestServer <hubDirectory> [<host>:]<port>");
+			exit(1);
+		}
+		File hub = new File(args[0]);
+		if (!hub.isDirectory() && !hub.mkdirs()) {
+			err.println("Could not create the hub directory " + hub);
+			exit(1);
+		}
+		InetSocketAddress address = RemoteLogSink.parseAddress(args[1]);
+		int port = new IngestServer(hub, LogSegmentation.MONTHLY, 0).start(address);
+		out.println("RokClock ingestion server listening on " + address.getHostString() + ":" + port + ".");
+	}
+}
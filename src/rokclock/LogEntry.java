@@ -0,0 +1,150 @@
+package rokclock;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * A single parsed log entry. All the formats written by the program are
+ * recognised: the current format (from,to,project,sub-project,...), the same
+ * format prefixed with the user's unique identifier, and the old format
+ * (project,sub-project,from,to).
+ */
+public class LogEntry {
+	/**
+	 * The start of the activity in milliseconds from epoch.
+	 */
+	public final long startTime;
+	/**
+	 * The end of the activity in milliseconds from epoch.
+	 */
+	public final long endTime;
+	/**
+	 * The project path, as it appears in the log (i.e. comma-separated). For
+	 * entries in the old format, this is the top-level project only.
+	 */
+	public final String projectPath;
+	/**
+	 * The user's unique identifier. Can be null.
+	 */
+	public final String uid;
+
+	/**
+	 * A simple constructor.
+	 *
+	 * @param startTime
+	 *            The start of the activity.
+	 * @param endTime
+	 *            The end of the activity.
+	 * @param projectPath
+	 *            The project path.
+	 * @param uid
+	 *            The user's unique identifier. Can be null.
+	 */
+	public LogEntry(long startTime, long endTime, String projectPath, String uid) {
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.projectPath = projectPath;
+		this.uid = uid;
+	}
+
+	/**
+	 * Parses a single log entry. Fields should be separated by commas; any
+	 * spaces around commas are ignored.
+	 *
+	 * @param line
+	 *            The log entry.
+	 * @param df
+	 *            The date format to use; it should not be shared between
+	 *            threads.
+	 * @return The parsed entry.
+	 * @throws ParseException
+	 *             Thrown if the entry is not in any recognised format.
+	 */
+	public static LogEntry parse(String line, DateFormat df) throws ParseException {
+		String[] fields = line.split("\\s*,\\s*", 4);
+		if (fields.length < 3)
+			throw new ParseException("Too few fields: " + line, 0);
+		Date first = tryParse(fields[0], df);
+		if (first != null) { // current format
+			String[] rest = line.split("\\s*,\\s*", 3);
+			return new LogEntry(first.getTime(), df.parse(fields[1]).getTime(), rest[2], null);
+		}
+		Date second = tryParse(fields[1], df);
+		if (second != null && fields.length == 4) // current format with a UID
+			return new LogEntry(second.getTime(), df.parse(fields[2]).getTime(), fields[3], fields[0]);
+		if (fields.length < 4)
+			throw new ParseException("Too few fields: " + line, 0);
+		// old format
+		return new LogEntry(df.parse(fields[2]).getTime(), df.parse(fields[3]).getTime(), fields[0], null);
+	}
+
+	/**
+	 * Parses a date, if possible.
+	 *
+	 * @param s
+	 *            The string to parse.
+	 * @param df
+	 *            The date format to use.
+	 * @return The date, or null if the string is not a date.
+	 */
+	private static Date tryParse(String s, DateFormat df) {
+		try {return df.parse(s);}
+		catch (ParseException e) {return null;}
+	}
+
+	/**
+	 * Obtains the duration of the activity within the specified time period.
+	 *
+	 * @param fromTime
+	 *            The start of the period (inclusive) in milliseconds from
+	 *            epoch, or {@link Long#MIN_VALUE} for no limit.
+	 * @param toTime
+	 *            The end of the period (exclusive) in milliseconds from epoch,
+	 *            or {@link Long#MAX_VALUE} for no limit.
+	 * @return The duration in milliseconds, or -1 if the entry does not
+	 *         overlap with the period.
+	 */
+	public long getDurationWithin(long fromTime, long toTime) {
+		long start = Math.max(startTime, fromTime);
+		long end = Math.min(endTime, toTime);
+		return start > end ? -1 : end - start;
+	}
+
+	/**
+	 * Formats the entry in the current format, prefixed with the user's
+	 * unique identifier if it is known.
+	 *
+	 * @param df
+	 *            The date format to use; it should not be shared between
+	 *            threads.
+	 * @return The log entry (without a newline).
+	 */
+	public String format(DateFormat df) {
+		return (uid == null ? "" : uid + ",") + df.format(new Date(startTime)) + ","
+				+ df.format(new Date(endTime)) + "," + projectPath;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LogEntry)) return false;
+		LogEntry other = (LogEntry) o;
+		return startTime == other.startTime && endTime == other.endTime && projectPath.equals(other.projectPath)
+				&& (uid == null ? other.uid == null : uid.equals(other.uid));
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (startTime ^ startTime >>> 32) * 31 + projectPath.hashCode();
+	}
+
+	/**
+	 * Obtains the top-level project of the entry.
+	 *
+	 * @return The top-level project.
+	 */
+	public String getTopLevelProject() {
+		int comma = projectPath.indexOf(',');
+		return comma == -1 ? projectPath : projectPath.substring(0, comma).trim();
+	}
+}
@@ -0,0 +1,130 @@
+package rokclock;
+
+import java.util.Date;
+
+/**
+ * A filter of log entries, which is pushed down into a {@link LogSource}. The
+ * time period is used to skip whole segments of a segmented log, the check of
+ * the raw line is done before the line is parsed, and only then are the parsed
+ * entries checked.
+ * <p>
+ * This class filters by a time period and a prefix of the project path;
+ * subclasses can check further conditions.
+ */
+public class LogFilter {
+	/**
+	 * The filter that accepts all entries.
+	 */
+	public static final LogFilter ALL = new LogFilter(Long.MIN_VALUE, Long.MAX_VALUE, null);
+	/**
+	 * The start of the time period (inclusive) in milliseconds from epoch, or
+	 * {@link Long#MIN_VALUE} for no limit.
+	 */
+	private final long fromTime;
+	/**
+	 * The end of the time period (exclusive) in milliseconds from epoch, or
+	 * {@link Long#MAX_VALUE} for no limit.
+	 */
+	private final long toTime;
+	/**
+	 * The prefix of the project path. Can be null.
+	 */
+	private final String projectPrefix;
+
+	/**
+	 * Creates a filter that accepts the entries overlapping with the
+	 * specified time period, whose project path starts with the specified
+	 * prefix.
+	 *
+	 * @param fromTime
+	 *            The start of the period (inclusive) in milliseconds from
+	 *            epoch, or {@link Long#MIN_VALUE} for no limit.
+	 * @param toTime
+	 *            The end of the period (exclusive) in milliseconds from epoch,
+	 *            or {@link Long#MAX_VALUE} for no limit.
+	 * @param projectPrefix
+	 *            The prefix of the project path. Can be null.
+	 */
+	public LogFilter(long fromTime, long toTime, String projectPrefix) {
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+		this.projectPrefix = projectPrefix;
+	}
+
+	/**
+	 * Creates a filter that accepts the entries overlapping with the
+	 * specified time period.
+	 *
+	 * @param fromDate
+	 *            The start of the period (inclusive). Can be null.
+	 * @param toDate
+	 *            The end of the period (exclusive). Can be null.
+	 * @return The filter.
+	 */
+	public static LogFilter range(Date fromDate, Date toDate) {
+		return new LogFilter(fromDate == null ? Long.MIN_VALUE : fromDate.getTime(),
+				toDate == null ? Long.MAX_VALUE : toDate.getTime(), null);
+	}
+
+	/**
+	 * Obtains the start of the time period.
+	 *
+	 * @return The start in milliseconds from epoch, or {@link Long#MIN_VALUE}.
+	 */
+	public long getFromTime() {
+		return fromTime;
+	}
+
+	/**
+	 * Obtains the end of the time period.
+	 *
+	 * @return The end in milliseconds from epoch, or {@link Long#MAX_VALUE}.
+	 */
+	public long getToTime() {
+		return toTime;
+	}
+
+	/**
+	 * Checks a raw line before it is parsed. Returning false rejects the line
+	 * without parsing it; returning true does not yet accept it. As the
+	 * project path of a parsed entry is always a part of its line, lines that
+	 * do not contain the project prefix are rejected.
+	 *
+	 * @param line
+	 *            The raw line.
+	 * @return False if the line's entry cannot be accepted.
+	 */
+	public boolean acceptsLine(String line) {
+		return projectPrefix == null || line.contains(projectPrefix);
+	}
+
+	/**
+	 * Checks whether a block of the log, whose project paths are summarised
+	 * by a Bloom filter (see {@link BloomIndex}), can contain an accepted
+	 * entry. Returning false skips the block without reading it. As the
+	 * prefix may end within a project's name, only the projects before its
+	 * last separator are looked up.
+	 *
+	 * @param filter
+	 *            The Bloom filter of the block.
+	 * @return False if the block cannot contain an accepted entry.
+	 */
+	boolean mayMatch(BloomFilter filter) {
+		if (projectPrefix == null) return true;
+		String prefix = LogQuery.normalisePath(projectPrefix);
+		int slash = prefix.lastIndexOf('/');
+		return slash <= 0 || filter.mightContain(prefix.substring(0, slash));
+	}
+
+	/**
+	 * Checks a parsed entry.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @return True if the entry is accepted.
+	 */
+	public boolean accepts(LogEntry entry) {
+		if (entry.getDurationWithin(fromTime, toTime) < 0) return false;
+		return projectPrefix == null || entry.projectPath.startsWith(projectPrefix);
+	}
+}
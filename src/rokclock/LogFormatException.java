@@ -0,0 +1,22 @@
+package rokclock;
+
+/**
+ * Thrown by a strict {@link LogSource} when a line of the log cannot be
+ * parsed. It is unchecked, so that it can pass through iterators and streams.
+ */
+@SuppressWarnings("serial")
+public class LogFormatException extends RuntimeException {
+	/**
+	 * A simple constructor.
+	 *
+	 * @param location
+	 *            The location of the line, e.g. its line number and file.
+	 * @param line
+	 *            The line that could not be parsed.
+	 * @param cause
+	 *            The reason the line could not be parsed.
+	 */
+	public LogFormatException(String location, String line, Throwable cause) {
+		super("Could not process log entry on " + location + ": \"" + line + "\"", cause);
+	}
+}
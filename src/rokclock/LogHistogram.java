@@ -0,0 +1,314 @@
+package rokclock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram of non-negative values with logarithmic buckets,
+ * in the style of HdrHistogram. Every power of two is split into
+ * 2^precisionBits sub-buckets, so any recorded value is reported with a
+ * relative error of at most 2^-precisionBits, regardless of its magnitude;
+ * values below 2^precisionBits are recorded exactly. The memory used depends
+ * only on the precision and on the range of tracked values, never on the
+ * number of recorded values: 8 * 2^precisionBits bytes per tracked power of
+ * two. Values above the tracked range are counted in the highest bucket.
+ * <p>
+ * Recording is lock-free and cheap (a few arithmetic operations and an atomic
+ * increment), so it can be used on hot paths. Histograms with the same
+ * precision can be merged, and histograms can be encoded as a single line of
+ * text, which only lists the non-empty buckets.
+ */
+class LogHistogram {
+	/**
+	 * The number of bits of precision within each power of two.
+	 */
+	private final int precisionBits;
+	/**
+	 * The number of sub-buckets within each power of two.
+	 */
+	private final int subBuckets;
+	/**
+	 * The highest value that gets its own bucket; higher values are counted
+	 * in the highest bucket.
+	 */
+	private final long highestTrackableValue;
+	/**
+	 * The bucket counts.
+	 */
+	private final AtomicLongArray counts;
+	/**
+	 * The number of recorded values, the sum of recorded values, and the
+	 * largest recorded value.
+	 */
+	private final AtomicLongArray totals = new AtomicLongArray(3);
+
+	/**
+	 * Creates an empty histogram with the specified precision, which tracks
+	 * all non-negative long values.
+	 *
+	 * @param precisionBits
+	 *            The number of bits of precision (between 1 and 16).
+	 */
+	LogHistogram(int precisionBits) {
+		this(precisionBits, 63);
+	}
+
+	/**
+	 * Creates an empty histogram with the specified precision, which tracks
+	 * the values below 2^valueBits.
+	 *
+	 * @param precisionBits
+	 *            The number of bits of precision (between 1 and 16).
+	 * @param valueBits
+	 *            The number of bits of the tracked values (between
+	 *            precisionBits + 1 and 63).
+	 */
+	LogHistogram(int precisionBits, int valueBits) {
+		if (precisionBits < 1 || precisionBits > 16)
+			throw new IllegalArgumentException("Precision should be between 1 and 16 bits: " + precisionBits);
+		if (valueBits <= precisionBits || valueBits > 63)
+			throw new IllegalArgumentException("Tracked values should have between " + (precisionBits + 1)
+					+ " and 63 bits: " + valueBits);
+		this.precisionBits = precisionBits;
+		subBuckets = 1 << precisionBits;
+		highestTrackableValue = valueBits == 63 ? Long.MAX_VALUE : (1L << valueBits) - 1;
+		counts = new AtomicLongArray((valueBits - precisionBits + 1) * subBuckets);
+	}
+
+	/**
+	 * Obtains the number of bits of precision.
+	 *
+	 * @return The precision.
+	 */
+	int getPrecisionBits() {
+		return precisionBits;
+	}
+
+	/**
+	 * Obtains the size of the bucket counts in bytes.
+	 *
+	 * @return The size.
+	 */
+	int getSizeBytes() {
+		return 8 * counts.length();
+	}
+
+	/**
+	 * Records a single value. Negative values are recorded as zero, and values
+	 * above the tracked range in the highest bucket.
+	 *
+	 * @param value
+	 *            The value to record.
+	 */
+	void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(indexOf(Math.min(value, highestTrackableValue)));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, value);
+		long max;
+		while (value > (max = totals.get(2)) && !totals.compareAndSet(2, max, value));
+	}
+
+	/**
+	 * Computes the bucket index of a value.
+	 *
+	 * @param value
+	 *            The non-negative value.
+	 * @return The bucket index.
+	 */
+	private int indexOf(long value) {
+		if (value < subBuckets) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+		return shift * subBuckets + (int) (value >>> shift);
+	}
+
+	/**
+	 * Computes the lowest value of a bucket.
+	 *
+	 * @param index
+	 *            The bucket index.
+	 * @return The lowest value.
+	 */
+	private long lowestValueOf(int index) {
+		if (index < 2 * subBuckets) return index;
+		int shift = index / subBuckets - 1;
+		return (long) (index - shift * subBuckets) << shift;
+	}
+
+	/**
+	 * Computes the highest value of a bucket.
+	 *
+	 * @param index
+	 *            The bucket index.
+	 * @return The highest value.
+	 */
+	private long highestValueOf(int index) {
+		if (index < 2 * subBuckets) return index;
+		int shift = index / subBuckets - 1;
+		return lowestValueOf(index) + (1L << shift) - 1;
+	}
+
+	/**
+	 * Obtains the number of recorded values.
+	 *
+	 * @return The count.
+	 */
+	long getCount() {
+		return totals.get(0);
+	}
+
+	/**
+	 * Obtains the sum of all recorded values.
+	 *
+	 * @return The sum.
+	 */
+	long getTotal() {
+		return totals.get(1);
+	}
+
+	/**
+	 * Obtains the largest recorded value.
+	 *
+	 * @return The largest value, or 0 if nothing was recorded.
+	 */
+	long getMax() {
+		return totals.get(2);
+	}
+
+	/**
+	 * Obtains the mean of the recorded values.
+	 *
+	 * @return The mean, or 0 if nothing was recorded.
+	 */
+	double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : 1.0 * getTotal() / count;
+	}
+
+	/**
+	 * Obtains the value at the specified percentile. The result is the middle
+	 * of the bucket containing the percentile, capped at the largest recorded
+	 * value; the 100th percentile is exactly the largest recorded value.
+	 *
+	 * @param percentile
+	 *            The percentile (between 0 and 100).
+	 * @return The value, or 0 if nothing was recorded.
+	 */
+	long getPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		if (rank >= count) return getMax();
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(getMax(), (lowestValueOf(i) + highestValueOf(i)) / 2);
+		}
+		return getMax();
+	}
+
+	/**
+	 * Obtains the number of recorded values that are certainly lower than the
+	 * specified value, i.e. those in the buckets entirely below it.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return The count.
+	 */
+	long getCountBelow(long value) {
+		long below = 0;
+		for (int i = 0; i < counts.length() && highestValueOf(i) < value; i++)
+			below += counts.get(i);
+		return below;
+	}
+
+	/**
+	 * Adds all the values recorded in another histogram to this one. The
+	 * values above the range tracked by this histogram are counted in its
+	 * highest bucket.
+	 *
+	 * @param other
+	 *            The histogram to merge; it should have the same precision.
+	 */
+	void merge(LogHistogram other) {
+		if (other.precisionBits != precisionBits)
+			throw new IllegalArgumentException("Cannot merge histograms of different precision.");
+		for (int i = 0; i < other.counts.length(); i++) {
+			long c = other.counts.get(i);
+			if (c != 0) counts.addAndGet(Math.min(i, counts.length() - 1), c);
+		}
+		totals.addAndGet(0, other.getCount());
+		totals.addAndGet(1, other.getTotal());
+		long max, otherMax = other.getMax();
+		while (otherMax > (max = totals.get(2)) && !totals.compareAndSet(2, max, otherMax));
+	}
+
+	/**
+	 * Encodes the histogram as a single line of text: the tab-separated
+	 * precision, count, sum and largest value, followed by the comma-separated
+	 * non-empty buckets as "index:count".
+	 *
+	 * @return The encoded histogram.
+	 */
+	String encode() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(precisionBits).append('\t').append(getCount()).append('\t').append(getTotal()).append('\t')
+				.append(getMax()).append('\t');
+		boolean first = true;
+		for (int i = 0; i < counts.length(); i++) {
+			long c = counts.get(i);
+			if (c == 0) continue;
+			if (!first) sb.append(',');
+			sb.append(i).append(':').append(c);
+			first = false;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes a histogram encoded by {@link #encode()}. The histogram only
+	 * tracks the values up to the largest recorded one, so it should be
+	 * merged into another one before recording more values.
+	 *
+	 * @param line
+	 *            The encoded histogram.
+	 * @return The histogram.
+	 * @throws IllegalArgumentException
+	 *             Thrown if the line is not a consistent encoded histogram.
+	 */
+	static LogHistogram decode(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length != 5)
+			throw new IllegalArgumentException("Expected 5 fields in an encoded histogram: " + line);
+		int precisionBits = Integer.parseInt(fields[0]);
+		int valueBits = 64 - Long.numberOfLeadingZeros(Long.parseLong(fields[3]));
+		LogHistogram h = new LogHistogram(precisionBits, Math.max(precisionBits + 1, valueBits));
+		long total = 0;
+		if (!fields[4].isEmpty())
+			for (String bucket : fields[4].split(",")) {
+				int colon = bucket.indexOf(':');
+				int index = Integer.parseInt(bucket.substring(0, colon));
+				long c = Long.parseLong(bucket.substring(colon + 1));
+				if (index < 0 || index >= h.counts.length() || c <= 0)
+					throw new IllegalArgumentException("Invalid bucket: " + bucket);
+				h.counts.addAndGet(index, c);
+				total += c;
+			}
+		h.totals.set(0, Long.parseLong(fields[1]));
+		h.totals.set(1, Long.parseLong(fields[2]));
+		h.totals.set(2, Long.parseLong(fields[3]));
+		if (total != h.getCount())
+			throw new IllegalArgumentException("The buckets do not add up to the count " + h.getCount() + ": " + total);
+		return h;
+	}
+
+	/**
+	 * Removes all the recorded values.
+	 */
+	void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		for (int i = 0; i < totals.length(); i++)
+			totals.set(i, 0);
+	}
+}
@@ -0,0 +1,394 @@
+package rokclock;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * A warm, in-memory index of the entries of a log, which can be advanced
+ * incrementally. For a single log file, only the bytes appended since the last
+ * refresh are read; for a segmented log, only the segments that changed since
+ * the last refresh are re-read. If the log file shrinks (e.g. it was replaced),
+ * it is re-read completely.
+ * <p>
+ * Lines that cannot be parsed are skipped, and kept in a bounded
+ * {@link Quarantine}, so a corrupt line never makes the log unreadable.
+ * <p>
+ * Queries are answered from memory without locking: every refresh publishes
+ * an immutable snapshot of the entries, so queries can be run concurrently
+ * with each other and are never delayed by a refresh.
+ */
+class LogIndex {
+	/**
+	 * The name of the log file.
+	 */
+	private final String logFilename;
+	/**
+	 * The date format used for parsing; only used while refreshing.
+	 */
+	private final DateFormat df = new SimpleDateFormat(Config.dfS);
+	/**
+	 * The number of bytes read from a log file at once.
+	 */
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	/**
+	 * The entries, grouped by the file or segment they were read from; only
+	 * used while refreshing.
+	 */
+	private final Map<String, EntryList> entries = new HashMap<String, EntryList>();
+	/**
+	 * The number of bytes consumed from each file or segment.
+	 */
+	private final Map<String, Long> consumed = new HashMap<String, Long>();
+	/**
+	 * The number of lines consumed from each file or segment.
+	 */
+	private final Map<String, Long> consumedLines = new HashMap<String, Long>();
+	/**
+	 * The file each segment was last read from; it changes when the segment
+	 * is compressed.
+	 */
+	private final Map<String, String> sources = new HashMap<String, String>();
+	/**
+	 * The lines that could not be parsed.
+	 */
+	private final Quarantine quarantine = new Quarantine(100);
+	/**
+	 * The snapshot queries are answered from; replaced by every refresh.
+	 */
+	private volatile Snapshot snapshot = new Snapshot(0, Collections.<List<LogEntry>> emptyList());
+
+	/**
+	 * An append-only list of entries. Appending never changes the entries
+	 * already in the list, so the views returned by {@link #view()} stay
+	 * valid, and can be read on other threads once they are safely published.
+	 */
+	private static class EntryList {
+		/**
+		 * The entries; replaced by a larger copy when full.
+		 */
+		private LogEntry[] array = new LogEntry[16];
+		/**
+		 * The number of entries.
+		 */
+		private int size = 0;
+
+		/**
+		 * Appends an entry.
+		 *
+		 * @param entry
+		 *            The entry.
+		 */
+		void add(LogEntry entry) {
+			if (size == array.length) array = Arrays.copyOf(array, size * 2);
+			array[size++] = entry;
+		}
+
+		/**
+		 * Obtains the number of entries.
+		 *
+		 * @return The size.
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Obtains an unmodifiable view of the current entries, which is not
+		 * affected by later appends.
+		 *
+		 * @return The view.
+		 */
+		List<LogEntry> view() {
+			return Collections.unmodifiableList(Arrays.asList(array).subList(0, size));
+		}
+	}
+
+	/**
+	 * The entries of the index at the end of a refresh.
+	 */
+	private static class Snapshot {
+		/**
+		 * The generation of the index; incremented whenever new entries are
+		 * read.
+		 */
+		final long generation;
+		/**
+		 * The entries, grouped by the file or segment they were read from.
+		 */
+		final List<List<LogEntry>> lists;
+
+		/**
+		 * Creates a snapshot.
+		 *
+		 * @param generation
+		 *            The generation of the index.
+		 * @param lists
+		 *            The entries.
+		 */
+		Snapshot(long generation, List<List<LogEntry>> lists) {
+			this.generation = generation;
+			this.lists = lists;
+		}
+	}
+
+	/**
+	 * Creates an empty index for the specified log file. Call
+	 * {@link #refresh()} to read the log.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 */
+	LogIndex(String logFilename) {
+		this.logFilename = logFilename;
+	}
+
+	/**
+	 * Obtains the generation of the index, which changes whenever new entries
+	 * are read. This can be used to invalidate cached query results.
+	 *
+	 * @return The generation.
+	 */
+	long getGeneration() {
+		return snapshot.generation;
+	}
+
+	/**
+	 * Obtains the number of lines that could not be parsed so far.
+	 *
+	 * @return The number of malformed lines.
+	 */
+	long getMalformedLines() {
+		return quarantine.getTotal();
+	}
+
+	/**
+	 * Obtains the lines that could not be parsed so far, with their line
+	 * numbers and byte offsets.
+	 *
+	 * @return The quarantine.
+	 */
+	Quarantine getQuarantine() {
+		return quarantine;
+	}
+
+	/**
+	 * Reads any new entries from the log, and publishes a new snapshot for
+	 * the queries.
+	 *
+	 * @return True if any new entries were read.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	synchronized boolean refresh() throws IOException {
+		boolean changed = false;
+		if (SegmentedLog.exists(logFilename)) {
+			SegmentedLog log = new SegmentedLog(logFilename);
+			Set<String> seen = new HashSet<String>();
+			for (SegmentedLog.Segment segment : log.getSegments(null, null)) {
+				String key = segment.name.replaceFirst("\\.(gz|deflate)$", "");
+				seen.add(key);
+				Long bytes = consumed.get(key);
+				if (bytes != null && bytes == segment.bytes) continue;
+				EntryList list = new EntryList();
+				String source = log.getFile(segment).getPath();
+				if (sources.containsKey(key))
+					quarantine.removeSource(sources.get(key));
+				sources.put(key, source);
+				InputStream in = log.openStream(segment);
+				try {readLines(in, 0, list, source, 0);}
+				finally {in.close();}
+				entries.put(key, list);
+				consumed.put(key, segment.bytes);
+				changed = true;
+			}
+			// the entries of the log file that are not in the segments
+			if (log.getResidualStart() >= 0) {
+				File file = new File(logFilename);
+				seen.add(file.getPath());
+				changed |= refreshFile(file, log.getResidualStart());
+			}
+			changed |= entries.keySet().retainAll(seen);
+			consumed.keySet().retainAll(seen);
+			for (Iterator<Map.Entry<String, String>> i = sources.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, String> entry = i.next();
+				if (!seen.contains(entry.getKey())) {
+					quarantine.removeSource(entry.getValue());
+					i.remove();
+				}
+			}
+		} else
+			changed = refreshFile(new File(logFilename), 0);
+		List<List<LogEntry>> lists = new ArrayList<List<LogEntry>>();
+		for (EntryList list : entries.values())
+			lists.add(list.view());
+		snapshot = new Snapshot(changed ? snapshot.generation + 1 : snapshot.generation, lists);
+		return changed;
+	}
+
+	/**
+	 * Reads the bytes appended to a single log file since the last refresh. A
+	 * partially written last line is left for the next refresh.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @param start
+	 *            The offset from which the log file belongs to the log (see
+	 *            {@link SegmentedLog#getResidualStart()}); it should be at the
+	 *            start of a line.
+	 * @return True if any new entries were read.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	private boolean refreshFile(File file, long start) throws IOException {
+		String key = file.getPath();
+		Long offset = consumed.get(key);
+		EntryList list = entries.get(key);
+		if (!file.exists()) {
+			boolean hadEntries = list != null && list.size() > 0;
+			entries.remove(key);
+			consumed.remove(key);
+			quarantine.removeSource(key);
+			return hadEntries;
+		}
+		if (offset == null || list == null || file.length() < offset || offset < start) {
+			offset = start;
+			list = new EntryList();
+			entries.put(key, list);
+			consumedLines.put(key, 0L);
+			quarantine.removeSource(key);
+		}
+		if (file.length() == offset) return false;
+		int count = list.size();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(offset);
+			// line numbers are only known when reading from the start
+			long[] read = readLines(in, offset, list, key, start == 0 ? consumedLines.get(key) : -1);
+			consumed.put(key, offset + read[0]);
+			consumedLines.put(key, consumedLines.get(key) + read[1]);
+		} finally {
+			in.close();
+		}
+		return list.size() != count;
+	}
+
+	/**
+	 * Reads the complete lines of a stream in chunks of
+	 * {@link #READ_BUFFER_SIZE} bytes (or more for longer lines), and adds
+	 * their entries to the specified list. A partially written last line is
+	 * left unread. The offsets of the lines are counted in bytes.
+	 *
+	 * @param in
+	 *            The stream, positioned at the start of a line.
+	 * @param offset
+	 *            The offset of the stream's position in the source.
+	 * @param list
+	 *            The list to add to.
+	 * @param source
+	 *            The file the lines are read from.
+	 * @param lineNumber
+	 *            The number of lines before the stream's position, or -1 if
+	 *            it is not known.
+	 * @return The number of bytes and the number of lines read.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	private long[] readLines(InputStream in, long offset, EntryList list, String source, long lineNumber)
+			throws IOException {
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		// the buffer holds the bytes of the current line read so far
+		int length = 0, n;
+		long read = 0, lines = 0;
+		while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+			int lineStart = 0;
+			for (int i = length; i < length + n; i++)
+				if (buffer[i] == '\n') {
+					lines++;
+					add(new String(buffer, lineStart, i - lineStart), list, source,
+							lineNumber < 0 ? -1 : lineNumber + lines, offset + read + lineStart);
+					lineStart = i + 1;
+				}
+			length += n - lineStart;
+			System.arraycopy(buffer, lineStart, buffer, 0, length);
+			read += lineStart;
+			if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		return new long[] {read, lines};
+	}
+
+	/**
+	 * Parses a single line and adds it to the specified list.
+	 *
+	 * @param line
+	 *            The line to parse.
+	 * @param list
+	 *            The list to add to.
+	 * @param source
+	 *            The file the line was read from.
+	 * @param lineNumber
+	 *            The number of the line.
+	 * @param byteOffset
+	 *            The offset of the line.
+	 */
+	private void add(String line, EntryList list, String source, long lineNumber, long byteOffset) {
+		if (line.trim().isEmpty()) return;
+		try {list.add(LogEntry.parse(line.trim(), df));}
+		catch (Exception e) {quarantine.add(source, lineNumber, byteOffset, line.trim(), e);}
+	}
+
+	/**
+	 * Computes the sums of milliseconds for the specified time period, in the
+	 * same way as {@link Analyser}, optionally restricted to a project prefix
+	 * and a user.
+	 *
+	 * @param fromDate
+	 *            The start of the period (inclusive). Can be null.
+	 * @param toDate
+	 *            The end of the period (exclusive). Can be null.
+	 * @param projectPrefix
+	 *            The prefix of the project path. Can be null.
+	 * @param uid
+	 *            The user's unique identifier. Can be null.
+	 * @param byUid
+	 *            Whether to group the sums by user instead of project path.
+	 * @return The map from project paths (or users) to sums.
+	 */
+	Map<String, Long> query(Date fromDate, Date toDate,
+			String projectPrefix, String uid, boolean byUid) {
+		long fromTime = fromDate == null ? Long.MIN_VALUE : fromDate.getTime();
+		long toTime = toDate == null ? Long.MAX_VALUE : toDate.getTime();
+		Map<String, Long> sums = new TreeMap<String, Long>();
+		for (List<LogEntry> list : snapshot.lists)
+			for (LogEntry entry : list) {
+				if (projectPrefix != null && !entry.projectPath.startsWith(projectPrefix)) continue;
+				if (uid != null && !uid.equals(entry.uid)) continue;
+				long duration = entry.getDurationWithin(fromTime, toTime);
+				if (duration < 0) continue;
+				String key = byUid ? (entry.uid == null ? "" : entry.uid) : entry.projectPath;
+				Long sum = sums.get(key);
+				sums.put(key, (sum == null ? 0L : sum) + duration);
+			}
+		return sums;
+	}
+
+	/**
+	 * Records the distributions of the session durations by project path for
+	 * the entries that overlap with the specified time period (see
+	 * {@link DurationDistribution}).
+	 *
+	 * @param fromDate
+	 *            The start of the period (inclusive). Can be null.
+	 * @param toDate
+	 *            The end of the period (exclusive). Can be null.
+	 * @return The distributions.
+	 */
+	DurationDistribution distribution(Date fromDate, Date toDate) {
+		LogFilter filter = LogFilter.range(fromDate, toDate);
+		DurationDistribution distribution = new DurationDistribution();
+		for (List<LogEntry> list : snapshot.lists)
+			for (LogEntry entry : list)
+				distribution.record(entry, filter);
+		return distribution;
+	}
+}
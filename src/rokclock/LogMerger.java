@@ -0,0 +1,406 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * The merger of several time-ordered logs (e.g. written on a laptop and on a
+ * desktop) into a single time-ordered stream of entries. The logs are read
+ * lazily through {@link LogSource}s and merged with a heap holding the next
+ * entry of every log, so merging n entries from k logs takes O(n log k) time
+ * and memory proportional to k only.
+ * <p>
+ * Exact duplicates (the same times, project path and user) are dropped,
+ * unless configured otherwise. An
+ * entry that starts before an earlier entry of the same user has ended is
+ * passed on, but counted and reported as an overlap. An entry that starts
+ * before the previous entry of its own log is counted as out of order; such
+ * logs should be sorted first with a {@link LogSorter}.
+ */
+class LogMerger implements Closeable {
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+	/**
+	 * The maximal number of reported overlaps and out-of-order entries.
+	 */
+	private static final int MAX_REPORTED = 100;
+	/**
+	 * The names of the merged logs.
+	 */
+	private final List<String> logFilenames;
+	/**
+	 * The sources of the merged logs.
+	 */
+	private final List<LogSource> sources = new ArrayList<LogSource>();
+	/**
+	 * The date format used in the report.
+	 */
+	private final DateFormat df = new SimpleDateFormat(Config.dfS);
+	/**
+	 * The number of duplicates.
+	 */
+	private long duplicates = 0;
+	/**
+	 * The number of overlapping entries.
+	 */
+	private long overlaps = 0;
+	/**
+	 * The number of entries that were out of order within their log.
+	 */
+	private long outOfOrder = 0;
+	/**
+	 * The reported overlaps and out-of-order entries.
+	 */
+	private final List<String> problems = new ArrayList<String>();
+	/**
+	 * Whether exact duplicates are dropped.
+	 */
+	private boolean dropDuplicates = true;
+
+	/**
+	 * Creates a merger of the specified logs.
+	 *
+	 * @param logFilenames
+	 *            The names of the log files; each can also be a segmented
+	 *            log.
+	 */
+	LogMerger(List<String> logFilenames) {
+		this.logFilenames = logFilenames;
+		for (String logFilename : logFilenames)
+			sources.add(new LogSource(logFilename));
+	}
+
+	/**
+	 * Sets whether lines that cannot be parsed make merging fail (the
+	 * default), or are skipped and kept in the specified quarantine.
+	 *
+	 * @param quarantine
+	 *            The quarantine shared by all logs, or null to fail on
+	 *            malformed lines.
+	 */
+	void setQuarantine(Quarantine quarantine) {
+		for (LogSource source : sources) {
+			source.setStrict(quarantine == null);
+			if (quarantine != null) source.setQuarantine(quarantine);
+		}
+	}
+
+	/**
+	 * Sets whether exact duplicates are dropped (the default), or only
+	 * counted.
+	 *
+	 * @param dropDuplicates
+	 *            True to drop duplicates.
+	 */
+	void setDropDuplicates(boolean dropDuplicates) {
+		this.dropDuplicates = dropDuplicates;
+	}
+
+	/**
+	 * The next entry of a single log, as kept in the heap.
+	 */
+	private static class Head implements Comparable<Head> {
+		/**
+		 * The entry.
+		 */
+		LogEntry entry;
+		/**
+		 * The index of the log.
+		 */
+		final int log;
+		/**
+		 * The remaining entries of the log.
+		 */
+		final Iterator<LogEntry> rest;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param log
+		 *            The index of the log.
+		 * @param rest
+		 *            The entries of the log.
+		 */
+		Head(int log, Iterator<LogEntry> rest) {
+			this.log = log;
+			this.rest = rest;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			int c = Long.compare(entry.startTime, other.entry.startTime);
+			if (c != 0) return c;
+			c = Long.compare(entry.endTime, other.entry.endTime);
+			return c != 0 ? c : Integer.compare(log, other.log);
+		}
+	}
+
+	/**
+	 * Creates a lazy iterator over the merged entries accepted by the filter,
+	 * ordered by their start time.
+	 *
+	 * @param filter
+	 *            The filter.
+	 * @return The iterator.
+	 * @throws IOException
+	 *             Thrown if a log does not exist or cannot be listed.
+	 */
+	Iterator<LogEntry> iterator(LogFilter filter) throws IOException {
+		final PriorityQueue<Head> heap = new PriorityQueue<Head>();
+		for (int i = 0; i < sources.size(); i++) {
+			Head head = new Head(i, sources.get(i).iterator(filter));
+			if (head.rest.hasNext()) {
+				head.entry = head.rest.next();
+				heap.add(head);
+			}
+		}
+		return new Iterator<LogEntry>() {
+			/**
+			 * The next entry to return, or null if not known yet.
+			 */
+			private LogEntry next;
+			/**
+			 * The returned entries with the latest start time, for dropping
+			 * duplicates.
+			 */
+			private final Set<LogEntry> sameStart = new HashSet<LogEntry>();
+			/**
+			 * The entry that ends last so far, by user.
+			 */
+			private final Map<String, LogEntry> latestByUid = new HashMap<String, LogEntry>();
+			/**
+			 * The log of the entry that ends last so far, by user.
+			 */
+			private final Map<String, Integer> latestLogByUid = new HashMap<String, Integer>();
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && !heap.isEmpty()) {
+					Head head = heap.poll();
+					LogEntry entry = head.entry;
+					if (head.rest.hasNext()) {
+						head.entry = head.rest.next();
+						if (head.entry.startTime < entry.startTime) {
+							outOfOrder++;
+							report("out of order in " + logFilenames.get(head.log) + ": "
+									+ head.entry.format(df));
+						}
+						heap.add(head);
+					}
+					if (sameStart.isEmpty() || sameStart.iterator().next().startTime != entry.startTime)
+						sameStart.clear();
+					if (!sameStart.add(entry)) {
+						duplicates++;
+						if (dropDuplicates) continue;
+						next = entry;
+						continue;
+					}
+					String uid = entry.uid == null ? "" : entry.uid;
+					LogEntry latest = latestByUid.get(uid);
+					if (latest != null && entry.startTime < latest.endTime) {
+						overlaps++;
+						report("overlap: " + latest.format(df) + " (" + logFilenames.get(latestLogByUid.get(uid))
+								+ ") and " + entry.format(df) + " (" + logFilenames.get(head.log) + ")");
+					}
+					if (latest == null || entry.endTime > latest.endTime) {
+						latestByUid.put(uid, entry);
+						latestLogByUid.put(uid, head.log);
+					}
+					next = entry;
+				}
+				return next != null;
+			}
+
+			@Override
+			public LogEntry next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				LogEntry entry = next;
+				next = null;
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Creates a lazy, sequential stream of the merged entries accepted by the
+	 * filter. Closing the stream closes the merger.
+	 *
+	 * @param filter
+	 *            The filter.
+	 * @return The stream.
+	 * @throws IOException
+	 *             Thrown if a log does not exist or cannot be listed.
+	 */
+	Stream<LogEntry> stream(LogFilter filter) throws IOException {
+		Spliterator<LogEntry> spliterator = Spliterators.spliteratorUnknownSize(iterator(filter),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Records a problem for the report, unless enough have been recorded.
+	 *
+	 * @param problem
+	 *            The description of the problem.
+	 */
+	private void report(String problem) {
+		if (problems.size() < MAX_REPORTED)
+			problems.add(problem);
+	}
+
+	/**
+	 * Obtains the number of duplicates (dropped, unless configured
+	 * otherwise).
+	 *
+	 * @return The number of duplicates.
+	 */
+	long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Obtains the number of overlapping entries.
+	 *
+	 * @return The number of overlaps.
+	 */
+	long getOverlaps() {
+		return overlaps;
+	}
+
+	/**
+	 * Obtains the number of entries that were out of order within their log.
+	 *
+	 * @return The number of out-of-order entries.
+	 */
+	long getOutOfOrder() {
+		return outOfOrder;
+	}
+
+	/**
+	 * Obtains the number of lines read from all logs.
+	 *
+	 * @return The number of lines.
+	 */
+	long getLinesRead() {
+		long lines = 0;
+		for (LogSource source : sources)
+			lines += source.getLinesRead();
+		return lines;
+	}
+
+	/**
+	 * Obtains the number of bytes read from all logs.
+	 *
+	 * @return The number of bytes.
+	 */
+	long getBytesRead() {
+		long bytes = 0;
+		for (LogSource source : sources)
+			bytes += source.getBytesRead();
+		return bytes;
+	}
+
+	/**
+	 * Produces a human-readable report of the merge.
+	 *
+	 * @return The report.
+	 */
+	String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Merged ").append(logFilenames.size()).append(" logs: ").append(dropDuplicates ? "dropped " : "found ")
+		.append(duplicates).append(" duplicates, found ").append(overlaps).append(" overlapping and ").append(outOfOrder)
+		.append(" out-of-order entries.").append(nl);
+		for (String problem : problems)
+			sb.append("  ").append(problem).append(nl);
+		if (overlaps + outOfOrder > problems.size())
+			sb.append("  ... and ").append(overlaps + outOfOrder - problems.size()).append(" more.").append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Closes all the logs.
+	 */
+	@Override
+	public void close() {
+		for (LogSource source : sources)
+			source.close();
+	}
+
+	/**
+	 * Merges the logs into a new log file, which is written in the current
+	 * format. The file is only replaced once it is written completely.
+	 *
+	 * @param output
+	 *            The merged log file.
+	 * @return The number of written entries.
+	 * @throws IOException
+	 *             Thrown if a log cannot be read or the output written.
+	 */
+	long mergeInto(File output) throws IOException {
+		final long[] written = new long[1];
+		final DateFormat df = new SimpleDateFormat(Config.dfS);
+		try {
+			Main.writeFileAtomically(output, false, new Main.ContentsWriter() {
+				@Override
+				public void write(OutputStream os) throws IOException {
+					Writer w = new OutputStreamWriter(os);
+					for (Iterator<LogEntry> i = iterator(LogFilter.ALL); i.hasNext(); written[0]++)
+						w.write(i.next().format(df) + nl);
+					w.flush();
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			close();
+		}
+		return written[0];
+	}
+
+	/**
+	 * The entry method, which merges the specified logs into a new log file.
+	 * The report of the merge is written to the standard error output.
+	 *
+	 * @param args
+	 *            The name of the merged log file, followed by the names of
+	 *            the logs to merge.
+	 * @throws Exception
+	 *             Thrown if merging fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			err.println("Usage: java -cp bin rokclock.LogMerger <outputLogFilename> <logFilename> <logFilename>...");
+			exit(1);
+		}
+		LogMerger merger = new LogMerger(Arrays.asList(args).subList(1, args.length));
+		long start = System.nanoTime();
+		long written;
+		try {
+			written = merger.mergeInto(new File(args[0]));
+		} catch (LogFormatException e) {
+			err.println(e.getMessage());
+			exit(1);
+			return;
+		}
+		err.print(merger.getReport());
+		out.printf("Wrote %d entries into %s in %.1f s." + nl, written, args[0], (System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,684 @@
+package rokclock;
+
+import java.text.*;
+import java.time.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A filter of log entries given by an expression, e.g.
+ *
+ * <pre>
+ * path ^= "COW/" and uid in (a, b) and weekday &lt; 6
+ * </pre>
+ *
+ * The expression is compiled once into a tree of conditions, which is then
+ * applied to every entry while the log is read. Conjunctions and disjunctions
+ * evaluate their cheapest conditions first, and stop as soon as the result is
+ * known. Before a line is parsed, the conditions on text fields are checked
+ * against the raw line, so most non-matching lines are rejected without
+ * decoding their dates.
+ * <p>
+ * The fields are:
+ * <ul>
+ * <li><code>path</code>: the project path, with the projects separated by
+ * '/', e.g. "COW/A sub-project";</li>
+ * <li><code>project</code>: the top-level project;</li>
+ * <li><code>uid</code>: the user's unique identifier (empty if none);</li>
+ * <li><code>weekday</code>: the day of the week of the start (1 is Monday, 7 is
+ * Sunday);</li>
+ * <li><code>hour</code>: the hour of the start (0 to 23);</li>
+ * <li><code>duration</code>: the duration in minutes;</li>
+ * <li><code>date</code>: the day of the start, compared with dates given as
+ * dd/MM/yyyy.</li>
+ * </ul>
+ * The operators are <code>=</code>, <code>!=</code>, <code>&lt;</code>,
+ * <code>&lt;=</code>, <code>&gt;</code>, <code>&gt;=</code>, <code>^=</code>
+ * (starts with) and <code>in (...)</code>; conditions can be combined with
+ * <code>and</code>, <code>or</code>, <code>not</code> and parentheses. Values
+ * containing spaces or special characters should be quoted with '"'.
+ */
+public class LogQuery extends LogFilter {
+	/**
+	 * The fields that can be used in an expression.
+	 */
+	private enum Field {
+		PATH(true, 1), PROJECT(true, 1), UID(true, 1), WEEKDAY(false, 3), HOUR(false, 3), DURATION(false, 2), DATE(false, 3);
+
+		/**
+		 * Whether the field is textual (otherwise it is numeric).
+		 */
+		final boolean textual;
+		/**
+		 * The relative cost of evaluating the field.
+		 */
+		final int cost;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param textual
+		 *            Whether the field is textual.
+		 * @param cost
+		 *            The relative cost of evaluating the field.
+		 */
+		Field(boolean textual, int cost) {
+			this.textual = textual;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * A compiled condition.
+	 */
+	private static abstract class Condition {
+		/**
+		 * Evaluates the condition on a parsed entry.
+		 *
+		 * @param entry
+		 *            The entry.
+		 * @return True if the condition holds.
+		 */
+		abstract boolean test(LogEntry entry);
+
+		/**
+		 * Checks whether the condition can hold for the entry of a raw line.
+		 *
+		 * @param line
+		 *            The raw line.
+		 * @return False if the condition cannot hold.
+		 */
+		boolean mayHold(String line) {
+			return true;
+		}
+
+		/**
+		 * Checks whether the condition can hold for any entry of a block of
+		 * the log, whose project paths are summarised by a Bloom filter.
+		 *
+		 * @param filter
+		 *            The Bloom filter.
+		 * @return False if the condition cannot hold.
+		 */
+		boolean mayMatch(BloomFilter filter) {
+			return true;
+		}
+
+		/**
+		 * Obtains the relative cost of evaluating the condition.
+		 *
+		 * @return The cost.
+		 */
+		abstract int cost();
+	}
+
+	/**
+	 * A conjunction or disjunction of conditions.
+	 */
+	private static class Junction extends Condition {
+		/**
+		 * True for a conjunction, false for a disjunction.
+		 */
+		private final boolean and;
+		/**
+		 * The conditions, ordered from the cheapest.
+		 */
+		private final Condition[] conditions;
+
+		/**
+		 * Creates a junction, and orders its conditions from the cheapest.
+		 *
+		 * @param and
+		 *            True for a conjunction, false for a disjunction.
+		 * @param conditions
+		 *            The conditions.
+		 */
+		Junction(boolean and, List<Condition> conditions) {
+			this.and = and;
+			this.conditions = conditions.toArray(new Condition[conditions.size()]);
+			Arrays.sort(this.conditions, new Comparator<Condition>() {
+				@Override
+				public int compare(Condition c1, Condition c2) {
+					return c1.cost() - c2.cost();
+				}
+			});
+		}
+
+		@Override
+		boolean test(LogEntry entry) {
+			for (Condition condition : conditions)
+				if (condition.test(entry) != and) return !and;
+			return and;
+		}
+
+		@Override
+		boolean mayHold(String line) {
+			for (Condition condition : conditions)
+				if (condition.mayHold(line) != and) return !and;
+			return and;
+		}
+
+		@Override
+		boolean mayMatch(BloomFilter filter) {
+			for (Condition condition : conditions)
+				if (condition.mayMatch(filter) != and) return !and;
+			return and;
+		}
+
+		@Override
+		int cost() {
+			int cost = 0;
+			for (Condition condition : conditions)
+				cost += condition.cost();
+			return cost;
+		}
+	}
+
+	/**
+	 * A negation of a condition.
+	 */
+	private static class Negation extends Condition {
+		/**
+		 * The negated condition.
+		 */
+		private final Condition condition;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param condition
+		 *            The negated condition.
+		 */
+		Negation(Condition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		boolean test(LogEntry entry) {
+			return !condition.test(entry);
+		}
+
+		@Override
+		int cost() {
+			return condition.cost();
+		}
+	}
+
+	/**
+	 * A comparison of a field with one or more values.
+	 */
+	private static class Comparison extends Condition {
+		/**
+		 * The field.
+		 */
+		private final Field field;
+		/**
+		 * The operator: one of "=", "!=", "&lt;", "&lt;=", "&gt;", "&gt;=",
+		 * "^=" and "in".
+		 */
+		private final String operator;
+		/**
+		 * The values of a textual field; for paths, with '/' as separator.
+		 */
+		private final String[] texts;
+		/**
+		 * The values of a numeric field.
+		 */
+		private final double[] numbers;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param field
+		 *            The field.
+		 * @param operator
+		 *            The operator.
+		 * @param texts
+		 *            The values of a textual field, or null.
+		 * @param numbers
+		 *            The values of a numeric field, or null.
+		 */
+		Comparison(Field field, String operator, String[] texts, double[] numbers) {
+			this.field = field;
+			this.operator = operator;
+			this.texts = texts;
+			this.numbers = numbers;
+		}
+
+		@Override
+		boolean test(LogEntry entry) {
+			if (field.textual) {
+				String value = getText(entry);
+				if (operator.equals("^=")) return value.startsWith(texts[0]);
+				if (operator.equals("!=")) return !value.equals(texts[0]);
+				for (String text : texts)
+					if (value.equals(text)) return true;
+				return false;
+			}
+			double value = getNumber(entry);
+			if (operator.equals("in")) {
+				for (double number : numbers)
+					if (value == number) return true;
+				return false;
+			}
+			double number = numbers[0];
+			if (operator.equals("=")) return value == number;
+			if (operator.equals("!=")) return value != number;
+			if (operator.equals("<")) return value < number;
+			if (operator.equals("<=")) return value <= number;
+			if (operator.equals(">")) return value > number;
+			return value >= number;
+		}
+
+		/**
+		 * Obtains the value of a textual field.
+		 *
+		 * @param entry
+		 *            The entry.
+		 * @return The value.
+		 */
+		private String getText(LogEntry entry) {
+			switch (field) {
+			case PATH: return normalisePath(entry.projectPath);
+			case PROJECT: return entry.getTopLevelProject();
+			default: return entry.uid == null ? "" : entry.uid;
+			}
+		}
+
+		/**
+		 * Obtains the value of a numeric field.
+		 *
+		 * @param entry
+		 *            The entry.
+		 * @return The value.
+		 */
+		private double getNumber(LogEntry entry) {
+			if (field == Field.DURATION)
+				return (entry.endTime - entry.startTime) / 60000.0;
+			ZonedDateTime start = Instant.ofEpochMilli(entry.startTime).atZone(ZoneId.systemDefault());
+			switch (field) {
+			case WEEKDAY: return start.getDayOfWeek().getValue();
+			case HOUR: return start.getHour();
+			default: return start.toLocalDate().atStartOfDay(start.getZone()).toInstant().toEpochMilli();
+			}
+		}
+
+		/**
+		 * Checks the raw line for the values of textual fields: the line
+		 * should contain at least one of the values (for paths, all of the
+		 * value's projects).
+		 */
+		@Override
+		boolean mayHold(String line) {
+			if (!field.textual || operator.equals("!=")) return true;
+			for (String text : texts)
+				if (containsAll(line, field == Field.PATH ? text.split("/") : new String[] {text}))
+					return true;
+			return false;
+		}
+
+		/**
+		 * Looks up the values of project and path comparisons in the filter.
+		 * For a path prefix, only the projects before its last separator are
+		 * looked up, as the prefix may end within a project's name.
+		 */
+		@Override
+		boolean mayMatch(BloomFilter filter) {
+			if (field != Field.PATH && field != Field.PROJECT || operator.equals("!=")) return true;
+			for (String text : texts) {
+				if (operator.equals("^=")) {
+					int slash = field == Field.PATH ? text.lastIndexOf('/') : -1;
+					if (slash <= 0 || filter.mightContain(text.substring(0, slash))) return true;
+				} else if (filter.mightContain(text))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Checks whether a line contains all of the specified parts.
+		 *
+		 * @param line
+		 *            The line.
+		 * @param parts
+		 *            The parts.
+		 * @return True if all the parts are contained.
+		 */
+		private static boolean containsAll(String line, String[] parts) {
+			for (String part : parts)
+				if (!line.contains(part)) return false;
+			return true;
+		}
+
+		@Override
+		int cost() {
+			return field.cost;
+		}
+	}
+
+	/**
+	 * The separator of projects in a path as written in the log.
+	 */
+	private static final Pattern LOG_PATH_SEPARATOR = Pattern.compile("\\s*,\\s*");
+	/**
+	 * The expression.
+	 */
+	private final String expression;
+	/**
+	 * The compiled expression.
+	 */
+	private final Condition condition;
+
+	/**
+	 * Compiles an expression into a filter, restricted to the specified time
+	 * period.
+	 *
+	 * @param expression
+	 *            The expression.
+	 * @param fromTime
+	 *            The start of the period (inclusive) in milliseconds from
+	 *            epoch, or {@link Long#MIN_VALUE} for no limit.
+	 * @param toTime
+	 *            The end of the period (exclusive) in milliseconds from epoch,
+	 *            or {@link Long#MAX_VALUE} for no limit.
+	 * @throws ParseException
+	 *             Thrown if the expression is not valid; the error offset is
+	 *             the position of the problem within the expression.
+	 */
+	public LogQuery(String expression, long fromTime, long toTime) throws ParseException {
+		super(fromTime, toTime, null);
+		this.expression = expression;
+		Parser parser = new Parser(expression);
+		condition = parser.parseDisjunction();
+		if (parser.peek() != null)
+			throw new ParseException("Unexpected '" + parser.peek() + "'", parser.tokenStart);
+	}
+
+	/**
+	 * Converts a project path as written in the log (separated by commas) into
+	 * the form used in expressions (separated by '/'). This is called for
+	 * every entry tested, so the separator's pattern is compiled only once.
+	 *
+	 * @param projectPath
+	 *            The project path.
+	 * @return The normalised path.
+	 */
+	static String normalisePath(String projectPath) {
+		if (projectPath.indexOf(',') == -1) return projectPath;
+		return LOG_PATH_SEPARATOR.matcher(projectPath).replaceAll("/");
+	}
+
+	@Override
+	public boolean acceptsLine(String line) {
+		return condition.mayHold(line);
+	}
+
+	@Override
+	boolean mayMatch(BloomFilter filter) {
+		return condition.mayMatch(filter);
+	}
+
+	@Override
+	public boolean accepts(LogEntry entry) {
+		return super.accepts(entry) && condition.test(entry);
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/**
+	 * A recursive-descent parser of expressions.
+	 */
+	private static class Parser {
+		/**
+		 * The expression.
+		 */
+		private final String s;
+		/**
+		 * The position after the current token.
+		 */
+		private int position = 0;
+		/**
+		 * The position of the current token.
+		 */
+		int tokenStart = 0;
+		/**
+		 * The current token, or null at the end. Strings are kept with their
+		 * opening quote.
+		 */
+		private String token;
+
+		/**
+		 * Creates a parser, and reads the first token.
+		 *
+		 * @param s
+		 *            The expression.
+		 * @throws ParseException
+		 *             Thrown if the first token is not valid.
+		 */
+		Parser(String s) throws ParseException {
+			this.s = s;
+			advance();
+		}
+
+		/**
+		 * Obtains the current token.
+		 *
+		 * @return The token, or null at the end.
+		 */
+		String peek() {
+			return token;
+		}
+
+		/**
+		 * Reads the next token.
+		 *
+		 * @throws ParseException
+		 *             Thrown if the token is not valid.
+		 */
+		private void advance() throws ParseException {
+			while (position < s.length() && Character.isWhitespace(s.charAt(position))) position++;
+			tokenStart = position;
+			if (position == s.length()) {
+				token = null;
+				return;
+			}
+			char c = s.charAt(position);
+			if (c == '"') {
+				StringBuilder sb = new StringBuilder("\"");
+				position++;
+				while (true) {
+					if (position == s.length())
+						throw new ParseException("Unterminated string", tokenStart);
+					c = s.charAt(position++);
+					if (c == '"') break;
+					if (c == '\\' && position < s.length()) c = s.charAt(position++);
+					sb.append(c);
+				}
+				token = sb.toString();
+			} else if ("(),".indexOf(c) != -1) {
+				token = String.valueOf(c);
+				position++;
+			} else if ("=!<>^".indexOf(c) != -1) {
+				position++;
+				if (position < s.length() && s.charAt(position) == '=') position++;
+				token = s.substring(tokenStart, position);
+				if (token.equals("!") || token.equals("^"))
+					throw new ParseException("Unknown operator '" + token + "'", tokenStart);
+			} else {
+				while (position < s.length() && !Character.isWhitespace(s.charAt(position))
+						&& "(),=!<>^\"".indexOf(s.charAt(position)) == -1)
+					position++;
+				token = s.substring(tokenStart, position);
+			}
+		}
+
+		/**
+		 * Checks whether the current token is the specified keyword, and if
+		 * so, reads the next token.
+		 *
+		 * @param keyword
+		 *            The keyword.
+		 * @return True if the keyword was read.
+		 * @throws ParseException
+		 *             Thrown if the next token is not valid.
+		 */
+		private boolean accept(String keyword) throws ParseException {
+			if (token == null || !token.equalsIgnoreCase(keyword)) return false;
+			advance();
+			return true;
+		}
+
+		/**
+		 * Reads the specified token.
+		 *
+		 * @param expected
+		 *            The expected token.
+		 * @throws ParseException
+		 *             Thrown if the current token is different.
+		 */
+		private void expect(String expected) throws ParseException {
+			if (!accept(expected))
+				throw new ParseException("Expected '" + expected + "'", tokenStart);
+		}
+
+		/**
+		 * Parses a disjunction: conjunction ('or' conjunction)*.
+		 *
+		 * @return The condition.
+		 * @throws ParseException
+		 *             Thrown if the expression is not valid.
+		 */
+		Condition parseDisjunction() throws ParseException {
+			List<Condition> conditions = new ArrayList<Condition>();
+			conditions.add(parseConjunction());
+			while (accept("or"))
+				conditions.add(parseConjunction());
+			return conditions.size() == 1 ? conditions.get(0) : new Junction(false, conditions);
+		}
+
+		/**
+		 * Parses a conjunction: negation ('and' negation)*.
+		 *
+		 * @return The condition.
+		 * @throws ParseException
+		 *             Thrown if the expression is not valid.
+		 */
+		private Condition parseConjunction() throws ParseException {
+			List<Condition> conditions = new ArrayList<Condition>();
+			conditions.add(parseNegation());
+			while (accept("and"))
+				conditions.add(parseNegation());
+			return conditions.size() == 1 ? conditions.get(0) : new Junction(true, conditions);
+		}
+
+		/**
+		 * Parses a negation: 'not' negation | '(' disjunction ')' |
+		 * comparison.
+		 *
+		 * @return The condition.
+		 * @throws ParseException
+		 *             Thrown if the expression is not valid.
+		 */
+		private Condition parseNegation() throws ParseException {
+			if (accept("not"))
+				return new Negation(parseNegation());
+			if (accept("(")) {
+				Condition condition = parseDisjunction();
+				expect(")");
+				return condition;
+			}
+			return parseComparison();
+		}
+
+		/**
+		 * Parses a comparison: field operator value | field 'in' '(' value
+		 * (',' value)* ')'.
+		 *
+		 * @return The condition.
+		 * @throws ParseException
+		 *             Thrown if the expression is not valid.
+		 */
+		private Condition parseComparison() throws ParseException {
+			if (token == null)
+				throw new ParseException("Unexpected end of expression", tokenStart);
+			Field field;
+			try {field = Field.valueOf(token.toUpperCase(Locale.ROOT));}
+			catch (IllegalArgumentException e) {
+				throw new ParseException("Unknown field '" + token + "'", tokenStart);
+			}
+			advance();
+			int operatorStart = tokenStart;
+			String operator = token == null ? "" : token.toLowerCase(Locale.ROOT);
+			List<String> values = new ArrayList<String>();
+			List<Integer> positions = new ArrayList<Integer>();
+			if (operator.equals("in")) {
+				advance();
+				expect("(");
+				do {
+					positions.add(tokenStart);
+					values.add(parseValue());
+				} while (accept(","));
+				expect(")");
+			} else if (Arrays.asList("=", "!=", "<", "<=", ">", ">=", "^=").contains(operator)) {
+				advance();
+				positions.add(tokenStart);
+				values.add(parseValue());
+			} else
+				throw new ParseException("Expected an operator", operatorStart);
+			if (field.textual) {
+				if (operator.startsWith("<") || operator.startsWith(">"))
+					throw new ParseException("Operator '" + operator + "' cannot be used with " + field.name().toLowerCase(Locale.ROOT), operatorStart);
+				return new Comparison(field, operator, values.toArray(new String[values.size()]), null);
+			}
+			if (operator.equals("^="))
+				throw new ParseException("Operator '^=' cannot be used with " + field.name().toLowerCase(Locale.ROOT), operatorStart);
+			double[] numbers = new double[values.size()];
+			for (int i = 0; i < numbers.length; i++)
+				numbers[i] = parseNumber(field, values.get(i), positions.get(i));
+			return new Comparison(field, operator, null, numbers);
+		}
+
+		/**
+		 * Parses a value: a string or a bare word.
+		 *
+		 * @return The value.
+		 * @throws ParseException
+		 *             Thrown if there is no value.
+		 */
+		private String parseValue() throws ParseException {
+			if (token == null || (token.length() == 1 && "(),".contains(token)))
+				throw new ParseException("Expected a value", tokenStart);
+			String value = token.startsWith("\"") ? token.substring(1) : token;
+			advance();
+			return value;
+		}
+
+		/**
+		 * Parses the value of a numeric field.
+		 *
+		 * @param field
+		 *            The field.
+		 * @param value
+		 *            The value.
+		 * @param position
+		 *            The position of the value, for error messages.
+		 * @return The number.
+		 * @throws ParseException
+		 *             Thrown if the value is not valid.
+		 */
+		private static double parseNumber(Field field, String value, int position) throws ParseException {
+			try {
+				if (field == Field.DATE)
+					return new SimpleDateFormat("dd/MM/yyyy").parse(value).getTime();
+				return Double.parseDouble(value);
+			} catch (ParseException e) {
+				throw new ParseException("Dates should be specified as dd/MM/yyyy", position);
+			} catch (NumberFormatException e) {
+				throw new ParseException("Expected a number", position);
+			}
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The sorter of logs whose entries are not ordered by time (e.g. assembled on
+ * the hub from several sources), for logs much larger than the available
+ * memory. The log is read once, and cut into runs that fit into the memory
+ * budget; the runs are sorted in parallel and spilled into temporary files,
+ * which are then merged by a {@link LogMerger}. At most as many runs as there
+ * are sorting threads are kept in memory at any time.
+ * <p>
+ * The sorted log is written in the current format, and then read again to
+ * validate it: it should be ordered by time, and contain as many entries with
+ * the same total duration as the input.
+ */
+class LogSorter {
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+	/**
+	 * The default memory budget in megabytes.
+	 */
+	static final int DEFAULT_MEMORY_MEGABYTES = 64;
+	/**
+	 * A rough estimate of the memory used by a parsed entry apart from its
+	 * project path and user, in bytes.
+	 */
+	private static final long ENTRY_OVERHEAD_BYTES = 96;
+	/**
+	 * The maximal number of runs merged at once; more runs are merged in
+	 * several passes.
+	 */
+	private static final int MAX_FAN_IN = 64;
+	/**
+	 * The order of entries: by start time, then by end time.
+	 */
+	private static final Comparator<LogEntry> ORDER = new Comparator<LogEntry>() {
+		@Override
+		public int compare(LogEntry e1, LogEntry e2) {
+			int c = Long.compare(e1.startTime, e2.startTime);
+			return c != 0 ? c : Long.compare(e1.endTime, e2.endTime);
+		}
+	};
+	/**
+	 * The memory budget in bytes.
+	 */
+	private final long memoryBudget;
+	/**
+	 * The number of sorting threads.
+	 */
+	private final int threads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * The lines of the input that could not be parsed.
+	 */
+	private final Quarantine quarantine = new Quarantine(100);
+	/**
+	 * The validation report, or null before sorting.
+	 */
+	private String report;
+
+	/**
+	 * Creates a sorter with the specified memory budget.
+	 *
+	 * @param memoryMegabytes
+	 *            The memory budget in megabytes, shared by all runs being
+	 *            sorted at the same time.
+	 */
+	LogSorter(int memoryMegabytes) {
+		memoryBudget = memoryMegabytes * (1L << 20);
+	}
+
+	/**
+	 * Sorts a log into a new log file. The output file is only replaced once
+	 * it is written and validated completely.
+	 *
+	 * @param logFilename
+	 *            The name of the log file; it can also be a segmented log.
+	 * @param output
+	 *            The sorted log file.
+	 * @return True if the output passed the validation.
+	 * @throws IOException
+	 *             Thrown if the log cannot be read, or the output written.
+	 */
+	boolean sort(String logFilename, File output) throws IOException {
+		long start = System.nanoTime();
+		File tempDir = Files.createTempDirectory(output.getAbsoluteFile().toPath().getParent(), "sort").toFile();
+		ExecutorService sorters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "log-sorter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			// read the input, and sort and spill the runs in parallel
+			final Semaphore inMemory = new Semaphore(threads);
+			long runBudget = memoryBudget / (threads + 1);
+			List<Future<File>> runs = new ArrayList<Future<File>>();
+			long inputEntries = 0, inputMillis = 0, inversions = 0, lastStart = Long.MIN_VALUE;
+			LogSource source = new LogSource(logFilename);
+			source.setStrict(false);
+			source.setQuarantine(quarantine);
+			List<LogEntry> run = new ArrayList<LogEntry>();
+			long runBytes = 0;
+			try {
+				for (Iterator<LogEntry> i = source.iterator(LogFilter.ALL); i.hasNext();) {
+					LogEntry entry = i.next();
+					inputEntries++;
+					inputMillis += entry.endTime - entry.startTime;
+					if (entry.startTime < lastStart) inversions++;
+					lastStart = entry.startTime;
+					run.add(entry);
+					runBytes += ENTRY_OVERHEAD_BYTES + 2 * (entry.projectPath.length() + (entry.uid == null ? 0 : entry.uid.length()));
+					if (runBytes >= runBudget) {
+						runs.add(spill(run, new File(tempDir, "run" + runs.size()), sorters, inMemory));
+						run = new ArrayList<LogEntry>();
+						runBytes = 0;
+					}
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				source.close();
+			}
+			if (!run.isEmpty() || runs.isEmpty())
+				runs.add(spill(run, new File(tempDir, "run" + runs.size()), sorters, inMemory));
+			List<String> runFiles = new ArrayList<String>();
+			for (Future<File> f : runs)
+				runFiles.add(waitFor(f).getPath());
+			long sortNanos = System.nanoTime() - start;
+			// merge the runs, in several passes if there are too many
+			int pass = 0;
+			while (runFiles.size() > MAX_FAN_IN) {
+				List<String> merged = new ArrayList<String>();
+				for (int i = 0; i < runFiles.size(); i += MAX_FAN_IN) {
+					File f = new File(tempDir, "pass" + pass + "-" + merged.size());
+					merge(runFiles.subList(i, Math.min(i + MAX_FAN_IN, runFiles.size())), f);
+					merged.add(f.getPath());
+				}
+				runFiles = merged;
+				pass++;
+			}
+			File temp = new File(tempDir, "sorted");
+			LogMerger merger = merge(runFiles, temp);
+			// validate the output
+			long outputEntries = 0, outputMillis = 0, disorders = 0;
+			lastStart = Long.MIN_VALUE;
+			source = new LogSource(temp.getPath());
+			try {
+				for (Iterator<LogEntry> i = source.iterator(LogFilter.ALL); i.hasNext();) {
+					LogEntry entry = i.next();
+					outputEntries++;
+					outputMillis += entry.endTime - entry.startTime;
+					if (entry.startTime < lastStart) disorders++;
+					lastStart = entry.startTime;
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				source.close();
+			}
+			boolean valid = disorders == 0 && outputEntries == inputEntries && outputMillis == inputMillis;
+			if (valid)
+				Main.replaceFileAtomically(temp, output);
+			quarantine.resolveLineNumbers();
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Sorted %d entries of %s in %.1f s (%d runs sorted in %.1f s on %d threads, %d merge passes)." + nl,
+					inputEntries, logFilename, (System.nanoTime() - start) / 1e9, runs.size(), sortNanos / 1e9, threads, pass + 1));
+			sb.append(String.format("Input: %d entries out of order, %d malformed lines skipped." + nl, inversions, quarantine.getTotal()));
+			sb.append(String.format("Output: %d entries (%s), %d out of order, %d duplicates kept, total duration %s." + nl,
+					outputEntries, outputEntries == inputEntries ? "as many as read" : "expected " + inputEntries,
+					disorders, merger.getDuplicates(), outputMillis == inputMillis ? "unchanged" : "changed"));
+			sb.append(valid ? "Validation passed; wrote " + output + "." + nl
+					: "Validation FAILED; " + output + " was not written." + nl);
+			sb.append(quarantine.getReport());
+			report = sb.toString();
+			return valid;
+		} finally {
+			sorters.shutdownNow();
+			for (File f : tempDir.listFiles())
+				f.delete();
+			tempDir.delete();
+		}
+	}
+
+	/**
+	 * Sorts a run and writes it into a temporary file in the background. If
+	 * the sorting threads are all busy, this waits until one is free, so that
+	 * the memory budget is kept.
+	 *
+	 * @param run
+	 *            The entries of the run.
+	 * @param file
+	 *            The file to write into.
+	 * @param sorters
+	 *            The sorting threads.
+	 * @param inMemory
+	 *            The permits for the runs kept in memory.
+	 * @return The future of the written file.
+	 * @throws IOException
+	 *             Thrown if interrupted while waiting.
+	 */
+	private static Future<File> spill(final List<LogEntry> run, final File file, ExecutorService sorters,
+			final Semaphore inMemory) throws IOException {
+		try {inMemory.acquire();}
+		catch (InterruptedException e) {throw new InterruptedIOException();}
+		return sorters.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				try {
+					Collections.sort(run, ORDER);
+					DateFormat df = new SimpleDateFormat(Config.dfS);
+					BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16);
+					try {
+						for (LogEntry entry : run)
+							w.write(entry.format(df) + nl);
+					} finally {
+						w.close();
+					}
+					return file;
+				} finally {
+					inMemory.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for a run to be written.
+	 *
+	 * @param f
+	 *            The future of the run.
+	 * @return The file of the run.
+	 * @throws IOException
+	 *             Thrown if the run could not be written.
+	 */
+	private static File waitFor(Future<File> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Merges sorted runs into a file, keeping any duplicates.
+	 *
+	 * @param runFiles
+	 *            The files of the runs.
+	 * @param file
+	 *            The file to write into.
+	 * @return The merger, for its statistics.
+	 * @throws IOException
+	 *             Thrown if merging fails.
+	 */
+	private static LogMerger merge(List<String> runFiles, File file) throws IOException {
+		LogMerger merger = new LogMerger(new ArrayList<String>(runFiles));
+		merger.setDropDuplicates(false);
+		merger.mergeInto(file);
+		for (String runFile : runFiles)
+			new File(runFile).delete();
+		return merger;
+	}
+
+	/**
+	 * Obtains the report of the last sorting, including the validation.
+	 *
+	 * @return The report, or null before sorting.
+	 */
+	String getReport() {
+		return report;
+	}
+
+	/**
+	 * The entry method, which sorts a log into a new log file, and writes the
+	 * validation report to the standard output.
+	 *
+	 * @param args
+	 *            Optionally "-memory" and the memory budget in megabytes,
+	 *            followed by the names of the log file and of the sorted log
+	 *            file.
+	 * @throws Exception
+	 *             Thrown if sorting fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		int memory = DEFAULT_MEMORY_MEGABYTES;
+		if (args.length == 4 && args[0].equals("-memory"))
+			try {
+				memory = Integer.parseInt(args[1]);
+				args = Arrays.copyOfRange(args, 2, 4);
+			} catch (NumberFormatException e) {
+				err.println("The memory budget should be a number of megabytes: " + args[1]);
+				exit(1);
+			}
+		if (args.length != 2 || memory <= 0) {
+			err.println("Usage: java -cp bin rokclock.LogSorter [-memory <megabytes>] <logFilename> <outputLogFilename>");
+			exit(1);
+		}
+		LogSorter sorter = new LogSorter(memory);
+		boolean valid = sorter.sort(args[0], new File(args[1]));
+		out.print(sorter.getReport());
+		if (!valid) exit(1);
+	}
+}
@@ -0,0 +1,650 @@
+package rokclock;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+/**
+ * A lazy source of parsed log entries, which reads either a single log file or
+ * a {@link SegmentedLog}. The entries are produced one by one as they are
+ * read, so custom reports can be composed without materialising the log:
+ *
+ * <pre>
+ * LogSource source = new LogSource("log.txt");
+ * try (Stream&lt;LogEntry&gt; entries = source.stream(LogFilter.range(from, to), true)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * A {@link LogFilter} is pushed down into the reading: segments outside of its
+ * time period are not read at all, and lines are checked before they are
+ * parsed. For parallel streams, the log is split into chunks: every segment is
+ * a chunk, and a single log file is split into byte ranges aligned to lines.
+ * If the log has Bloom filters (see {@link BloomIndex}), the segments and
+ * blocks that cannot contain accepted entries are skipped as well.
+ * <p>
+ * By default, the source is strict: a line that cannot be parsed makes
+ * reading fail with a {@link LogFormatException}. Otherwise (in the
+ * resilient mode), such lines are skipped and kept in a bounded
+ * {@link Quarantine} with their line numbers and byte offsets. Reading
+ * failures are reported as {@link UncheckedIOException}s.
+ */
+public class LogSource implements Closeable {
+	/**
+	 * The smallest byte range a log file is split into for parallel reading.
+	 */
+	private static final long MIN_SPLIT_BYTES = 1 << 20;
+	/**
+	 * A rough estimate of the size of a log line in bytes, used for
+	 * estimating the number of entries.
+	 */
+	private static final long ESTIMATED_LINE_BYTES = 64;
+	/**
+	 * The maximal number of lines kept in the quarantine.
+	 */
+	private static final int QUARANTINE_CAPACITY = 100;
+	/**
+	 * The name of the log file.
+	 */
+	private final String logFilename;
+	/**
+	 * Whether lines that cannot be parsed make reading fail.
+	 */
+	private volatile boolean strict = true;
+	/**
+	 * The number of lines read so far.
+	 */
+	private final AtomicLong linesRead = new AtomicLong();
+	/**
+	 * The number of bytes read so far.
+	 */
+	private final AtomicLong bytesRead = new AtomicLong();
+	/**
+	 * The number of lines that could not be parsed so far.
+	 */
+	private final AtomicLong malformedLines = new AtomicLong();
+	/**
+	 * The lines that could not be parsed.
+	 */
+	private volatile Quarantine quarantine = new Quarantine(QUARANTINE_CAPACITY);
+	/**
+	 * The byte range of a single log file to read, or null for the whole
+	 * log.
+	 */
+	private long[] range;
+	/**
+	 * The number of blocks checked against their Bloom filters, the number of
+	 * them skipped, and their size in bytes.
+	 */
+	private long blocksChecked = 0, blocksSkipped = 0, bytesSkipped = 0;
+	/**
+	 * The readers that are currently open; they are closed by
+	 * {@link #close()}.
+	 */
+	private final Set<ChunkReader> openReaders = Collections.newSetFromMap(new ConcurrentHashMap<ChunkReader, Boolean>());
+
+	/**
+	 * Creates a source for the specified log file. If a segmented log exists
+	 * for it, the segments are read instead, together with any entries of the
+	 * log file that are not in the segments (see {@link SegmentedLog}).
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 */
+	public LogSource(String logFilename) {
+		this.logFilename = logFilename;
+	}
+
+	/**
+	 * Sets whether lines that cannot be parsed make reading fail (the
+	 * default), or are skipped and quarantined.
+	 *
+	 * @param strict
+	 *            True to fail on malformed lines.
+	 */
+	public void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * Restricts reading to a byte range of a single log file, e.g. to read
+	 * only the bytes appended since an earlier analysis. Both ends should be
+	 * at the start of a line.
+	 *
+	 * @param start
+	 *            The start of the range (inclusive).
+	 * @param end
+	 *            The end of the range (exclusive).
+	 */
+	void setRange(long start, long end) {
+		range = new long[] {start, end};
+	}
+
+	/**
+	 * Obtains the number of lines read so far. Lines are counted once their
+	 * chunk is read completely or closed.
+	 *
+	 * @return The number of lines.
+	 */
+	public long getLinesRead() {
+		return linesRead.get();
+	}
+
+	/**
+	 * Obtains the number of bytes read so far. Bytes are counted once their
+	 * chunk is read completely or closed.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Obtains the number of lines that could not be parsed so far.
+	 *
+	 * @return The number of malformed lines.
+	 */
+	public long getMalformedLines() {
+		return malformedLines.get();
+	}
+
+	/**
+	 * Sets the quarantine for the lines that cannot be parsed, e.g. to share
+	 * it between several sources.
+	 *
+	 * @param quarantine
+	 *            The quarantine.
+	 */
+	void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * Obtains the lines that could not be parsed so far, with their line
+	 * numbers and byte offsets. The line numbers of lines found in the middle
+	 * of a log file (when it was read in parallel) are worked out here.
+	 *
+	 * @return The quarantine.
+	 * @throws IOException
+	 *             Thrown if the log file cannot be read.
+	 */
+	public Quarantine getQuarantine() throws IOException {
+		quarantine.resolveLineNumbers();
+		return quarantine;
+	}
+
+	/**
+	 * Creates a lazy iterator over the entries accepted by the filter, in the
+	 * order of the log. Read it to the end, or {@link #close()} the source.
+	 *
+	 * @param filter
+	 *            The filter.
+	 * @return The iterator.
+	 * @throws IOException
+	 *             Thrown if the log does not exist or cannot be listed.
+	 */
+	public Iterator<LogEntry> iterator(LogFilter filter) throws IOException {
+		return Spliterators.iterator(spliterator(filter));
+	}
+
+	/**
+	 * Creates a lazy stream of the entries accepted by the filter. Closing the
+	 * stream closes the source.
+	 *
+	 * @param filter
+	 *            The filter.
+	 * @param parallel
+	 *            Whether the stream should be read in parallel.
+	 * @return The stream.
+	 * @throws IOException
+	 *             Thrown if the log does not exist or cannot be listed.
+	 */
+	public Stream<LogEntry> stream(LogFilter filter, boolean parallel) throws IOException {
+		return StreamSupport.stream(spliterator(filter), parallel).onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Creates a spliterator over the entries accepted by the filter, which
+	 * can be split into chunks of the log for parallel reading.
+	 *
+	 * @param filter
+	 *            The filter.
+	 * @return The spliterator.
+	 * @throws IOException
+	 *             Thrown if the log does not exist or cannot be listed.
+	 */
+	public Spliterator<LogEntry> spliterator(LogFilter filter) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		BloomIndex index = BloomIndex.load(logFilename);
+		if (SegmentedLog.exists(logFilename)) {
+			SegmentedLog log = new SegmentedLog(logFilename);
+			Date fromDate = filter.getFromTime() == Long.MIN_VALUE ? null : new Date(filter.getFromTime());
+			Date toDate = filter.getToTime() == Long.MAX_VALUE ? null : new Date(filter.getToTime());
+			for (SegmentedLog.Segment segment : log.getSegments(fromDate, toDate)) {
+				BloomIndex.Block block = index == null ? null : index.getSegmentBlock(segment);
+				if (block == null || mayMatch(block, filter))
+					chunks.add(new Chunk(log, segment));
+			}
+			// the entries of the log file that are not in the segments
+			File file = new File(logFilename);
+			long residualStart = log.getResidualStart();
+			if (residualStart >= 0 && file.length() > residualStart) {
+				// an unmigrated history precedes the segments, later appends follow them
+				Chunk residual = new Chunk(file, residualStart, file.length());
+				if (residualStart == 0) chunks.add(0, residual);
+				else chunks.add(residual);
+			}
+		} else {
+			File file = new File(logFilename);
+			if (!file.isFile())
+				throw new FileNotFoundException(logFilename);
+			if (range != null)
+				return new ChunkSpliterator(new ArrayList<Chunk>(Arrays.asList(new Chunk(file, range[0], range[1]))), filter);
+			long start = 0;
+			if (index != null)
+				for (BloomIndex.Block block : index.getFileBlocks()) {
+					if (mayMatch(block, filter)) {
+						// adjacent blocks are read as a single chunk
+						Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+						if (last != null && last.end == block.start)
+							chunks.set(chunks.size() - 1, new Chunk(file, last.start, block.end));
+						else
+							chunks.add(new Chunk(file, block.start, block.end));
+					}
+					start = block.end;
+				}
+			if (start < file.length() || start == 0)
+				chunks.add(new Chunk(file, start, file.length()));
+		}
+		return new ChunkSpliterator(chunks, filter);
+	}
+
+	/**
+	 * Checks a block of the log against the filter, and counts it. The blocks
+	 * that changed since their Bloom filters were built have already been
+	 * dropped when the index was loaded.
+	 *
+	 * @param block
+	 *            The block, with its Bloom filter.
+	 * @param filter
+	 *            The filter.
+	 * @return True if the block needs to be read.
+	 */
+	private boolean mayMatch(BloomIndex.Block block, LogFilter filter) {
+		blocksChecked++;
+		if (filter.mayMatch(block.filter)) return true;
+		blocksSkipped++;
+		bytesSkipped += block.end - block.start;
+		return false;
+	}
+
+	/**
+	 * Describes how many blocks of the log were skipped thanks to their Bloom
+	 * filters (see {@link BloomIndex}).
+	 *
+	 * @return The description, or null if no Bloom filters were checked.
+	 */
+	public String getSkipReport() {
+		if (blocksChecked == 0) return null;
+		return String.format("Bloom filters skipped %d of %d blocks (%.1f%%), %d bytes.",
+				blocksSkipped, blocksChecked, 100.0 * blocksSkipped / blocksChecked, bytesSkipped);
+	}
+
+	/**
+	 * Closes all the readers that are still open.
+	 */
+	@Override
+	public void close() {
+		for (ChunkReader reader : openReaders)
+			reader.close();
+	}
+
+	/**
+	 * A chunk of the log: either a byte range of a log file, or a whole
+	 * segment of a segmented log.
+	 */
+	private static class Chunk {
+		/**
+		 * The log file. Null for a segment.
+		 */
+		final File file;
+		/**
+		 * The start of the byte range (inclusive).
+		 */
+		final long start;
+		/**
+		 * The end of the byte range (exclusive). Lines starting before the end
+		 * belong to the chunk, even if they continue past it.
+		 */
+		final long end;
+		/**
+		 * The segmented log. Null for a byte range.
+		 */
+		final SegmentedLog log;
+		/**
+		 * The segment. Null for a byte range.
+		 */
+		final SegmentedLog.Segment segment;
+
+		/**
+		 * Creates a chunk for a byte range of a log file.
+		 *
+		 * @param file
+		 *            The log file.
+		 * @param start
+		 *            The start of the range (inclusive).
+		 * @param end
+		 *            The end of the range (exclusive).
+		 */
+		Chunk(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			log = null;
+			segment = null;
+		}
+
+		/**
+		 * Creates a chunk for a whole segment.
+		 *
+		 * @param log
+		 *            The segmented log.
+		 * @param segment
+		 *            The segment.
+		 */
+		Chunk(SegmentedLog log, SegmentedLog.Segment segment) {
+			file = null;
+			start = 0;
+			end = segment.bytes;
+			this.log = log;
+			this.segment = segment;
+		}
+
+		/**
+		 * Checks whether this chunk can be split into two.
+		 *
+		 * @return True if the chunk can be split.
+		 */
+		boolean isSplittable() {
+			return file != null && end - start >= 2 * MIN_SPLIT_BYTES;
+		}
+	}
+
+	/**
+	 * The spliterator over a list of chunks.
+	 */
+	private class ChunkSpliterator implements Spliterator<LogEntry> {
+		/**
+		 * The chunks; only those from {@link #next} to {@link #last} belong to
+		 * this spliterator.
+		 */
+		private final List<Chunk> chunks;
+		/**
+		 * The index of the next chunk to read.
+		 */
+		private int next = 0;
+		/**
+		 * The index after the last chunk to read.
+		 */
+		private int last;
+		/**
+		 * The filter.
+		 */
+		private final LogFilter filter;
+		/**
+		 * The reader of the current chunk. Can be null.
+		 */
+		private ChunkReader current;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param chunks
+		 *            The chunks to read.
+		 * @param filter
+		 *            The filter.
+		 */
+		ChunkSpliterator(List<Chunk> chunks, LogFilter filter) {
+			this.chunks = chunks;
+			this.filter = filter;
+			last = chunks.size();
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super LogEntry> action) {
+			while (true) {
+				if (current == null) {
+					if (next == last) return false;
+					current = new ChunkReader(chunks.get(next++), filter);
+				}
+				LogEntry entry = current.nextEntry();
+				if (entry != null) {
+					action.accept(entry);
+					return true;
+				}
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public Spliterator<LogEntry> trySplit() {
+			if (current != null || next == last) return null;
+			if (last - next == 1) {
+				Chunk chunk = chunks.get(next);
+				if (!chunk.isSplittable()) return null;
+				long middle = chunk.start + (chunk.end - chunk.start) / 2;
+				List<Chunk> prefix = new ArrayList<Chunk>();
+				prefix.add(new Chunk(chunk.file, chunk.start, middle));
+				chunks.set(next, new Chunk(chunk.file, middle, chunk.end));
+				// the returned spliterator covers the prefix, as required for ordering
+				return new ChunkSpliterator(prefix, filter);
+			}
+			int middle = next + (last - next) / 2;
+			ChunkSpliterator prefix = new ChunkSpliterator(new ArrayList<Chunk>(chunks.subList(next, middle)), filter);
+			next = middle;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			long bytes = 0;
+			for (int i = next; i < last; i++)
+				bytes += chunks.get(i).end - chunks.get(i).start;
+			return bytes / ESTIMATED_LINE_BYTES + (current == null ? 0 : 1);
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	/**
+	 * The reader of a single chunk. It parses the lines, and applies the
+	 * filter.
+	 */
+	private class ChunkReader {
+		/**
+		 * The chunk.
+		 */
+		private final Chunk chunk;
+		/**
+		 * The filter.
+		 */
+		private final LogFilter filter;
+		/**
+		 * The date format; a chunk is only read by a single thread.
+		 */
+		private final DateFormat df = new SimpleDateFormat(Config.dfS);
+		/**
+		 * The stream of a byte range, or of the uncompressed bytes of a
+		 * segment.
+		 */
+		private InputStream in;
+		/**
+		 * The offset of the next byte in the log file (or in the
+		 * uncompressed segment).
+		 */
+		private long position;
+		/**
+		 * The offset of the current line in the log file (or in the
+		 * uncompressed segment).
+		 */
+		private long lineOffset;
+		/**
+		 * The number of the current line within the chunk.
+		 */
+		private long lineNumber = 0;
+		/**
+		 * The number of bytes read.
+		 */
+		private long bytes = 0;
+		/**
+		 * The buffer for the bytes of a line.
+		 */
+		private byte[] buffer = new byte[256];
+		/**
+		 * Whether the reader is closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Opens the reader of a chunk. The reader of a byte range that does
+		 * not start at the beginning of the file skips the partial line at
+		 * its start, which belongs to the previous chunk.
+		 *
+		 * @param chunk
+		 *            The chunk.
+		 * @param filter
+		 *            The filter.
+		 */
+		ChunkReader(Chunk chunk, LogFilter filter) {
+			this.chunk = chunk;
+			this.filter = filter;
+			openReaders.add(this);
+			try {
+				if (chunk.log != null) {
+					in = new BufferedInputStream(chunk.log.openStream(chunk.segment), 1 << 16);
+					return;
+				}
+				FileInputStream fis = new FileInputStream(chunk.file);
+				position = Math.max(0, chunk.start - 1);
+				fis.getChannel().position(position);
+				in = new BufferedInputStream(fis, 1 << 16);
+				if (chunk.start > 0) {
+					int b;
+					while ((b = in.read()) != -1) {
+						position++;
+						if (b == '\n') break;
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Reads the next line of the chunk.
+		 *
+		 * @return The line, or null at the end of the chunk.
+		 * @throws IOException
+		 *             Thrown if reading fails.
+		 */
+		private String readLine() throws IOException {
+			if (position >= chunk.end) return null;
+			lineOffset = position;
+			int length = 0, b;
+			while ((b = in.read()) != -1) {
+				position++;
+				if (b == '\n') break;
+				if (length == buffer.length)
+					buffer = Arrays.copyOf(buffer, 2 * length);
+				buffer[length++] = (byte) b;
+			}
+			if (b == -1 && length == 0) return null;
+			bytes += position - lineOffset;
+			return new String(buffer, 0, length);
+		}
+
+		/**
+		 * Obtains the name of the file (or segment) being read.
+		 *
+		 * @return The name of the file.
+		 */
+		private String getSource() {
+			return (chunk.log != null ? chunk.log.getFile(chunk.segment) : chunk.file).getPath();
+		}
+
+		/**
+		 * Describes the location of the current line, for error messages.
+		 *
+		 * @return The location.
+		 */
+		private String getLocation() {
+			if (chunk.log != null || chunk.start == 0)
+				return "line " + lineNumber + " of " + getSource();
+			return "byte offset " + lineOffset + " of " + getSource();
+		}
+
+		/**
+		 * Reads the next entry accepted by the filter.
+		 *
+		 * @return The entry, or null at the end of the chunk.
+		 */
+		LogEntry nextEntry() {
+			try {
+				String line;
+				while ((line = readLine()) != null) {
+					lineNumber++;
+					line = line.trim();
+					if (line.isEmpty() || !filter.acceptsLine(line)) continue;
+					LogEntry entry;
+					try {entry = LogEntry.parse(line, df);}
+					catch (Exception e) {
+						malformedLines.incrementAndGet();
+						if (strict) throw new LogFormatException(getLocation(), line, e);
+						quarantine.add(getSource(), chunk.log != null || chunk.start == 0 ? lineNumber : -1,
+								lineOffset, line, e);
+						continue;
+					}
+					if (filter.accepts(entry)) return entry;
+				}
+				return null;
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			} catch (LogFormatException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Closes the reader, and adds its counts to the source's.
+		 */
+		synchronized void close() {
+			if (closed) return;
+			closed = true;
+			openReaders.remove(this);
+			linesRead.addAndGet(lineNumber);
+			bytesRead.addAndGet(bytes);
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
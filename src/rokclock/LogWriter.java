@@ -0,0 +1,146 @@
+package rokclock;
+
+import java.io.*;
+import java.text.DateFormat;
+import java.util.Date;
+
+import rokclock.Config.LogSegmentation;
+
+/**
+ * The writer of log entries. Depending on the configuration, the entries are
+ * either appended to a single log file, or to a {@link SegmentedLog}. In the
+ * latter case, closed segments are compressed in the background whenever a
+ * new segment is started, if so configured. If an ingestion server is
+ * configured, every entry is also sent to it through a {@link RemoteLogSink}.
+ */
+class LogWriter {
+	/**
+	 * A platform-independent newline.
+	 */
+	private final String nl = System.getProperty("line.separator");
+	/**
+	 * A link to the configuration's date format.
+	 */
+	private final DateFormat df = Config.df;
+	/**
+	 * A link to the configuration object.
+	 */
+	private final Config config;
+	/**
+	 * The segmented log, opened on first use. Can be null.
+	 */
+	private SegmentedLog segmentedLog;
+	/**
+	 * The sink for the ingestion server. Can be null.
+	 */
+	private RemoteLogSink remoteSink;
+
+	/**
+	 * Creates a writer. If an ingestion server is configured, its sink is
+	 * created straight away, so that the entries left in its spool by a
+	 * previous run are sent without waiting for the next entry.
+	 *
+	 * @param config
+	 *            The configuration object.
+	 */
+	LogWriter(Config config) {
+		this.config = config;
+		try {getRemoteSink();}
+		catch (IOException e) {
+			System.err.println("Could not create the sink for the ingestion server.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Obtains the sink for the ingestion server, creating it if needed.
+	 *
+	 * @return The sink, or null if no ingestion server is configured.
+	 * @throws IOException
+	 *             Thrown if the server's address is invalid, or the spool
+	 *             cannot be read.
+	 */
+	private synchronized RemoteLogSink getRemoteSink() throws IOException {
+		String ingestServer = config.getIngestServer();
+		if (ingestServer != null && remoteSink == null) {
+			String user = config.getUID() != null ? config.getUID() : System.getProperty("user.name");
+			remoteSink = new RemoteLogSink(RemoteLogSink.parseAddress(ingestServer), user,
+					new File(config.getLogFilename() + ".spool"));
+		}
+		return remoteSink;
+	}
+
+	/**
+	 * Formats a log entry. The user's unique identifier is prepended if it is
+	 * specified in the configuration.
+	 *
+	 * @param startTime
+	 *            The start time in milliseconds from epoch.
+	 * @param endTime
+	 *            The end time in milliseconds from epoch.
+	 * @param projectPath
+	 *            The full path to the sub-project.
+	 * @return The log entry (without a newline).
+	 */
+	String format(long startTime, long endTime, String[] projectPath) {
+		String startTimeS = df.format(new Date(startTime));
+		String endTimeS = df.format(new Date(endTime));
+		String uid = config.getUID();
+		String entry = (uid == null ? "" : uid + ",") + startTimeS + "," + endTimeS;
+		for (String projectPathNode : projectPath)
+			entry += "," + projectPathNode;
+		return entry;
+	}
+
+	/**
+	 * Writes a single log entry.
+	 *
+	 * @param startTime
+	 *            The start time in milliseconds from epoch.
+	 * @param endTime
+	 *            The end time in milliseconds from epoch.
+	 * @param projectPath
+	 *            The full path to the sub-project.
+	 * @throws IOException
+	 *             Thrown if the entry cannot be written.
+	 */
+	synchronized void write(long startTime, long endTime, String[] projectPath) throws IOException {
+		long writeStart = System.nanoTime();
+		FlightEvents.LogWrite event = new FlightEvents.LogWrite();
+		String entry = format(startTime, endTime, projectPath);
+		writeLocally(entry, startTime, endTime);
+		RemoteLogSink sink = getRemoteSink();
+		if (sink != null)
+			sink.submit(entry);
+		Metrics.INSTANCE.recordLogAppend(writeStart, entry.length() + nl.length());
+		event.finish(projectPath, entry.length() + nl.length());
+	}
+
+	/**
+	 * Writes a formatted log entry to the local log.
+	 *
+	 * @param entry
+	 *            The log entry (without a newline).
+	 * @param startTime
+	 *            The start time in milliseconds from epoch.
+	 * @param endTime
+	 *            The end time in milliseconds from epoch.
+	 * @throws IOException
+	 *             Thrown if the entry cannot be written.
+	 */
+	private void writeLocally(String entry, long startTime, long endTime) throws IOException {
+		LogSegmentation segmentation = config.getLogSegmentation();
+		if (segmentation == null || segmentation == LogSegmentation.NONE) {
+			PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(config.getLogFilename(), true)));
+			out.write(entry + nl);
+			out.close();
+			return;
+		}
+		boolean opened = segmentedLog == null;
+		if (opened)
+			segmentedLog = new SegmentedLog(config.getLogFilename());
+		boolean rolled = segmentedLog.append(entry, startTime, endTime, segmentation, config.getLogSegmentMaxBytes());
+		if (opened || rolled)
+			segmentedLog.compressInBackground(config.getLogCompression());
+	}
+}
@@ -3,7 +3,12 @@ package rokclock;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.*;
 
 import javax.swing.*;
 
@@ -14,6 +19,18 @@ import javax.swing.*;
  */
 @SuppressWarnings("serial")
 public class Main extends JFrame {
+	/**
+	 * The time (from {@link System#nanoTime()}) at which the application
+	 * started, i.e. entered the main method.
+	 */
+	private static final long startNanos = System.nanoTime();
+	/**
+	 * The value of the system property "rokclock.startupTiming". If set, the
+	 * duration of the startup phases is printed to the standard error; if set
+	 * to "exit", the application also exits once startup is complete, so that
+	 * the measurement can be repeated from a script.
+	 */
+	private static final String startupTiming = System.getProperty("rokclock.startupTiming");
 	/**
 	 * The application-level copy of the configuration class.
 	 */
@@ -22,11 +39,18 @@ public class Main extends JFrame {
 	 * The application-level reference to the tree of user-specified projects.
 	 */
 	private final ProjectsTree projectsTree;
+	/**
+	 * The review dialog, created on first use and then re-used. Can be null.
+	 */
+	private ReviewDialog reviewDialog;
 
 	/**
 	 * The only constructor of the application, which sets up the cross-platform
 	 * look-and-feel, performs the component layout, configures basic window
-	 * functionality, and shows the window.
+	 * functionality, and shows the window. Only the top-level projects are
+	 * loaded before the window is shown; the rest of the projects, the tray
+	 * icon and the watchdog are set up after the window is first painted. The
+	 * review dialog (and with it the analyser) is only loaded when first used.
 	 *
 	 * @throws Exception
 	 *             Thrown if cannot change the look-and-feel, or if the tree of
@@ -41,6 +65,7 @@ public class Main extends JFrame {
 		setBackground(Color.BLACK);
 		// loading projects + GUI
 		projectsTree = new ProjectsTree(this, config);
+		logStartupPhase("top-level projects");
 		GridBagLayout layout = new GridBagLayout();
 		GridBagConstraints constraints = new GridBagConstraints();
 		getContentPane().setLayout(layout);
@@ -71,8 +96,33 @@ public class Main extends JFrame {
 				System.exit(0);
 			}
 		});
+		projectsTree.runAfterFirstPaint(new Runnable() {
+			@Override
+			public void run() {
+				logStartupPhase("first paint");
+				try {projectsTree.completeLoading();}
+				catch (IOException e) {projectsTree.displayProblem(e);}
+				logStartupPhase("projects loaded");
+				enableTrayIcon();
+				new EdtWatchdog(new File(config.getDiagnosticsFilename()), config.getEdtStallThresholdMillis()).start();
+				logStartupPhase("startup complete");
+				if ("exit".equals(startupTiming)) System.exit(0);
+			}
+		});
+		logStartupPhase("window built");
 		setVisible(true);
-		enableTrayIcon();
+	}
+
+	/**
+	 * Prints the time elapsed since the application started, if the system
+	 * property "rokclock.startupTiming" is set.
+	 *
+	 * @param phase
+	 *            The name of the phase that has just finished.
+	 */
+	private static void logStartupPhase(String phase) {
+		if (startupTiming == null) return;
+		System.err.println(String.format("startup: %-20s %8.1f ms", phase, (System.nanoTime() - startNanos) / 1e6));
 	}
 
 	/**
@@ -107,7 +157,10 @@ public class Main extends JFrame {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				stopRecording();
-				new ReviewDialog(Main.this, config);
+				if (reviewDialog == null)
+					reviewDialog = new ReviewDialog(Main.this, config);
+				else
+					reviewDialog.reopen();
 			}
 		});
 		return b;
@@ -178,6 +231,161 @@ public class Main extends JFrame {
 		}
 	}
 
+	/**
+	 * A writer of the contents of a file, used with
+	 * {@link Main#writeFileAtomically(File, boolean, ContentsWriter)}.
+	 */
+	interface ContentsWriter {
+		/**
+		 * Writes the contents of the file.
+		 *
+		 * @param os
+		 *            The buffered stream to write to. It should not be closed.
+		 * @throws IOException
+		 *             Thrown if writing fails.
+		 */
+		void write(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * A helper function that writes the specified contents into a temporary
+	 * file next to the target file, forces it to the disk, and then atomically
+	 * moves it in place of the target file. Readers therefore see either the
+	 * old or the new contents, but never a partially written file.
+	 *
+	 * @param target
+	 *            The file to replace.
+	 * @param contents
+	 *            The contents to write.
+	 * @throws IOException
+	 *             Thrown if writing or renaming fails.
+	 */
+	static void writeFileAtomically(File target, final String contents) throws IOException {
+		writeFileAtomically(target, false, new ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				os.write(contents.getBytes());
+			}
+		});
+	}
+
+	/**
+	 * A helper function that writes a file like
+	 * {@link #writeFileAtomically(File, String)}, but streams the contents
+	 * from the specified writer, optionally compressing them with gzip.
+	 *
+	 * @param target
+	 *            The file to replace.
+	 * @param compress
+	 *            Whether to compress the contents with gzip.
+	 * @param contents
+	 *            The writer of the contents.
+	 * @throws IOException
+	 *             Thrown if writing or renaming fails.
+	 */
+	static void writeFileAtomically(File target, boolean compress, ContentsWriter contents) throws IOException {
+		File tempFile = new File(target.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		OutputStream os = new BufferedOutputStream(fos, 1 << 16);
+		try {
+			if (compress)
+				os = new GZIPOutputStream(os, 1 << 16);
+			contents.write(os);
+			if (compress)
+				((GZIPOutputStream) os).finish();
+			os.flush();
+			fos.getFD().sync();
+		} finally {
+			os.close();
+		}
+		moveFileAtomically(tempFile, target);
+	}
+
+	/**
+	 * A helper function that forces a completely written file to the disk,
+	 * and then atomically moves it in place of the target file. If the file
+	 * system cannot move the file atomically (e.g. because the file is on a
+	 * different one), the file is moved non-atomically instead.
+	 *
+	 * @param source
+	 *            The written file.
+	 * @param target
+	 *            The file to replace.
+	 * @throws IOException
+	 *             Thrown if syncing or moving fails.
+	 */
+	static void replaceFileAtomically(File source, File target) throws IOException {
+		FileChannel channel = new RandomAccessFile(source, "rw").getChannel();
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		moveFileAtomically(source, target);
+	}
+
+	/**
+	 * Moves a file in place of the target file, atomically if the file system
+	 * supports it.
+	 *
+	 * @param source
+	 *            The file to move.
+	 * @param target
+	 *            The file to replace.
+	 * @throws IOException
+	 *             Thrown if moving fails.
+	 */
+	private static void moveFileAtomically(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * A helper function that opens a versioned text file for reading, which
+	 * is decompressed if its name ends with ".gz", and checks its header line.
+	 * The first word of the header identifies the kind of the file, and the
+	 * rest its version.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param header
+	 *            The expected header line.
+	 * @param description
+	 *            The description of the kind of the file for error messages,
+	 *            e.g. "an aggregate file".
+	 * @return The reader, positioned after the header line.
+	 * @throws IOException
+	 *             Thrown if the file cannot be opened, or is not a file of the
+	 *             expected kind and version.
+	 */
+	static BufferedReader openVersionedFile(File file, String header, String description) throws IOException {
+		InputStream in = new FileInputStream(file);
+		BufferedReader br;
+		try {
+			if (file.getName().endsWith(".gz"))
+				in = new GZIPInputStream(in, 1 << 16);
+			br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		try {
+			String line = br.readLine();
+			if (line == null || !line.startsWith(header.substring(0, header.indexOf(' ') + 1)))
+				throw new IOException(file + " is not " + description + ".");
+			if (!line.equals(header))
+				throw new IOException(file + " has an unsupported version: " + line);
+			return br;
+		} catch (IOException e) {
+			br.close();
+			throw e;
+		}
+	}
+
 	/**
 	 * The entry method, which creates a new instance of the application. It
 	 * ignores any command-line arguments.
@@ -188,6 +396,10 @@ public class Main extends JFrame {
 	 *             Thrown if creation of the new instance throws an exception.
 	 */
 	public static void main(String[] args) throws Exception {
+		Metrics.register();
+		if (startupTiming != null)
+			System.err.println(String.format("startup: %-20s %8d ms before main",
+					"JVM started", ManagementFactory.getRuntimeMXBean().getUptime()));
 		new Main();
 	}
 }
@@ -0,0 +1,266 @@
+package rokclock;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * The counters and latency histograms of the application, exposed through JMX
+ * as <code>rokclock:type=Metrics</code>. Recording only involves a few atomic
+ * increments, so it can be done on hot paths; the percentiles are only
+ * computed when the attributes are read.
+ * <p>
+ * The MBean is registered in the background by {@link #register()}, so that
+ * starting the platform MBean server does not delay the application.
+ */
+class Metrics implements MetricsMBean {
+	/**
+	 * The single instance.
+	 */
+	static final Metrics INSTANCE = new Metrics();
+	/**
+	 * The precision of the latency histograms (about 3% relative error).
+	 */
+	private static final int PRECISION_BITS = 5;
+	/**
+	 * The latencies of log appends, in microseconds.
+	 */
+	private final LogHistogram logAppends = new LogHistogram(PRECISION_BITS);
+	/**
+	 * The bytes of log appends.
+	 */
+	private final AtomicLong logAppendBytes = new AtomicLong();
+	/**
+	 * The latencies of analyser runs, in microseconds.
+	 */
+	private final LogHistogram analyses = new LogHistogram(PRECISION_BITS);
+	/**
+	 * The lines read by the analyser.
+	 */
+	private final AtomicLong analysisLines = new AtomicLong();
+	/**
+	 * The bytes read by the analyser.
+	 */
+	private final AtomicLong analysisBytes = new AtomicLong();
+	/**
+	 * The lines the analyser could not parse.
+	 */
+	private final AtomicLong analysisMalformedLines = new AtomicLong();
+	/**
+	 * The latencies of review refreshes, in microseconds.
+	 */
+	private final LogHistogram reviewRefreshes = new LogHistogram(PRECISION_BITS);
+	/**
+	 * The latencies of configuration and projects reloads, in microseconds.
+	 */
+	private final LogHistogram reloads = new LogHistogram(PRECISION_BITS);
+
+	/**
+	 * Registers the MBean with the platform MBean server on a background
+	 * thread. Failures are reported but otherwise ignored.
+	 */
+	static void register() {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+							new ObjectName("rokclock:type=Metrics"));
+				} catch (Exception e) {
+					System.err.println("Could not register the metrics MBean: " + e);
+				}
+			}
+		}, "metrics-registration");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Converts the time elapsed since the specified start to microseconds.
+	 *
+	 * @param startNanos
+	 *            The start, as obtained from {@link System#nanoTime()}.
+	 * @return The elapsed microseconds.
+	 */
+	private static long microsSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+
+	/**
+	 * Records a log append.
+	 *
+	 * @param startNanos
+	 *            The start of the append, as obtained from
+	 *            {@link System#nanoTime()}.
+	 * @param bytes
+	 *            The number of bytes appended.
+	 */
+	void recordLogAppend(long startNanos, long bytes) {
+		logAppends.record(microsSince(startNanos));
+		logAppendBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records an analyser run.
+	 *
+	 * @param startNanos
+	 *            The start of the run, as obtained from
+	 *            {@link System#nanoTime()}.
+	 */
+	void recordAnalysis(long startNanos) {
+		analyses.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Records the lines read by the analyser from a single file or segment.
+	 *
+	 * @param lines
+	 *            The number of lines read.
+	 * @param bytes
+	 *            The number of bytes read.
+	 * @param malformed
+	 *            The number of lines that could not be parsed.
+	 */
+	void recordAnalysedLines(long lines, long bytes, long malformed) {
+		analysisLines.addAndGet(lines);
+		analysisBytes.addAndGet(bytes);
+		if (malformed != 0) analysisMalformedLines.addAndGet(malformed);
+	}
+
+	/**
+	 * Records a refresh of the review dialog.
+	 *
+	 * @param startNanos
+	 *            The start of the refresh, as obtained from
+	 *            {@link System#nanoTime()}.
+	 */
+	void recordReviewRefresh(long startNanos) {
+		reviewRefreshes.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Records a reload of the configuration or projects.
+	 *
+	 * @param startNanos
+	 *            The start of the reload, as obtained from
+	 *            {@link System#nanoTime()}.
+	 */
+	void recordReload(long startNanos) {
+		reloads.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Computes a rate per second of analysis time.
+	 *
+	 * @param amount
+	 *            The amount processed.
+	 * @return The rate, or 0 if nothing was analysed yet.
+	 */
+	private double perAnalysisSecond(long amount) {
+		long micros = analyses.getTotal();
+		return micros == 0 ? 0 : amount * 1e6 / micros;
+	}
+
+	@Override
+	public long getLogAppendCount() {
+		return logAppends.getCount();
+	}
+
+	@Override
+	public long getLogAppendBytes() {
+		return logAppendBytes.get();
+	}
+
+	@Override
+	public long getLogAppendP50Micros() {
+		return logAppends.getPercentile(50);
+	}
+
+	@Override
+	public long getLogAppendP99Micros() {
+		return logAppends.getPercentile(99);
+	}
+
+	@Override
+	public long getAnalysisCount() {
+		return analyses.getCount();
+	}
+
+	@Override
+	public long getAnalysisLines() {
+		return analysisLines.get();
+	}
+
+	@Override
+	public long getAnalysisBytes() {
+		return analysisBytes.get();
+	}
+
+	@Override
+	public long getAnalysisMalformedLines() {
+		return analysisMalformedLines.get();
+	}
+
+	@Override
+	public double getAnalysisLinesPerSecond() {
+		return perAnalysisSecond(analysisLines.get());
+	}
+
+	@Override
+	public double getAnalysisBytesPerSecond() {
+		return perAnalysisSecond(analysisBytes.get());
+	}
+
+	@Override
+	public long getAnalysisP50Micros() {
+		return analyses.getPercentile(50);
+	}
+
+	@Override
+	public long getAnalysisP99Micros() {
+		return analyses.getPercentile(99);
+	}
+
+	@Override
+	public long getReviewRefreshCount() {
+		return reviewRefreshes.getCount();
+	}
+
+	@Override
+	public long getReviewRefreshP50Micros() {
+		return reviewRefreshes.getPercentile(50);
+	}
+
+	@Override
+	public long getReviewRefreshP99Micros() {
+		return reviewRefreshes.getPercentile(99);
+	}
+
+	@Override
+	public long getReloadCount() {
+		return reloads.getCount();
+	}
+
+	@Override
+	public long getReloadP50Micros() {
+		return reloads.getPercentile(50);
+	}
+
+	@Override
+	public long getReloadP99Micros() {
+		return reloads.getPercentile(99);
+	}
+
+	@Override
+	public void reset() {
+		logAppends.reset();
+		logAppendBytes.set(0);
+		analyses.reset();
+		analysisLines.set(0);
+		analysisBytes.set(0);
+		analysisMalformedLines.set(0);
+		reviewRefreshes.reset();
+		reloads.reset();
+	}
+}
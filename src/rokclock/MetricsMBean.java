@@ -0,0 +1,103 @@
+package rokclock;
+
+/**
+ * The management interface of {@link Metrics}, as seen through JMX (e.g. in
+ * JConsole or VisualVM). Latencies are reported in microseconds.
+ */
+public interface MetricsMBean {
+	/**
+	 * @return The number of log entries written.
+	 */
+	long getLogAppendCount();
+
+	/**
+	 * @return The number of bytes of log entries written.
+	 */
+	long getLogAppendBytes();
+
+	/**
+	 * @return The median latency of writing a log entry.
+	 */
+	long getLogAppendP50Micros();
+
+	/**
+	 * @return The 99th percentile latency of writing a log entry.
+	 */
+	long getLogAppendP99Micros();
+
+	/**
+	 * @return The number of analyser runs.
+	 */
+	long getAnalysisCount();
+
+	/**
+	 * @return The number of log lines read by the analyser.
+	 */
+	long getAnalysisLines();
+
+	/**
+	 * @return The number of log bytes read by the analyser.
+	 */
+	long getAnalysisBytes();
+
+	/**
+	 * @return The number of log lines the analyser could not parse.
+	 */
+	long getAnalysisMalformedLines();
+
+	/**
+	 * @return The average number of lines the analyser reads per second.
+	 */
+	double getAnalysisLinesPerSecond();
+
+	/**
+	 * @return The average number of bytes the analyser reads per second.
+	 */
+	double getAnalysisBytesPerSecond();
+
+	/**
+	 * @return The median latency of an analyser run.
+	 */
+	long getAnalysisP50Micros();
+
+	/**
+	 * @return The 99th percentile latency of an analyser run.
+	 */
+	long getAnalysisP99Micros();
+
+	/**
+	 * @return The number of refreshes of the review dialog.
+	 */
+	long getReviewRefreshCount();
+
+	/**
+	 * @return The median latency of refreshing the review dialog.
+	 */
+	long getReviewRefreshP50Micros();
+
+	/**
+	 * @return The 99th percentile latency of refreshing the review dialog.
+	 */
+	long getReviewRefreshP99Micros();
+
+	/**
+	 * @return The number of configuration and projects reloads.
+	 */
+	long getReloadCount();
+
+	/**
+	 * @return The median latency of reloading the configuration or projects.
+	 */
+	long getReloadP50Micros();
+
+	/**
+	 * @return The 99th percentile latency of reloading the configuration or
+	 *         projects.
+	 */
+	long getReloadP99Micros();
+
+	/**
+	 * Resets all counters and histograms.
+	 */
+	void reset();
+}
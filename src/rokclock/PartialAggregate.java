@@ -0,0 +1,372 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.Stream;
+
+/**
+ * A partial aggregate of one or more logs: the milliseconds and the number of
+ * entries per user, day and project path. Entries spanning several days are
+ * split between them. Aggregates can be produced independently on every
+ * machine (or for every shard of a log), and merged in any order and grouping
+ * into the totals of a whole department, so only the (small) aggregate files
+ * need to be moved.
+ * <p>
+ * The file format is versioned text, gzip-compressed if the file name ends
+ * with ".gz". After the header line, every line contains the user's unique
+ * identifier (empty if unknown), the day (yyyy-MM-dd, in the local time
+ * zone), the project path, the milliseconds and the number of entries,
+ * separated by tabs.
+ */
+class PartialAggregate {
+	/**
+	 * The header of the current version of the file format.
+	 */
+	static final String HEADER = "rokclock-aggregate 1";
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+
+	/**
+	 * The key of an aggregated value.
+	 */
+	private static class Key implements Comparable<Key> {
+		/**
+		 * The user's unique identifier, or an empty string.
+		 */
+		final String uid;
+		/**
+		 * The day.
+		 */
+		final LocalDate day;
+		/**
+		 * The project path.
+		 */
+		final String projectPath;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param uid
+		 *            The user's unique identifier, or an empty string.
+		 * @param day
+		 *            The day.
+		 * @param projectPath
+		 *            The project path.
+		 */
+		Key(String uid, LocalDate day, String projectPath) {
+			this.uid = uid;
+			this.day = day;
+			this.projectPath = projectPath;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			int c = uid.compareTo(other.uid);
+			if (c != 0) return c;
+			c = day.compareTo(other.day);
+			return c != 0 ? c : projectPath.compareTo(other.projectPath);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return uid.equals(other.uid) && day.equals(other.day) && projectPath.equals(other.projectPath);
+		}
+
+		@Override
+		public int hashCode() {
+			return (uid.hashCode() * 31 + day.hashCode()) * 31 + projectPath.hashCode();
+		}
+	}
+
+	/**
+	 * The aggregated values: the milliseconds and the number of entries.
+	 */
+	private final Map<Key, long[]> values = new HashMap<Key, long[]>();
+
+	/**
+	 * Adds milliseconds and entries to the aggregate.
+	 *
+	 * @param uid
+	 *            The user's unique identifier. Can be null.
+	 * @param day
+	 *            The day.
+	 * @param projectPath
+	 *            The project path.
+	 * @param millis
+	 *            The milliseconds.
+	 * @param count
+	 *            The number of entries.
+	 */
+	void add(String uid, LocalDate day, String projectPath, long millis, long count) {
+		Key key = new Key(uid == null ? "" : uid, day, projectPath);
+		long[] value = values.get(key);
+		if (value == null)
+			values.put(key, value = new long[2]);
+		value[0] += millis;
+		value[1] += count;
+	}
+
+	/**
+	 * Adds a log entry to the aggregate, clipped to the filter's time period
+	 * and split between the days it spans.
+	 *
+	 * @param entry
+	 *            The entry.
+	 * @param filter
+	 *            The filter whose time period the entry is clipped to.
+	 */
+	void add(LogEntry entry, LogFilter filter) {
+		long start = Math.max(entry.startTime, filter.getFromTime());
+		long end = Math.min(entry.endTime, filter.getToTime());
+		if (start > end) return;
+		ZoneId zone = ZoneId.systemDefault();
+		do {
+			LocalDate day = Instant.ofEpochMilli(start).atZone(zone).toLocalDate();
+			long dayEnd = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+			add(entry.uid, day, entry.projectPath, Math.min(end, dayEnd) - start, 1);
+			start = dayEnd;
+		} while (start < end);
+	}
+
+	/**
+	 * Adds all the values of another aggregate to this one. Merging is
+	 * associative and commutative.
+	 *
+	 * @param other
+	 *            The other aggregate.
+	 * @return This aggregate.
+	 */
+	PartialAggregate merge(PartialAggregate other) {
+		for (Map.Entry<Key, long[]> entry : other.values.entrySet()) {
+			Key key = entry.getKey();
+			add(key.uid, key.day, key.projectPath, entry.getValue()[0], entry.getValue()[1]);
+		}
+		return this;
+	}
+
+	/**
+	 * Obtains the number of aggregated values.
+	 *
+	 * @return The number of (user, day, project path) combinations.
+	 */
+	int size() {
+		return values.size();
+	}
+
+	/**
+	 * Sums up the milliseconds by project path, as the {@link Analyser} does.
+	 *
+	 * @return The map from project paths to sums of milliseconds.
+	 */
+	Map<String, Long> sumByPath() {
+		return sumByPath(null, null);
+	}
+
+	/**
+	 * Sums up the milliseconds of the specified days by project path. As the
+	 * entries are split at midnight, this is exact for periods between two
+	 * midnights.
+	 *
+	 * @param fromDay
+	 *            The first day (inclusive). Can be null.
+	 * @param toDay
+	 *            The last day (exclusive). Can be null.
+	 * @return The map from project paths to sums of milliseconds.
+	 */
+	Map<String, Long> sumByPath(LocalDate fromDay, LocalDate toDay) {
+		Map<String, Long> sums = new TreeMap<String, Long>();
+		for (Map.Entry<Key, long[]> entry : values.entrySet()) {
+			LocalDate day = entry.getKey().day;
+			if (fromDay != null && day.isBefore(fromDay) || toDay != null && !day.isBefore(toDay)) continue;
+			Long sum = sums.get(entry.getKey().projectPath);
+			sums.put(entry.getKey().projectPath, (sum == null ? 0L : sum) + entry.getValue()[0]);
+		}
+		return sums;
+	}
+
+	/**
+	 * Aggregates a stream of entries, which can be parallel.
+	 *
+	 * @param entries
+	 *            The entries.
+	 * @param filter
+	 *            The filter whose time period the entries are clipped to.
+	 * @return The aggregate.
+	 */
+	static PartialAggregate of(Stream<LogEntry> entries, final LogFilter filter) {
+		return entries.collect(new Supplier<PartialAggregate>() {
+			@Override
+			public PartialAggregate get() {
+				return new PartialAggregate();
+			}
+		}, new BiConsumer<PartialAggregate, LogEntry>() {
+			@Override
+			public void accept(PartialAggregate aggregate, LogEntry entry) {
+				aggregate.add(entry, filter);
+			}
+		}, new BiConsumer<PartialAggregate, PartialAggregate>() {
+			@Override
+			public void accept(PartialAggregate aggregate, PartialAggregate other) {
+				aggregate.merge(other);
+			}
+		});
+	}
+
+	/**
+	 * Reads and merges many aggregate files. The files are read and merged as
+	 * a tree on all available cores.
+	 *
+	 * @param files
+	 *            The aggregate files.
+	 * @return The merged aggregate.
+	 * @throws IOException
+	 *             Thrown if a file cannot be read.
+	 */
+	static PartialAggregate mergeAll(List<File> files) throws IOException {
+		try {
+			return files.parallelStream().collect(new Supplier<PartialAggregate>() {
+				@Override
+				public PartialAggregate get() {
+					return new PartialAggregate();
+				}
+			}, new BiConsumer<PartialAggregate, File>() {
+				@Override
+				public void accept(PartialAggregate aggregate, File file) {
+					try {aggregate.merge(read(file));}
+					catch (IOException e) {throw new UncheckedIOException(e);}
+				}
+			}, new BiConsumer<PartialAggregate, PartialAggregate>() {
+				@Override
+				public void accept(PartialAggregate aggregate, PartialAggregate other) {
+					aggregate.merge(other);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Reads an aggregate file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The aggregate.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read, or is not an aggregate
+	 *             file of a supported version.
+	 */
+	static PartialAggregate read(File file) throws IOException {
+		PartialAggregate aggregate = new PartialAggregate();
+		BufferedReader br = Main.openVersionedFile(file, HEADER, "an aggregate file");
+		try {
+			String line;
+			int lineNumber = 1;
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) continue;
+				try {
+					aggregate.addLine(line);
+				} catch (RuntimeException e) {
+					throw new IOException("Could not read line " + lineNumber + " of " + file + ": " + line, e);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Adds the value of a single line of an aggregate file.
+	 *
+	 * @param line
+	 *            The line.
+	 * @throws RuntimeException
+	 *             Thrown if the line is malformed.
+	 */
+	void addLine(String line) {
+		String[] fields = line.split("\t");
+		add(fields[0], LocalDate.parse(fields[1]), fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+	}
+
+	/**
+	 * Writes the values as lines of an aggregate file (without the header),
+	 * ordered by user, day and project path.
+	 *
+	 * @param w
+	 *            The writer.
+	 * @throws IOException
+	 *             Thrown if writing fails.
+	 */
+	void writeLines(Writer w) throws IOException {
+		for (Map.Entry<Key, long[]> entry : new TreeMap<Key, long[]>(values).entrySet()) {
+			Key key = entry.getKey();
+			w.write(key.uid + "\t" + key.day + "\t" + key.projectPath.replace('\t', ' ') + "\t"
+					+ entry.getValue()[0] + "\t" + entry.getValue()[1] + nl);
+		}
+	}
+
+	/**
+	 * Writes the aggregate into a file, compressing it if its name ends with
+	 * ".gz". The file is only replaced once it is written completely.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	void write(File file) throws IOException {
+		Main.writeFileAtomically(file, file.getName().endsWith(".gz"), new Main.ContentsWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				Writer w = new OutputStreamWriter(os, "UTF-8");
+				w.write(HEADER + nl);
+				writeLines(w);
+				w.flush();
+			}
+		});
+	}
+
+	/**
+	 * The entry method, which merges aggregate files, optionally writes the
+	 * merged aggregate, and writes the totals by project path to the standard
+	 * output in the same format as the {@link Analyser}.
+	 *
+	 * @param args
+	 *            Optionally "-o" and the name of the merged aggregate file,
+	 *            followed by the names of the aggregate files to merge.
+	 * @throws Exception
+	 *             Thrown if merging fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		File output = null;
+		if (args.length >= 2 && args[0].equals("-o")) {
+			output = new File(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length == 0) {
+			err.println("Usage: java -cp bin rokclock.PartialAggregate [-o <outputAggregate>] <aggregate>...");
+			exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (String arg : args)
+			files.add(new File(arg));
+		PartialAggregate aggregate = mergeAll(files);
+		if (output != null)
+			aggregate.write(output);
+		String team = new Config().getTeam();
+		for (Map.Entry<String, Long> entry : aggregate.sumByPath().entrySet())
+			out.printf("%s, %.2f, %s" + nl, team, 1.0 * entry.getValue() / (1000 * 3600), entry.getKey());
+	}
+}
@@ -0,0 +1,258 @@
+package rokclock;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A journal of the changes made to the tree of projects through the GUI. Each
+ * change is appended as a single line to a small file next to the projects'
+ * file, instead of rewriting the whole projects' file. The journal is replayed
+ * on top of the projects' file when loading, and is periodically compacted
+ * back into the projects' file in the background.
+ * <p>
+ * Every line of the journal starts with an operation character ('+' for
+ * adding, '-' for deleting), followed by the tab-separated path to the
+ * affected node. For additions, the last path element uses the same syntax as
+ * the projects' file, i.e. it can have its tooltip appended in curly brackets.
+ */
+class ProjectsJournal {
+	/**
+	 * The operation character for adding a node.
+	 */
+	static final char ADD = '+';
+	/**
+	 * The operation character for deleting a node.
+	 */
+	static final char DELETE = '-';
+	/**
+	 * The number of journal entries after which compaction is triggered.
+	 */
+	private static final int COMPACTION_THRESHOLD = 32;
+	/**
+	 * A platform-independent newline.
+	 */
+	private final String nl = System.getProperty("line.separator");
+	/**
+	 * The projects' file that the journal applies to.
+	 */
+	private final File projectsFile;
+	/**
+	 * The journal file.
+	 */
+	private final File journalFile;
+	/**
+	 * The number of entries ever appended to the journal, including those
+	 * found in it when it was read. Together with {@link #droppedSeq}, this
+	 * identifies the entries independently of their current position in the
+	 * journal file.
+	 */
+	private long appendedSeq = 0;
+	/**
+	 * The value of {@link #appendedSeq} when the last compaction was
+	 * scheduled.
+	 */
+	private long scheduledSeq = 0;
+	/**
+	 * The number of entries dropped from the head of the journal by completed
+	 * compactions.
+	 */
+	private long droppedSeq = 0;
+	/**
+	 * The single background thread that performs compaction.
+	 */
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "projects-compactor");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Creates a journal for the specified projects' file.
+	 *
+	 * @param projectsFile
+	 *            The projects' file.
+	 */
+	ProjectsJournal(File projectsFile) {
+		this.projectsFile = projectsFile;
+		journalFile = new File(projectsFile.getPath() + ".journal");
+	}
+
+	/**
+	 * Reads all the entries currently in the journal. A partially written last
+	 * line (i.e. one without a newline, e.g. after a crash) is ignored.
+	 *
+	 * @return The list of journal entries.
+	 * @throws IOException
+	 *             Thrown if the journal cannot be read.
+	 */
+	synchronized List<String> readEntries() throws IOException {
+		List<String> entries = readJournal();
+		appendedSeq = entries.size();
+		scheduledSeq = 0;
+		droppedSeq = 0;
+		return entries;
+	}
+
+	/**
+	 * Reads the entries in the journal file without changing the counts of
+	 * appended and dropped entries.
+	 *
+	 * @return The list of journal entries.
+	 * @throws IOException
+	 *             Thrown if the journal cannot be read.
+	 */
+	private List<String> readJournal() throws IOException {
+		List<String> entries = new ArrayList<String>();
+		if (!journalFile.exists())
+			return entries;
+		String contents = new String(Files.readAllBytes(journalFile.toPath()));
+		int lineStart = 0, lineEnd;
+		while ((lineEnd = contents.indexOf('\n', lineStart)) != -1) {
+			String line = contents.substring(lineStart, lineEnd).trim();
+			if (line.length() > 1 && (line.charAt(0) == ADD || line.charAt(0) == DELETE))
+				entries.add(line);
+			lineStart = lineEnd + 1;
+		}
+		return entries;
+	}
+
+	/**
+	 * Appends an addition of a node to the journal.
+	 *
+	 * @param parentPath
+	 *            The names of the nodes on the path to the parent node.
+	 * @param name
+	 *            The name of the new node.
+	 * @param tooltip
+	 *            The description of the new node. Can be null.
+	 * @throws IOException
+	 *             Thrown if the entry cannot be written.
+	 */
+	void appendAdd(String[] parentPath, String name, String tooltip) throws IOException {
+		StringBuilder sb = new StringBuilder().append(ADD);
+		for (String element : parentPath)
+			sb.append(element).append('\t');
+		sb.append(name);
+		if (tooltip != null && !tooltip.isEmpty()) sb.append("{" + tooltip + "}");
+		append(sb.toString());
+	}
+
+	/**
+	 * Appends a deletion of a node to the journal.
+	 *
+	 * @param path
+	 *            The names of the nodes on the path to the deleted node.
+	 * @throws IOException
+	 *             Thrown if the entry cannot be written.
+	 */
+	void appendDelete(String[] path) throws IOException {
+		StringBuilder sb = new StringBuilder().append(DELETE);
+		for (int i = 0; i < path.length; i++) {
+			if (i > 0) sb.append('\t');
+			sb.append(path[i]);
+		}
+		append(sb.toString());
+	}
+
+	/**
+	 * Appends a single line to the journal, and forces it to the disk.
+	 *
+	 * @param entry
+	 *            The journal entry.
+	 * @throws IOException
+	 *             Thrown if the entry cannot be written.
+	 */
+	private synchronized void append(String entry) throws IOException {
+		FileOutputStream fos = new FileOutputStream(journalFile, true);
+		try {
+			fos.write((entry + nl).getBytes());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		appendedSeq++;
+	}
+
+	/**
+	 * Checks whether enough entries have been appended since the last
+	 * compaction was scheduled for another one to be worthwhile.
+	 *
+	 * @return True if compaction should be scheduled.
+	 */
+	synchronized boolean needsCompaction() {
+		return appendedSeq - scheduledSeq >= COMPACTION_THRESHOLD;
+	}
+
+	/**
+	 * Checks whether the journal contains any entries.
+	 *
+	 * @return True if the journal is empty.
+	 */
+	synchronized boolean isEmpty() {
+		return appendedSeq == droppedSeq;
+	}
+
+	/**
+	 * Schedules the compaction of the journal in the background. The provided
+	 * contents should be the full projects' file, rendered on the calling
+	 * thread so that it corresponds to the current journal entries. The
+	 * contents are written to a temporary file, which then atomically replaces
+	 * the projects' file; only afterwards are the corresponding entries dropped
+	 * from the journal. Since replaying is idempotent, a crash at any point
+	 * leaves a consistent state. Several compactions may be pending at once;
+	 * each drops only the entries appended before it was scheduled that an
+	 * earlier compaction has not dropped already.
+	 *
+	 * @param contents
+	 *            The rendered projects' file.
+	 */
+	synchronized void compact(final String contents) {
+		final long compactedSeq = appendedSeq;
+		scheduledSeq = compactedSeq;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Main.writeFileAtomically(projectsFile, contents);
+					dropEntries(compactedSeq);
+				} catch (IOException e) {
+					System.err.println("Could not compact the projects' journal.");
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes the leading entries of the journal that were appended before the
+	 * compaction was scheduled and are still in the journal. The entries
+	 * appended since the compaction was scheduled are kept.
+	 *
+	 * @param compactedSeq
+	 *            The number of entries ever appended when the compaction was
+	 *            scheduled.
+	 * @throws IOException
+	 *             Thrown if the journal cannot be rewritten.
+	 */
+	private synchronized void dropEntries(long compactedSeq) throws IOException {
+		if (compactedSeq <= droppedSeq) return;
+		int count = (int) (compactedSeq - droppedSeq);
+		List<String> entries = readJournal();
+		List<String> remaining = entries.subList(Math.min(count, entries.size()), entries.size());
+		if (remaining.isEmpty()) {
+			if (journalFile.exists() && !journalFile.delete())
+				throw new IOException("Could not delete " + journalFile);
+		} else {
+			StringBuilder sb = new StringBuilder();
+			for (String entry : remaining)
+				sb.append(entry).append(nl);
+			Main.writeFileAtomically(journalFile, sb.toString());
+		}
+		droppedSeq = compactedSeq;
+	}
+}
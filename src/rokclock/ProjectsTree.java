@@ -3,12 +3,11 @@ package rokclock;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.text.DateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.swing.*;
-import javax.swing.Timer;
 import javax.swing.tree.*;
 
 /**
@@ -25,9 +24,9 @@ class ProjectsTree extends JTree implements TimeLog {
 		 */
 		private final String tooltip;
 		/**
-		 * The label containing a project's name.
+		 * The label containing a project's name; created when first rendered.
 		 */
-		private final JLabel label;
+		private JLabel label;
 
 		/**
 		 * A simple constructor.
@@ -40,8 +39,6 @@ class ProjectsTree extends JTree implements TimeLog {
 		public ProjectNode(String caption, String tooltip) {
 			super(caption);
 			this.tooltip = tooltip;
-			label = new JLabel(caption);
-			label.setOpaque(true);
 		}
 
 		/**
@@ -54,11 +51,16 @@ class ProjectsTree extends JTree implements TimeLog {
 		}
 
 		/**
-		 * Obtains the label associated with this node.
+		 * Obtains the label associated with this node, creating it on first
+		 * use.
 		 *
 		 * @return The label.
 		 */
 		public JLabel getLabel() {
+			if (label == null) {
+				label = new JLabel(getUserObject().toString());
+				label.setOpaque(true);
+			}
 			return label;
 		}
 	}
@@ -67,10 +69,6 @@ class ProjectsTree extends JTree implements TimeLog {
 	 * A platform-independent newline.
 	 */
 	private final String nl = System.getProperty("line.separator");
-	/**
-	 * A link to the configuration's date format.
-	 */
-	private final DateFormat df = Config.df;
 	/**
 	 * A link to the parent component.
 	 */
@@ -79,6 +77,10 @@ class ProjectsTree extends JTree implements TimeLog {
 	 * A link to the configuration object.
 	 */
 	private final Config config;
+	/**
+	 * The writer of log entries.
+	 */
+	private final LogWriter logWriter;
 	/**
 	 * The invisible root node of the tree.
 	 */
@@ -87,6 +89,10 @@ class ProjectsTree extends JTree implements TimeLog {
 	 * The tree's model containing the tree's data.
 	 */
 	private final DefaultTreeModel model;
+	/**
+	 * The journal of changes made to the tree of projects.
+	 */
+	private final ProjectsJournal journal;
 	/**
 	 * The popup menu that appears when the user right-clicks.
 	 */
@@ -113,14 +119,68 @@ class ProjectsTree extends JTree implements TimeLog {
 	 */
 	private State state = State.STOPPED;
 	/**
-	 * The timer used for triggering events after specified periods.
+	 * The scheduler used for triggering events after specified periods. Its
+	 * callbacks are run on the Event Dispatch Thread.
+	 */
+	private final Scheduler scheduler = new Scheduler(new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			SwingUtilities.invokeLater(r);
+		}
+	});
+	/**
+	 * The listener that performs the periodic action when a scheduled period
+	 * ends.
+	 */
+	private final Scheduler.Listener periodicListener = new Scheduler.Listener() {
+		@Override
+		public void periodEnded(long endTime) {
+			periodEndTime = endTime;
+			try {doPeriodicAction();}
+			finally {periodEndTime = Long.MAX_VALUE;}
+		}
+	};
+	/**
+	 * The time at which the period that triggered the current periodic action
+	 * ended, in milliseconds from epoch. This can be earlier than the current
+	 * time, e.g. if the system was suspended. Outside of a periodic action, it
+	 * is {@link Long#MAX_VALUE}.
+	 */
+	private long periodEndTime = Long.MAX_VALUE;
+	/**
+	 * The period in milliseconds between updates of the checkpoint.
 	 */
-	private final Timer timer;
+	private static final long HEARTBEAT_MILLIS = 5000;
+	/**
+	 * The crash-safe checkpoint of the currently running entry.
+	 */
+	private final Checkpoint checkpoint;
 	/**
 	 * The time that the last (can be current) activity started, in milliseconds
 	 * from epoch.
 	 */
 	private long startTime = 0;
+	/**
+	 * The lines of the projects' file, of which only the top-level projects
+	 * have been parsed so far. Once loading is completed, this is null.
+	 */
+	private List<String> pendingLines = new ArrayList<String>();
+	/**
+	 * The time (from {@link System#nanoTime()}) at which loading the projects
+	 * started.
+	 */
+	private long loadStartNanos;
+	/**
+	 * The action to run once the tree has been painted for the first time. Can
+	 * be null.
+	 */
+	private Runnable firstPaintAction;
+	/**
+	 * The time in milliseconds after which the action set by
+	 * {@link #runAfterFirstPaint(Runnable)} is run even if the tree has not
+	 * been painted yet (e.g. because the window starts minimised).
+	 */
+	private static final long FIRST_PAINT_TIMEOUT = 2000;
 
 	/**
 	 * Creates a projects tree given the parent component and the link to the
@@ -137,10 +197,12 @@ class ProjectsTree extends JTree implements TimeLog {
 		super(new ProjectNode("root", "root"));
 		this.frame = frame;
 		this.config = config;
+		logWriter = new LogWriter(config);
 		root = (DefaultMutableTreeNode) getModel().getRoot();
 		model = (DefaultTreeModel) getModel();
+		journal = new ProjectsJournal(getProjectsFile());
+		loadStartNanos = System.nanoTime();
 		loadProjects();
-		expandAllNodes();
 		setRootVisible(false);
 		setBackground(config.getDefaultColor());
 		setCellRenderer(new ProjectTreeCellRenderer(this, config));
@@ -163,9 +225,95 @@ class ProjectsTree extends JTree implements TimeLog {
 					startRecordingAndMinimise(currentProjectPath);
 			}
 		});
-		timer = createTimer();
 		ToolTipManager.sharedInstance().registerComponent(this);
 		frame.add(createPopupMenu());
+		checkpoint = new Checkpoint(new File(config.getLogFilename() + ".checkpoint"));
+		recoverCheckpoint();
+		scheduler.repeat(HEARTBEAT_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				checkpoint.heartbeat(System.currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Completes loading the projects: parses the projects below the top level
+	 * and adds their nodes, replays the journal of changes, and expands all
+	 * nodes. This is done
+	 * separately from the constructor, so that the window can be shown as
+	 * soon as the top-level projects are known. Calling this method again has
+	 * no effect.
+	 *
+	 * @throws IOException
+	 *             Thrown if there are problems reading the journal.
+	 */
+	void completeLoading() throws IOException {
+		if (pendingLines == null) return;
+		parseProjects(pendingLines);
+		pendingLines = null;
+		replayJournal();
+		if (!journal.isEmpty())
+			journal.compact(renderProjects());
+		model.reload();
+		expandAllNodes();
+		Metrics.INSTANCE.recordReload(loadStartNanos);
+	}
+
+	/**
+	 * Runs the specified action on the Event Dispatch Thread after the tree
+	 * has been painted for the first time, or after
+	 * {@link #FIRST_PAINT_TIMEOUT}, whichever comes first.
+	 *
+	 * @param action
+	 *            The action to run.
+	 */
+	void runAfterFirstPaint(Runnable action) {
+		firstPaintAction = action;
+		scheduler.runLater(FIRST_PAINT_TIMEOUT, new Runnable() {
+			@Override
+			public void run() {
+				runFirstPaintAction();
+			}
+		});
+	}
+
+	/**
+	 * Runs the action set by {@link #runAfterFirstPaint(Runnable)}, unless it
+	 * has already been run.
+	 */
+	private void runFirstPaintAction() {
+		Runnable action = firstPaintAction;
+		firstPaintAction = null;
+		if (action != null) action.run();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (firstPaintAction != null)
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					runFirstPaintAction();
+				}
+			});
+	}
+
+	/**
+	 * Writes the entry that was running when the program last stopped
+	 * unexpectedly (if any) to the log. The entry is assumed to have ended at
+	 * the time of the last recorded heartbeat.
+	 */
+	private void recoverCheckpoint() {
+		Checkpoint.Entry entry = checkpoint.recover();
+		if (entry == null) return;
+		currentProjectPath = entry.projectPath;
+		try {
+			writeLogEntry(entry.startTime, entry.endTime);
+			checkpoint.clear();
+		} catch (Exception e) {displayProblem(e);}
+		finally {currentProjectPath = null;}
 	}
 
 	@Override
@@ -188,10 +336,12 @@ class ProjectsTree extends JTree implements TimeLog {
 		deleteMI.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				MutableTreeNode node = (MutableTreeNode) lastRightClickedPath.getLastPathComponent();
+				DefaultMutableTreeNode node = (DefaultMutableTreeNode) lastRightClickedPath.getLastPathComponent();
+				String[] path = getNamePath(node);
 				model.removeNodeFromParent(node);
-				try {saveProjects();}
+				try {journal.appendDelete(path);}
 				catch (IOException ex) {displayProblem(ex);}
+				compactProjectsIfNeeded();
 			}
 		});
 		MenuItem addChildMI = new MenuItem("Add child to");
@@ -222,8 +372,25 @@ class ProjectsTree extends JTree implements TimeLog {
 		parent.add(child);
 		model.reload();
 		expandPath(new TreePath(parent.getPath()));
-		try {saveProjects();}
+		try {journal.appendAdd(getNamePath(parent), project, tooltip);}
 		catch (IOException e) {displayProblem(e);}
+		compactProjectsIfNeeded();
+	}
+
+	/**
+	 * Obtains the names of the nodes on the path from the (invisible) root to
+	 * the specified node. The root itself is not included.
+	 *
+	 * @param node
+	 *            The node to obtain the path for.
+	 * @return The names on the path.
+	 */
+	private String[] getNamePath(DefaultMutableTreeNode node) {
+		TreeNode[] nodes = node.getPath();
+		String[] path = new String[nodes.length - 1];
+		for (int i = 1; i < nodes.length; i++)
+			path[i - 1] = ((ProjectNode) nodes[i]).getUserObject().toString();
+		return path;
 	}
 
 	/**
@@ -247,16 +414,41 @@ class ProjectsTree extends JTree implements TimeLog {
 	 * tree --- the node is creates as a child of a node corresponding to the
 	 * previous line indented by one tab less. A description of a project can be
 	 * specified after the project's name in curly brackets.
+	 * <p>
+	 * Only the top-level projects are parsed and added to the tree; the lines
+	 * are kept aside until {@link #completeLoading()} parses the rest.
 	 *
 	 * @throws IOException
 	 *             Thrown if there are problems reading the file.
 	 */
 	private void loadProjects() throws IOException {
-		List<DefaultMutableTreeNode> nodeChain = new ArrayList<DefaultMutableTreeNode>();
-		nodeChain.add(root);
 		BufferedReader br = new BufferedReader(new FileReader(getProjectsFile()));
 		String line;
 		while ((line = br.readLine()) != null) {
+			pendingLines.add(line);
+			if (line.isEmpty() || line.charAt(0) == '\t') continue;
+			int hash = line.indexOf('#');
+			if (hash != -1)
+				line = line.substring(0, hash);
+			if (!line.trim().isEmpty())
+				root.add(new ProjectNode(extractName(line), extractTooltip(line)));
+		}
+		br.close();
+	}
+
+	/**
+	 * Parses the lines of the projects' file (see {@link #loadProjects()}),
+	 * and adds the projects below the top level to the tree. The top-level
+	 * projects are already in the tree, in the same order.
+	 *
+	 * @param lines
+	 *            The lines of the projects' file.
+	 */
+	private void parseProjects(List<String> lines) {
+		List<DefaultMutableTreeNode> nodeChain = new ArrayList<DefaultMutableTreeNode>();
+		nodeChain.add(root);
+		int topLevel = 0;
+		for (String line : lines) {
 			// pre-processing and comments
 			int hash = line.indexOf('#');
 			if (hash != -1)
@@ -268,34 +460,83 @@ class ProjectsTree extends JTree implements TimeLog {
 			line = line.substring(depth);
 			while (depth < nodeChain.size())
 				nodeChain.remove(depth); // remove irrelevant part of the chain
-			ProjectNode node = new ProjectNode(extractName(line), extractTooltip(line));
-			if (depth == 0) root.add(node);
-			else nodeChain.get(depth - 1).add(node);
+			DefaultMutableTreeNode node;
+			if (depth == 0) node = (DefaultMutableTreeNode) root.getChildAt(topLevel++);
+			else nodeChain.get(depth - 1).add(node = new ProjectNode(extractName(line), extractTooltip(line)));
 			nodeChain.add(node);
 		}
-		br.close();
 	}
 
 	/**
-	 * Writes the current tree of projects back to the projects' file. This is
-	 * used whenever the user changes the tree through the GUI.
+	 * Replays the journal of changes on top of the tree loaded from the
+	 * projects' file. Replaying is idempotent: adding an existing node, or
+	 * deleting a missing one, is ignored. Entries referring to a missing parent
+	 * are ignored as well.
 	 *
 	 * @throws IOException
-	 *             Thrown if there are problems writing to the projects' file.
+	 *             Thrown if there are problems reading the journal.
+	 */
+	private void replayJournal() throws IOException {
+		for (String entry : journal.readEntries()) {
+			String[] path = entry.substring(1).split("\t");
+			DefaultMutableTreeNode parent = root;
+			for (int i = 0; i < path.length - 1 && parent != null; i++)
+				parent = findChild(parent, path[i]);
+			if (parent == null) continue;
+			String last = path[path.length - 1];
+			if (entry.charAt(0) == ProjectsJournal.ADD) {
+				if (findChild(parent, extractName(last)) == null)
+					parent.add(new ProjectNode(extractName(last), extractTooltip(last)));
+			} else {
+				ProjectNode node = findChild(parent, last);
+				if (node != null) parent.remove(node);
+			}
+		}
+	}
+
+	/**
+	 * Finds the child of the specified node with the specified name.
+	 *
+	 * @param parent
+	 *            The parent node.
+	 * @param name
+	 *            The name of the child.
+	 * @return The child node, or null if not found.
+	 */
+	private ProjectNode findChild(DefaultMutableTreeNode parent, String name) {
+		for (int i = 0; i < parent.getChildCount(); i++) {
+			ProjectNode child = (ProjectNode) parent.getChildAt(i);
+			if (child.getUserObject().toString().equals(name))
+				return child;
+		}
+		return null;
+	}
+
+	/**
+	 * Schedules the compaction of the journal back into the projects' file if
+	 * enough changes have accumulated.
 	 */
-	private void saveProjects() throws IOException {
+	private void compactProjectsIfNeeded() {
+		if (journal.needsCompaction())
+			journal.compact(renderProjects());
+	}
+
+	/**
+	 * Renders the current tree of projects in the format of the projects'
+	 * file. This is used when compacting the journal of changes.
+	 *
+	 * @return The contents of the projects' file.
+	 */
+	private String renderProjects() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("# Syntax:" + nl + "# main_project[{tooltip}]" + nl);
 		sb.append("# \tsub_project[{tooltip}]" + nl + "# \t\tsub_sub_project[{tooltip}]" + nl + nl);
 		saveChildrenOf(sb, root, 0);
-		BufferedWriter bw = new BufferedWriter(new FileWriter(config.getProjectsFilename()));
-		bw.write(sb.toString());
-		bw.close();
+		return sb.toString();
 	}
 
 	/**
-	 * This is the recursive part of
-	 * {@link #saveChildrenOf(StringBuilder, TreeNode, int)}.
+	 * This is the recursive part of {@link #renderProjects()}.
 	 *
 	 * @param sb
 	 *            The string builder to write to.
@@ -351,22 +592,6 @@ class ProjectsTree extends JTree implements TimeLog {
 		return s.substring(left + 1, right).trim();
 	}
 
-	/**
-	 * Creates the time with the specified interval period (obtained from the
-	 * configuration).
-	 *
-	 * @return The timer.
-	 */
-	private Timer createTimer() {
-		Timer t = new Timer(config.getIntervalInSeconds() * 1000, new ActionListener() {
-			@Override
-			public void actionPerformed(ActionEvent e) {
-				doPeriodicAction();
-			}
-		});
-		return t;
-	}
-
 	/**
 	 * Expands all tree nodes in the GUI.
 	 */
@@ -418,6 +643,8 @@ class ProjectsTree extends JTree implements TimeLog {
 	 *            The related mouse event.
 	 */
 	private void onRightMouseClick(MouseEvent e) {
+		try {completeLoading();}
+		catch (IOException ex) {displayProblem(ex);}
 		lastRightClickedPath = getPathForLocation(e.getX(), e.getY());
 		if (lastRightClickedPath != null)
 			popupMenu.show(frame, e.getX(), e.getY());
@@ -439,10 +666,13 @@ class ProjectsTree extends JTree implements TimeLog {
 
 	@Override
 	public void startRecording(String[] projectPath) throws Exception {
+		FlightEvents.StateTransition event = new FlightEvents.StateTransition("startRecording", state);
 		if (state != State.STOPPED) stopRecording();
 		currentProjectPath = projectPath;
 		startTime = System.currentTimeMillis();
+		checkpoint.open(startTime, projectPath);
 		switchToActiveState(projectPath);
+		event.finish(state, currentProjectPath);
 	}
 
 	@Override
@@ -451,15 +681,25 @@ class ProjectsTree extends JTree implements TimeLog {
 		case STOPPED:
 			return;
 		case AUTOMATIC:
-			timer.stop();
+			scheduler.cancel();
 			stopAutomaticRecording();
 			break;
 		case RUNNING:
-			writeLogEntry(startTime, System.currentTimeMillis());
+			writeLogEntry(startTime, getEndTime());
 		}
 		switchToStoppedState();
 	}
 
+	/**
+	 * Obtains the end time for the currently running activity. This is the
+	 * current time, unless a scheduled period ended earlier.
+	 *
+	 * @return The end time in milliseconds from epoch.
+	 */
+	private long getEndTime() {
+		return Math.min(periodEndTime, System.currentTimeMillis());
+	}
+
 	/**
 	 * This method is called when the user stops the semi-active period. The
 	 * action depends on the configuration option
@@ -482,9 +722,10 @@ class ProjectsTree extends JTree implements TimeLog {
 
 	@Override
 	public void doPeriodicAction() {
+		FlightEvents.StateTransition event = new FlightEvents.StateTransition("doPeriodicAction", state);
 		try {
 			if (state == State.AUTOMATIC) {
-				timer.stop();
+				scheduler.cancel();
 				potentiallyWriteTimeout();
 				switchToStoppedState();
 			} else if (state == State.RUNNING) {
@@ -494,6 +735,7 @@ class ProjectsTree extends JTree implements TimeLog {
 			}
 		} catch (Exception ex) {displayProblem(ex);}
 		unminimiseOrShow();
+		event.finish(state, currentProjectPath);
 	}
 
 	/**
@@ -512,50 +754,38 @@ class ProjectsTree extends JTree implements TimeLog {
 
 	@Override
 	public void writeLogEntry(long startTime, long endTime) throws Exception {
-		String startTimeS = df.format(new Date(startTime));
-		String endTimeS = df.format(new Date(endTime));
-		String uid = config.getUID();
-		String entry = (uid == null ? "" : uid + ",") + startTimeS + "," + endTimeS;
-		for (String projectPathNode : currentProjectPath)
-			entry += "," + projectPathNode;
-		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(config.getLogFilename(), true)));
-		out.write(entry + nl);
-		out.close();
+		logWriter.write(startTime, endTime, currentProjectPath);
 	}
 
 	@Override
 	public void switchToActiveState(String[] projectPath) {
-		int delay = config.getIntervalInSeconds() * 1000;
-		timer.setDelay(delay);
-		timer.setInitialDelay(delay);
-		timer.restart();
+		scheduler.schedule(config.getIntervalInSeconds() * 1000L, periodicListener);
 		state = State.RUNNING;
 		repaint();
 	}
 
 	@Override
 	public void switchToSemiActiveState() {
-		int delay = config.getWaitInSeconds() * 1000;
-		timer.setDelay(delay);
-		timer.setInitialDelay(delay);
-		timer.restart();
+		FlightEvents.StateTransition event = new FlightEvents.StateTransition("switchToSemiActiveState", state);
+		scheduler.schedule(config.getWaitInSeconds() * 1000L, periodicListener);
+		checkpoint.clear();
 		state = State.AUTOMATIC;
 		repaint();
+		event.finish(state, currentProjectPath);
 	}
 
 	@Override
 	public void switchToStoppedState() {
+		checkpoint.clear();
 		state = State.STOPPED;
 		repaint();
 	}
 
 	@Override
 	public void minimiseOrHide() {
-		new Thread() {
+		scheduler.runLater(150, new Runnable() {
 			@Override
 			public void run() {
-				try {Thread.sleep(150);}
-				catch (InterruptedException e) {e.printStackTrace();}
 				switch (config.getBehaviour()) {
 				case MINIMISE:
 					frame.setExtendedState(Frame.ICONIFIED);
@@ -567,7 +797,7 @@ class ProjectsTree extends JTree implements TimeLog {
 					break;
 				}
 			}
-		}.start();
+		});
 	}
 
 	@Override
@@ -0,0 +1,226 @@
+package rokclock;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bounded report of the log lines that could not be parsed. Only the first
+ * lines (by file and position) are kept, up to the capacity, but all of them
+ * are counted. Every line is reported with its line number and byte offset
+ * within its file (or segment), so that it can be found and fixed without
+ * re-running the analysis.
+ */
+public class Quarantine {
+	/**
+	 * The longest part of a line that is kept.
+	 */
+	private static final int MAX_LINE_LENGTH = 200;
+
+	/**
+	 * A single quarantined line.
+	 */
+	public static class Entry {
+		/**
+		 * The file (or segment) the line is in.
+		 */
+		public final String source;
+		/**
+		 * The number of the line within the file, starting from 1, or -1 if
+		 * not known.
+		 */
+		public final long lineNumber;
+		/**
+		 * The offset of the line within the file in bytes (for compressed
+		 * segments, within the uncompressed contents), or -1 if not known.
+		 */
+		public final long byteOffset;
+		/**
+		 * The line, possibly shortened.
+		 */
+		public final String line;
+		/**
+		 * The reason the line could not be parsed.
+		 */
+		public final String reason;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param source
+		 *            The file the line is in.
+		 * @param lineNumber
+		 *            The number of the line, or -1.
+		 * @param byteOffset
+		 *            The offset of the line, or -1.
+		 * @param line
+		 *            The line.
+		 * @param reason
+		 *            The reason the line could not be parsed.
+		 */
+		Entry(String source, long lineNumber, long byteOffset, String line, String reason) {
+			this.source = source;
+			this.lineNumber = lineNumber;
+			this.byteOffset = byteOffset;
+			this.line = line.length() > MAX_LINE_LENGTH ? line.substring(0, MAX_LINE_LENGTH) + "..." : line;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return "line " + (lineNumber < 0 ? "?" : String.valueOf(lineNumber))
+					+ " (byte offset " + (byteOffset < 0 ? "?" : String.valueOf(byteOffset)) + ") of "
+					+ source + ": \"" + line + "\" (" + reason + ")";
+		}
+	}
+
+	/**
+	 * The order of entries: by file, then by position.
+	 */
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int c = e1.source.compareTo(e2.source);
+			if (c != 0) return c;
+			c = Long.compare(e1.byteOffset, e2.byteOffset);
+			return c != 0 ? c : Long.compare(e1.lineNumber, e2.lineNumber);
+		}
+	};
+	/**
+	 * The maximal number of kept entries.
+	 */
+	private final int capacity;
+	/**
+	 * The kept entries, in order.
+	 */
+	private final TreeSet<Entry> entries = new TreeSet<Entry>(ORDER);
+	/**
+	 * The number of quarantined lines by file, including those not kept.
+	 */
+	private final Map<String, Long> counts = new HashMap<String, Long>();
+	/**
+	 * The number of quarantined lines, including those not kept.
+	 */
+	private long total = 0;
+
+	/**
+	 * Creates an empty quarantine.
+	 *
+	 * @param capacity
+	 *            The maximal number of kept entries.
+	 */
+	public Quarantine(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Quarantines a line.
+	 *
+	 * @param source
+	 *            The file the line is in.
+	 * @param lineNumber
+	 *            The number of the line, or -1 if not known.
+	 * @param byteOffset
+	 *            The offset of the line, or -1 if not known.
+	 * @param line
+	 *            The line.
+	 * @param cause
+	 *            The reason the line could not be parsed.
+	 */
+	synchronized void add(String source, long lineNumber, long byteOffset, String line, Throwable cause) {
+		total++;
+		Long count = counts.get(source);
+		counts.put(source, (count == null ? 0 : count) + 1);
+		entries.add(new Entry(source, lineNumber, byteOffset, line, String.valueOf(cause.getMessage())));
+		if (entries.size() > capacity)
+			entries.pollLast();
+	}
+
+	/**
+	 * Removes all the lines of the specified file, e.g. before the file is
+	 * read again.
+	 *
+	 * @param source
+	 *            The file.
+	 */
+	synchronized void removeSource(String source) {
+		Long count = counts.remove(source);
+		if (count == null) return;
+		total -= count;
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();)
+			if (i.next().source.equals(source)) i.remove();
+	}
+
+	/**
+	 * Fills in the unknown line numbers of the kept entries by counting the
+	 * lines before their byte offsets. This reads the start of the affected
+	 * files once.
+	 *
+	 * @throws IOException
+	 *             Thrown if a file cannot be read.
+	 */
+	synchronized void resolveLineNumbers() throws IOException {
+		List<Entry> unresolved = new ArrayList<Entry>();
+		for (Entry entry : entries)
+			if (entry.lineNumber < 0 && entry.byteOffset >= 0 && new File(entry.source).isFile())
+				unresolved.add(entry);
+		InputStream in = null;
+		String source = null;
+		long position = 0, lines = 1;
+		try {
+			for (Entry entry : unresolved) { // ordered by file and offset
+				if (!entry.source.equals(source)) {
+					if (in != null) in.close();
+					in = new BufferedInputStream(new FileInputStream(entry.source), 1 << 16);
+					source = entry.source;
+					position = 0;
+					lines = 1;
+				}
+				int b;
+				while (position < entry.byteOffset && (b = in.read()) != -1) {
+					position++;
+					if (b == '\n') lines++;
+				}
+				entries.remove(entry);
+				entries.add(new Entry(entry.source, lines, entry.byteOffset, entry.line, entry.reason));
+			}
+		} finally {
+			if (in != null) in.close();
+		}
+	}
+
+	/**
+	 * Obtains the number of quarantined lines, including those not kept.
+	 *
+	 * @return The number of lines.
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Obtains the kept entries, ordered by file and position.
+	 *
+	 * @return The entries.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries);
+	}
+
+	/**
+	 * Produces a human-readable report of the quarantined lines.
+	 *
+	 * @return The report, or an empty string if no lines were quarantined.
+	 */
+	public synchronized String getReport() {
+		if (total == 0) return "";
+		String nl = System.getProperty("line.separator");
+		StringBuilder sb = new StringBuilder();
+		sb.append(total).append(total == 1 ? " line could not be parsed and was" : " lines could not be parsed and were")
+		.append(" skipped:").append(nl);
+		for (Entry entry : entries)
+			sb.append("  ").append(entry).append(nl);
+		if (total > entries.size())
+			sb.append("  ... and ").append(total - entries.size()).append(" more.").append(nl);
+		return sb.toString();
+	}
+}
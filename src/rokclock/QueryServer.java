@@ -0,0 +1,305 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A local HTTP server that answers summary queries over a log, so that
+ * dashboards do not need to start a new analyser for every query. The log is
+ * kept in a warm {@link LogIndex}, which is advanced in the background, and
+ * the responses are cached until the index changes.
+ * <p>
+ * The server only listens on the loopback interface, and answers requests of
+ * the form:
+ *
+ * <pre>
+ * GET /summary?from=dd/MM/yyyy&amp;to=dd/MM/yyyy&amp;project=&lt;prefix&gt;&amp;uid=&lt;uid&gt;&amp;groupBy=(project|uid)&amp;format=(json|csv)
+ * </pre>
+ *
+ * All parameters are optional. Requests are handled on virtual threads if the
+ * Java runtime supports them, and on a pool of platform threads otherwise.
+ */
+class QueryServer {
+	/**
+	 * The period in milliseconds between refreshes of the index.
+	 */
+	private static final long REFRESH_MILLIS = 2000;
+	/**
+	 * The maximal number of cached responses.
+	 */
+	private static final int CACHE_SIZE = 1024;
+	/**
+	 * A platform-independent newline.
+	 */
+	private final String nl = System.getProperty("line.separator");
+	/**
+	 * The index of the log.
+	 */
+	private final LogIndex index;
+	/**
+	 * The cached responses, keyed by the generation of the index and the
+	 * request's query string.
+	 */
+	private final ConcurrentMap<String, byte[]> cache = new ConcurrentHashMap<String, byte[]>();
+	/**
+	 * The latest generation of the index seen; older responses are cleared
+	 * when it changes.
+	 */
+	private volatile long cacheGeneration = -1;
+	/**
+	 * The team reported in the CSV output.
+	 */
+	private final String team;
+
+	/**
+	 * Creates a server for the specified log file, and reads the log.
+	 *
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @param team
+	 *            The team reported in the CSV output.
+	 * @throws IOException
+	 *             Thrown if the log cannot be read.
+	 */
+	QueryServer(String logFilename, String team) throws IOException {
+		this.team = team;
+		index = new LogIndex(logFilename);
+		index.refresh();
+	}
+
+	/**
+	 * Starts the server on the specified port of the loopback interface, and
+	 * starts refreshing the index in the background.
+	 *
+	 * @param port
+	 *            The port to listen on.
+	 * @return The started server.
+	 * @throws IOException
+	 *             Thrown if the server cannot be started.
+	 */
+	HttpServer start(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+		server.createContext("/summary", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleSummary(exchange);
+			}
+		});
+		server.setExecutor(createRequestExecutor());
+		server.start();
+		ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "query-index-refresher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {index.refresh();}
+				catch (IOException e) {e.printStackTrace();}
+			}
+		}, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+		return server;
+	}
+
+	/**
+	 * Creates the executor for handling requests: a virtual thread per request
+	 * if the Java runtime supports it, and a cached pool of platform threads
+	 * otherwise.
+	 *
+	 * @return The executor.
+	 */
+	private static ExecutorService createRequestExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Handles a single summary request.
+	 *
+	 * @param exchange
+	 *            The HTTP exchange.
+	 * @throws IOException
+	 *             Thrown if the response cannot be sent.
+	 */
+	private void handleSummary(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				send(exchange, 405, "text/plain", "Only GET is supported.".getBytes("UTF-8"));
+				return;
+			}
+			String query = exchange.getRequestURI().getRawQuery();
+			if (query == null) query = "";
+			// responses are keyed by the generation as well, so that a response
+			// computed while the index changed is never served for a later generation
+			long generation = index.getGeneration();
+			if (generation != cacheGeneration) {
+				cache.clear();
+				cacheGeneration = generation;
+			}
+			String key = generation + "?" + query;
+			byte[] response = cache.get(key);
+			Map<String, String> params = parseQuery(query);
+			boolean csv = "csv".equals(params.get("format"));
+			if (response == null) {
+				try {response = computeSummary(params, csv).getBytes("UTF-8");}
+				catch (ParseException e) {
+					send(exchange, 400, "text/plain", ("Dates should be specified as dd/MM/yyyy: "
+							+ e.getMessage()).getBytes("UTF-8"));
+					return;
+				}
+				if (cache.size() >= CACHE_SIZE) cache.clear();
+				cache.put(key, response);
+			}
+			send(exchange, 200, csv ? "text/csv; charset=utf-8" : "application/json; charset=utf-8", response);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Computes the response for a summary request.
+	 *
+	 * @param params
+	 *            The request's parameters.
+	 * @param csv
+	 *            Whether to produce CSV instead of JSON.
+	 * @return The response body.
+	 * @throws ParseException
+	 *             Thrown if the dates cannot be parsed.
+	 */
+	private String computeSummary(Map<String, String> params, boolean csv) throws ParseException {
+		DateFormat df = new SimpleDateFormat("dd/MM/yyyy");
+		Date fromDate = params.containsKey("from") ? df.parse(params.get("from")) : null;
+		Date toDate = params.containsKey("to") ? df.parse(params.get("to")) : null;
+		boolean byUid = "uid".equals(params.get("groupBy"));
+		Map<String, Long> sums = index.query(fromDate, toDate, params.get("project"), params.get("uid"), byUid);
+		StringBuilder sb = new StringBuilder();
+		if (csv) {
+			for (Map.Entry<String, Long> entry : sums.entrySet())
+				sb.append(String.format(Locale.ROOT, "%s, %.2f, %s" + nl, team, toHours(entry.getValue()), entry.getKey()));
+			return sb.toString();
+		}
+		long total = 0;
+		sb.append("{\"groupBy\":\"").append(byUid ? "uid" : "project").append("\",\"sums\":[");
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : sums.entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append("{\"key\":\"").append(escapeJson(entry.getKey()))
+			.append("\",\"millis\":").append(entry.getValue())
+			.append(",\"hours\":").append(String.format(Locale.ROOT, "%.2f", toHours(entry.getValue()))).append('}');
+			total += entry.getValue();
+		}
+		sb.append("],\"totalMillis\":").append(total)
+		.append(",\"malformedLines\":").append(index.getMalformedLines()).append('}');
+		return sb.toString();
+	}
+
+	/**
+	 * Converts milliseconds to hours.
+	 *
+	 * @param millis
+	 *            The milliseconds.
+	 * @return The hours.
+	 */
+	private static double toHours(long millis) {
+		return 1.0 * millis / (1000 * 3600);
+	}
+
+	/**
+	 * Escapes a string for use within a JSON string literal.
+	 *
+	 * @param s
+	 *            The string to escape.
+	 * @return The escaped string.
+	 */
+	private static String escapeJson(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : s.toCharArray())
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a URL query string into a map of parameters.
+	 *
+	 * @param query
+	 *            The raw query string.
+	 * @return The parameters.
+	 * @throws UnsupportedEncodingException
+	 *             Never thrown in practice.
+	 */
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq == -1 ? pair : pair.substring(0, eq), "UTF-8");
+			String value = eq == -1 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			params.put(key, value);
+		}
+		return params;
+	}
+
+	/**
+	 * Sends a response.
+	 *
+	 * @param exchange
+	 *            The HTTP exchange.
+	 * @param status
+	 *            The HTTP status code.
+	 * @param contentType
+	 *            The content type.
+	 * @param body
+	 *            The response body.
+	 * @throws IOException
+	 *             Thrown if the response cannot be sent.
+	 */
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+	/**
+	 * The entry method, which starts the server for the configured (or the
+	 * specified) log file on the configured port.
+	 *
+	 * @param args
+	 *            Optionally, the name of the log file.
+	 * @throws Exception
+	 *             Thrown if the server cannot be started.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			err.println("Usage: java -cp bin rokclock.QueryServer [<logFilename>]");
+			exit(1);
+		}
+		Config config = new Config();
+		String logFilename = args.length == 1 ? args[0] : config.getLogFilename();
+		new QueryServer(logFilename, config.getTeam()).start(config.getQueryPort());
+		out.println("RokClock query server listening on http://localhost:" + config.getQueryPort() + "/summary");
+	}
+}
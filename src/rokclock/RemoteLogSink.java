@@ -0,0 +1,304 @@
+package rokclock;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The client side of the {@link IngestServer}. Every entry is first appended
+ * to a local spool file, and then sent to the server on a background thread;
+ * entries are only removed from the spool once the server has acknowledged
+ * them. If the server is unreachable, or could not store them, the entries
+ * stay in the spool and are sent again (in order) with the next entry, or
+ * after a retry delay that doubles with every failed attempt.
+ * <p>
+ * Every spooled entry carries a sequence number, which increases per client.
+ * The client is identified by a random identifier kept in the first line of
+ * the spool. The server ignores entries whose sequence number it has already
+ * committed, so an entry sent again after its acknowledgement was lost is not
+ * stored twice.
+ */
+class RemoteLogSink {
+	/**
+	 * The timeout in milliseconds for connecting to the server.
+	 */
+	private static final int CONNECT_TIMEOUT = 2000;
+	/**
+	 * The timeout in milliseconds for waiting for an acknowledgement.
+	 */
+	private static final int READ_TIMEOUT = 10000;
+	/**
+	 * The delay in milliseconds before the first retry of a failed attempt.
+	 */
+	private static final long MIN_RETRY_DELAY = 5000;
+	/**
+	 * The maximal delay in milliseconds between retries.
+	 */
+	private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+	/**
+	 * The prefix of the spool's header line, which holds the client's
+	 * identifier and the last assigned sequence number.
+	 */
+	private static final String HEADER_PREFIX = "#";
+	/**
+	 * A platform-independent newline.
+	 */
+	private final String nl = System.getProperty("line.separator");
+	/**
+	 * The address of the server.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The user's name under which the entries are stored on the server.
+	 */
+	private final String user;
+	/**
+	 * The local spool file.
+	 */
+	private final File spoolFile;
+	/**
+	 * The identifier of this client, used by the server to track the sequence
+	 * numbers.
+	 */
+	private String clientId;
+	/**
+	 * The sequence number of the last spooled entry.
+	 */
+	private long lastSequence = 0;
+	/**
+	 * The delay before the next retry. Only accessed by the sender thread.
+	 */
+	private long retryDelay = MIN_RETRY_DELAY;
+	/**
+	 * The scheduled retry, if any. Only accessed by the sender thread.
+	 */
+	private ScheduledFuture<?> retry;
+	/**
+	 * The single background thread that sends the entries.
+	 */
+	private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "remote-log-sink");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/**
+	 * The task that sends the spool, and schedules a retry if anything is
+	 * left in it.
+	 */
+	private final Runnable sendTask = new Runnable() {
+		@Override
+		public void run() {
+			if (retry != null) {
+				retry.cancel(false);
+				retry = null;
+			}
+			if (flush()) {
+				retryDelay = MIN_RETRY_DELAY;
+				return;
+			}
+			retry = sender.schedule(this, retryDelay, TimeUnit.MILLISECONDS);
+			retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+		}
+	};
+
+	/**
+	 * Creates a sink, and schedules sending the entries left in the spool by
+	 * a previous run.
+	 *
+	 * @param address
+	 *            The address of the server.
+	 * @param user
+	 *            The user's name.
+	 * @param spoolFile
+	 *            The local spool file.
+	 * @throws IOException
+	 *             Thrown if the spool cannot be read or initialised.
+	 */
+	RemoteLogSink(InetSocketAddress address, String user, File spoolFile) throws IOException {
+		this.address = address;
+		this.user = user;
+		this.spoolFile = spoolFile;
+		List<String> entries = readSpool();
+		if (clientId == null) {
+			clientId = UUID.randomUUID().toString();
+			writeSpool(entries);
+		}
+		if (!entries.isEmpty())
+			sender.execute(sendTask);
+	}
+
+	/**
+	 * Parses an address of the form [&lt;host&gt;:]&lt;port&gt;. If the host is
+	 * omitted, the loopback interface is used.
+	 *
+	 * @param s
+	 *            The address to parse.
+	 * @return The address.
+	 * @throws UnknownHostException
+	 *             Thrown if the host cannot be resolved.
+	 */
+	static InetSocketAddress parseAddress(String s) throws UnknownHostException {
+		int colon = s.lastIndexOf(':');
+		if (colon == -1)
+			return new InetSocketAddress(InetAddress.getByName(null), Integer.parseInt(s.trim()));
+		return new InetSocketAddress(s.substring(0, colon).trim(), Integer.parseInt(s.substring(colon + 1).trim()));
+	}
+
+	/**
+	 * Spools an entry with the next sequence number, and schedules sending the
+	 * spool to the server.
+	 *
+	 * @param entry
+	 *            The log entry (without a newline).
+	 * @throws IOException
+	 *             Thrown if the entry cannot be spooled.
+	 */
+	void submit(String entry) throws IOException {
+		synchronized (this) {
+			FileOutputStream fos = new FileOutputStream(spoolFile, true);
+			try {fos.write((++lastSequence + "\t" + entry + nl).getBytes());}
+			finally {fos.close();}
+		}
+		sender.execute(sendTask);
+	}
+
+	/**
+	 * Sends all the spooled entries to the server, and removes the ones that
+	 * the server has acknowledged or rejected. Entries rejected by the server
+	 * are reported, as sending them again would not help; the ones the server
+	 * could not store are kept.
+	 *
+	 * @return True if the spool is empty afterwards.
+	 */
+	boolean flush() {
+		List<String> entries;
+		try {entries = readSpool();}
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if (entries.isEmpty()) return true;
+		int done = 0;
+		List<String> kept = new ArrayList<String>();
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			InputStream in = socket.getInputStream();
+			for (String entry : entries) {
+				int tab = entry.indexOf('\t');
+				String frame = tab == -1 ? user + "\n" + entry
+						: user + "\n" + clientId + "," + entry.substring(0, tab) + "\n" + entry.substring(tab + 1);
+				byte[] payload = frame.getBytes("UTF-8");
+				out.writeInt(payload.length);
+				out.write(payload);
+			}
+			out.flush();
+			for (String entry : entries) {
+				int reply = in.read();
+				if (reply == -1) break;
+				if (reply == IngestServer.RETRY)
+					kept.add(entry);
+				else if (reply != IngestServer.ACK)
+					System.err.println("The ingestion server rejected the entry: " + entry.substring(entry.indexOf('\t') + 1));
+				done++;
+			}
+		} catch (IOException e) {
+			// the server is unreachable; keep the rest in the spool
+		} finally {
+			try {socket.close();}
+			catch (IOException e) {}
+		}
+		try {return dropSpooled(done, kept);}
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the entries in the spool, each prefixed with its sequence number
+	 * and a tab. Entries spooled by older versions have no sequence number.
+	 * The client's identifier and the last sequence number are taken from the
+	 * header line, if present.
+	 *
+	 * @return The spooled entries.
+	 * @throws IOException
+	 *             Thrown if the spool cannot be read.
+	 */
+	private synchronized List<String> readSpool() throws IOException {
+		List<String> entries = new ArrayList<String>();
+		if (!spoolFile.exists()) return entries;
+		for (String line : Files.readAllLines(spoolFile.toPath(), Charset.defaultCharset())) {
+			line = line.trim();
+			if (line.isEmpty()) continue;
+			if (line.startsWith(HEADER_PREFIX)) {
+				int comma = line.indexOf(',');
+				if (comma == -1) continue;
+				clientId = line.substring(HEADER_PREFIX.length(), comma);
+				lastSequence = Math.max(lastSequence, parseSequence(line.substring(comma + 1)));
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			if (tab != -1)
+				lastSequence = Math.max(lastSequence, parseSequence(line.substring(0, tab)));
+			entries.add(line);
+		}
+		return entries;
+	}
+
+	/**
+	 * Parses a sequence number.
+	 *
+	 * @param s
+	 *            The string to parse.
+	 * @return The sequence number, or 0 if it is invalid.
+	 */
+	private static long parseSequence(String s) {
+		try {return Long.parseLong(s.trim());}
+		catch (NumberFormatException e) {return 0;}
+	}
+
+	/**
+	 * Replaces the spool with the header line and the specified entries.
+	 *
+	 * @param entries
+	 *            The spooled entries.
+	 * @throws IOException
+	 *             Thrown if the spool cannot be written.
+	 */
+	private synchronized void writeSpool(List<String> entries) throws IOException {
+		StringBuilder sb = new StringBuilder(HEADER_PREFIX).append(clientId).append(',').append(lastSequence).append(nl);
+		for (String entry : entries)
+			sb.append(entry).append(nl);
+		Main.writeFileAtomically(spoolFile, sb.toString());
+	}
+
+	/**
+	 * Removes the specified number of leading entries from the spool, except
+	 * the ones to be sent again. The entries spooled in the meantime are kept.
+	 *
+	 * @param count
+	 *            The number of entries to remove.
+	 * @param kept
+	 *            The entries among them that are kept, in order.
+	 * @return True if the spool is empty afterwards.
+	 * @throws IOException
+	 *             Thrown if the spool cannot be rewritten.
+	 */
+	private synchronized boolean dropSpooled(int count, List<String> kept) throws IOException {
+		List<String> entries = readSpool();
+		if (count == kept.size()) return entries.isEmpty();
+		List<String> remaining = new ArrayList<String>(kept);
+		remaining.addAll(entries.subList(Math.min(count, entries.size()), entries.size()));
+		writeSpool(remaining);
+		return remaining.isEmpty();
+	}
+}
@@ -6,16 +6,23 @@ import java.awt.event.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.List;
 import java.util.Map.*;
+import java.util.concurrent.*;
 
 import javax.swing.*;
-import javax.swing.event.*;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.*;
 
 /**
  * The dialog for reviewing summaries of log entries for a specific time period.
+ * A single instance is kept by {@link Main}, and re-opened with
+ * {@link #reopen()}. The log is kept in a warm {@link LogIndex}, which is
+ * advanced in the background while the dialog is hidden, so re-opening the
+ * dialog only needs to read the entries written since.
  */
 @SuppressWarnings("serial")
-class ReviewDialog extends JDialog implements CaretListener {
+class ReviewDialog extends JDialog {
 	/**
 	 * A label associated with a date. On user's mouse click, it presents the
 	 * user with {@link DateChooser} to change the date.
@@ -76,30 +83,163 @@ class ReviewDialog extends JDialog implements CaretListener {
 	}
 
 	/**
-	 * A row of data on the review dialog. It contains the necessary data as
-	 * well as the corresponding GUI components.
+	 * The model of the review table. Each row contains a project's name and
+	 * the hours spent on it; the hours can be edited. The hours are rounded to
+	 * two decimals, as shown, and the total is kept up to date incrementally
+	 * from the edited cell in hundredths of an hour, so that it cannot drift
+	 * through floating-point rounding. The percentages are
+	 * computed only when their (visible) cells are rendered.
 	 */
-	private class Row {
+	private class ReviewTableModel extends AbstractTableModel {
 		/**
-		 * The hours associated with the row's top-level project.
+		 * The column of the project's name.
 		 */
-		private double hours = 0;
+		static final int PROJECT_COLUMN = 0;
 		/**
-		 * The text field to adapt hours computed by the analyser.
+		 * The column of the hours.
 		 */
-		private JTextField hoursTF = new JTextField();
+		static final int HOURS_COLUMN = 1;
 		/**
-		 * The label showing the percentage of hours spent on row's top-level
-		 * project.
+		 * The column of the percentage.
 		 */
-		private JLabel percentL = new JLabel("N/A", SwingConstants.RIGHT);
+		static final int PERCENT_COLUMN = 2;
+		/**
+		 * The names of the projects, in the order of the rows.
+		 */
+		private final List<String> projects = new ArrayList<String>();
+		/**
+		 * The hours of the projects, in the order of the rows.
+		 */
+		private final List<Double> hours = new ArrayList<Double>();
+		/**
+		 * The sum of all hours, in hundredths of an hour.
+		 */
+		private long totalHundredths = 0;
+
+		/**
+		 * Replaces all rows with the specified results.
+		 *
+		 * @param sums
+		 *            The map from project names to the sums of milliseconds.
+		 * @param extraProjects
+		 *            The projects to add with zero hours, unless already
+		 *            present.
+		 */
+		void setResults(Map<String, Long> sums, String[] extraProjects) {
+			projects.clear();
+			hours.clear();
+			totalHundredths = 0;
+			for (Entry<String, Long> entry : sums.entrySet())
+				addRow(entry.getKey(), 1.0 * entry.getValue() / (1000 * 3600));
+			Set<String> present = new HashSet<String>(projects);
+			for (String project : extraProjects)
+				if (present.add(project))
+					addRow(project, 0);
+			fireTableDataChanged();
+			totalChanged();
+		}
+
+		/**
+		 * Adds a single row. The hours are rounded to two decimals, as shown.
+		 *
+		 * @param project
+		 *            The project's name.
+		 * @param h
+		 *            The hours spent on the project.
+		 */
+		private void addRow(String project, double h) {
+			long hundredths = Math.round(h * 100);
+			projects.add(project);
+			hours.add(hundredths / 100.0);
+			totalHundredths += hundredths;
+		}
+
+		/**
+		 * Obtains the sum of all hours.
+		 *
+		 * @return The total.
+		 */
+		double getTotal() {
+			return totalHundredths / 100.0;
+		}
+
+		/**
+		 * Obtains the name of the project in the specified row.
+		 *
+		 * @param row
+		 *            The row.
+		 * @return The project's name.
+		 */
+		String getProject(int row) {
+			return projects.get(row);
+		}
+
+		/**
+		 * Obtains the hours of the project in the specified row.
+		 *
+		 * @param row
+		 *            The row.
+		 * @return The hours.
+		 */
+		double getHours(int row) {
+			return hours.get(row);
+		}
+
+		@Override
+		public int getRowCount() {
+			return projects.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return 3;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			switch (column) {
+			case PROJECT_COLUMN: return "Project";
+			case HOURS_COLUMN: return "Hours";
+			default: return "%";
+			}
+		}
+
+		@Override
+		public Class<?> getColumnClass(int column) {
+			return column == PROJECT_COLUMN ? String.class : Double.class;
+		}
+
+		@Override
+		public boolean isCellEditable(int row, int column) {
+			return column == HOURS_COLUMN;
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+			switch (column) {
+			case PROJECT_COLUMN: return projects.get(row);
+			case HOURS_COLUMN: return hours.get(row);
+			default: return totalHundredths == 0 ? 0.0 : 100 * hours.get(row) / getTotal();
+			}
+		}
+
+		@Override
+		public void setValueAt(Object value, int row, int column) {
+			if (column != HOURS_COLUMN || value == null) return;
+			long hundredths = Math.round((Double) value * 100);
+			totalHundredths += hundredths - Math.round(hours.set(row, hundredths / 100.0) * 100);
+			fireTableCellUpdated(row, column);
+			totalChanged();
+		}
 
 		/**
-		 * The constructor sets up the listeners to update values appropriately.
+		 * Updates the total label and the percentages after the total has
+		 * changed. Only the visible percentage cells are actually repainted.
 		 */
-		Row() {
-			hoursTF.addCaretListener(ReviewDialog.this);
-			hoursTF.setHorizontalAlignment(SwingConstants.RIGHT);
+		private void totalChanged() {
+			if (!projects.isEmpty())
+				fireTableChanged(new TableModelEvent(this, 0, projects.size() - 1, PERCENT_COLUMN));
+			totalLabel.setText("TOTAL: " + decimalFormat.format(getTotal()) + " h");
 		}
 	}
 
@@ -120,18 +260,13 @@ class ReviewDialog extends JDialog implements CaretListener {
 	 */
 	private Config config;
 	/**
-	 * A link to the generic log analyser.
+	 * The period in milliseconds between background refreshes of the index.
 	 */
-	private Analyser analyser = new Analyser();
-
+	private static final long REFRESH_MILLIS = 30000;
 	/**
-	 * The default colour to display the text.
+	 * The warm index of the log.
 	 */
-	private Color normalColour = Color.BLACK;
-	/**
-	 * The colour used to display an error.
-	 */
-	private Color errorColour = Color.RED;
+	private final LogIndex index;
 
 	/**
 	 * The label describing the 'from' date label to its right.
@@ -199,18 +334,18 @@ class ReviewDialog extends JDialog implements CaretListener {
 	 */
 	private DateLabel toDate = new DateLabel();
 	/**
-	 * The sub-panel containing the rows; each row contains a project name, its
-	 * hours, and the percentage.
+	 * The label showing the total number of hours.
 	 */
-	private JPanel reviewPanel = new JPanel();
+	private JLabel totalLabel = new JLabel("", SwingConstants.RIGHT);
 	/**
-	 * A map from top-level project names to corresponding rows.
+	 * The model of the review table.
 	 */
-	private Map<String, Row> rows = new HashMap<String, Row>();
+	private ReviewTableModel tableModel = new ReviewTableModel();
 	/**
-	 * The label showing the total number of hours.
+	 * The review table; each row contains a project name, its hours, and the
+	 * percentage.
 	 */
-	private JLabel totalLabel = new JLabel("", SwingConstants.RIGHT);
+	private JTable reviewTable = createReviewTable();
 	/**
 	 * The button used to save the results into a file.
 	 */
@@ -220,9 +355,30 @@ class ReviewDialog extends JDialog implements CaretListener {
 	 */
 	private JButton copyToClipboardButton = createCopyToClipboardButton();
 	/**
-	 * The file chooser used to choose the file to save to.
+	 * The button used to export the timesheets of all weeks of a year.
+	 */
+	private JButton exportYearButton = createExportYearButton();
+	/**
+	 * The button used to show the lines of the log that could not be parsed.
+	 * It is only shown if there are any.
+	 */
+	private JButton quarantineButton = createQuarantineButton();
+	/**
+	 * The button which shows the distributions of the session durations.
+	 */
+	private JButton sessionsButton = createSessionsButton();
+	/**
+	 * The file chooser used to choose the file to save to. It is created on
+	 * the Event Dispatch Thread, once the home directory has been listed in
+	 * the background (which can be slow for large home directories). Can be
+	 * null.
 	 */
-	private JFileChooser fileChooser = new JFileChooser();
+	private JFileChooser fileChooser;
+	/**
+	 * Whether the dialog is shown; updated on the Event Dispatch Thread, so
+	 * that the background tasks can check it.
+	 */
+	private volatile boolean shown = false;
 
 	/**
 	 * The only constructor of the review dialog, which initialises the dates,
@@ -238,6 +394,19 @@ class ReviewDialog extends JDialog implements CaretListener {
 		super(main, "Review & Save");
 		this.main = main;
 		this.config = config;
+		index = new LogIndex(config.getLogFilename());
+		addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentShown(ComponentEvent e) {
+				shown = true;
+			}
+
+			@Override
+			public void componentHidden(ComponentEvent e) {
+				shown = false;
+			}
+		});
+		startBackgroundTasks();
 		// layout date components
 		GridBagLayout gbl = new GridBagLayout();
 		setLayout(gbl);
@@ -268,13 +437,22 @@ class ReviewDialog extends JDialog implements CaretListener {
 		gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 2;
 		gbc.insets = new Insets(10, 5, 10, 5);
 		gbc.weighty = 1;
-		JScrollPane scrollReviewPanel = new JScrollPane(reviewPanel);
+		JScrollPane scrollReviewPanel = new JScrollPane(reviewTable);
 		gbl.setConstraints(scrollReviewPanel, gbc);
-		gbc.insets = new Insets(0, 0, 0, 0);
+		gbc.insets = new Insets(0, 5, 10, 5);
 		gbc.gridy = 5; gbc.weighty = 0;
-		gbl.setConstraints(saveToFileButton, gbc);
+		gbl.setConstraints(totalLabel, gbc);
+		gbc.insets = new Insets(0, 0, 0, 0);
 		gbc.gridy = 6;
+		gbl.setConstraints(saveToFileButton, gbc);
+		gbc.gridy = 7;
 		gbl.setConstraints(copyToClipboardButton, gbc);
+		gbc.gridy = 8;
+		gbl.setConstraints(exportYearButton, gbc);
+		gbc.gridy = 9;
+		gbl.setConstraints(sessionsButton, gbc);
+		gbc.gridy = 10;
+		gbl.setConstraints(quarantineButton, gbc);
 		add(yearLabel);
 		add(yearCB);
 		add(weekLabel);
@@ -284,14 +462,78 @@ class ReviewDialog extends JDialog implements CaretListener {
 		add(toLabel);
 		add(toDate);
 		add(scrollReviewPanel);
+		add(totalLabel);
 		add(saveToFileButton);
 		add(copyToClipboardButton);
+		add(exportYearButton);
+		add(sessionsButton);
+		add(quarantineButton);
 		// layout results
 		updateYearWeekDates();
 		setVisible(true);
 		setLocation(main.getLocation());
 	}
 
+	/**
+	 * Starts the background tasks: listing the home directory before the file
+	 * chooser is created, and regularly refreshing the index of the log while
+	 * the dialog is hidden.
+	 */
+	private void startBackgroundTasks() {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "review-dialog-background");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// only warms the file system caches; no Swing components are touched here
+				new File(System.getProperty("user.home")).listFiles();
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						getFileChooser();
+					}
+				});
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (shown) return;
+				try {index.refresh();}
+				catch (IOException e) {e.printStackTrace();}
+			}
+		}, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Obtains the file chooser, creating it on first use. This should only be
+	 * called on the Event Dispatch Thread.
+	 *
+	 * @return The file chooser.
+	 */
+	private JFileChooser getFileChooser() {
+		if (fileChooser == null)
+			fileChooser = new JFileChooser();
+		return fileChooser;
+	}
+
+	/**
+	 * Shows the dialog again for the current week, with the results brought
+	 * up to date.
+	 */
+	void reopen() {
+		yearWeekCalendar.setTimeInMillis(System.currentTimeMillis());
+		updateYearWeekDates();
+		setVisible(true);
+		setLocation(main.getLocation());
+	}
+
 	/**
 	 * Set calendar to this week's Monday; set year and week combo boxes to the
 	 * currently set date; set the date labels appropriately; and, refresh the
@@ -321,172 +563,52 @@ class ReviewDialog extends JDialog implements CaretListener {
 	}
 
 	/**
-	 * This function is used to re-run the analyser, and re-create the rows
-	 * corresponding the its results.
-	 */
-	private void refreshReviewTable() {
-		reviewPanel.removeAll();
-		rows.clear();
-		GridBagLayout gbl = new GridBagLayout();
-		reviewPanel.setLayout(gbl);
-		GridBagConstraints gbc = new GridBagConstraints();
-		gbc.fill = GridBagConstraints.HORIZONTAL;
-		gbc.gridy = 0;
-		try {
-			Map<String, Long> sums = analyser.processLogFile(config.getLogFilename(), fromDate.getDate(), toDate.getDate());
-			for (Entry<String, Long> entry : sums.entrySet()) {
-				String project = entry.getKey();
-				double hours = 1.0 * entry.getValue() / (1000 * 3600);
-				addRow(gbl, gbc, project, hours);
-			}
-			for (String project : main.getProjectsTree().getTopLevelProjects())
-				if (!rows.containsKey(project))
-					addRow(gbl, gbc, project, 0);
-			gbc.insets = new Insets(10, 0, 0, 0);
-			addLeftLabel(gbl, gbc, "TOTAL");
-			gbc.gridx = 1;
-			gbc.weightx = 1;
-			totalLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 3));
-			gbl.setConstraints(totalLabel, gbc);
-			reviewPanel.add(totalLabel);
-			gbc.weightx = 0;
-			addRightLabel(gbl, gbc);
-		} catch (IOException e) {e.printStackTrace();}
-		recomputeTotal();
-		pack();
-	}
-
-	/**
-	 * Adds a single row to the {@link #reviewPanel}.
-	 *
-	 * @param gbl
-	 *            The layout to add the row to.
-	 * @param gbc
-	 *            The layout constraints to use.
-	 * @param title
-	 *            The title of the top-level project.
-	 * @param hours
-	 *            The amount of hours spent on the project.
-	 */
-	private void addRow(GridBagLayout gbl, GridBagConstraints gbc, String title, double hours) {
-		Row row = new Row();
-		addLeftLabel(gbl, gbc, title);
-		addMiddleField(gbl, gbc, row, hours);
-		addRightLabel(gbl, gbc);
-		addPercentLabel(gbl, gbc, row);
-		rows.put(title, row);
-		gbc.gridy++;
-	}
-
-	/**
-	 * Adds the description part of a row.
-	 *
-	 * @param gbl
-	 *            The layout to add the label to.
-	 * @param gbc
-	 *            The layout constraints to use.
-	 * @param title
-	 *            The title of the top-level project.
+	 * Creates the review table, which renders the hours and percentages with
+	 * two decimals, and only accepts numbers as hours.
 	 *
-	 * @see {@link #addRow(GridBagLayout, GridBagConstraints, String, double)}
+	 * @return The review table.
 	 */
-	private void addLeftLabel(GridBagLayout gbl, GridBagConstraints gbc, String title) {
-		JLabel projectLabel = new JLabel(title + ": ", SwingConstants.RIGHT);
-		gbc.gridx = 0;
-		gbl.setConstraints(projectLabel, gbc);
-		reviewPanel.add(projectLabel);
+	private JTable createReviewTable() {
+		JTable table = new JTable(tableModel);
+		DefaultTableCellRenderer hoursRenderer = new DefaultTableCellRenderer() {
+			@Override
+			protected void setValue(Object value) {
+				setText(value == null ? "" : decimalFormat.format(value) + " h");
+			}
+		};
+		hoursRenderer.setHorizontalAlignment(SwingConstants.RIGHT);
+		DefaultTableCellRenderer percentRenderer = new DefaultTableCellRenderer() {
+			@Override
+			protected void setValue(Object value) {
+				setText(value == null ? "" : "(" + decimalFormat.format(value) + "%)");
+			}
+		};
+		percentRenderer.setHorizontalAlignment(SwingConstants.RIGHT);
+		table.getColumnModel().getColumn(ReviewTableModel.HOURS_COLUMN).setCellRenderer(hoursRenderer);
+		table.getColumnModel().getColumn(ReviewTableModel.PERCENT_COLUMN).setCellRenderer(percentRenderer);
+		table.setPreferredScrollableViewportSize(new Dimension(300, 200));
+		table.putClientProperty("terminateEditOnFocusLost", Boolean.TRUE);
+		return table;
 	}
 
 	/**
-	 * Adds an editable text field containing the hours spent on a project.
-	 *
-	 * @param gbl
-	 *            The layout to add the text field to.
-	 * @param gbc
-	 *            The layout constraints to use.
-	 * @param row
-	 *            The row to link against.
-	 * @param hours
-	 *            The number of hours spent on the project.
-	 *
-	 * @see {@link #addRow(GridBagLayout, GridBagConstraints, String, double)}
+	 * This function is used to bring the index up to date, and replace the
+	 * rows of the review table with the results for the selected period.
 	 */
-	private void addMiddleField(GridBagLayout gbl, GridBagConstraints gbc, Row row, double hours) {
-		row.hoursTF.setText(decimalFormat.format(hours));
-		gbc.gridx = 1;
-		gbc.weightx = 1;
-		gbl.setConstraints(row.hoursTF, gbc);
-		gbc.weightx = 0;
-		reviewPanel.add(row.hoursTF);
-	}
-
-	/**
-	 * Adds a simple 'h' to show that the time period is specified in hours.
-	 *
-	 * @param gbl
-	 *            The layout to add the label to.
-	 * @param gbc
-	 *            The layout constraints to use.
-	 *
-	 * @see {@link #addRow(GridBagLayout, GridBagConstraints, String, double)}
-	 */
-	private void addRightLabel(GridBagLayout gbl, GridBagConstraints gbc) {
-		JLabel hLabel = new JLabel("h", SwingConstants.CENTER);
-		gbc.gridx = 2;
-		gbc.ipadx = 5;
-		gbl.setConstraints(hLabel, gbc);
-		gbc.ipadx = 0;
-		reviewPanel.add(hLabel);
-	}
-
-	/**
-	 * Adds a label that shows the percentage of hours spent on a particular
-	 * project.
-	 *
-	 * @param gbl
-	 *            The layout to add the label to.
-	 * @param gbc
-	 *            The layout constraints to use.
-	 * @param row
-	 *            The row to link against.
-	 *
-	 * @see {@link #addRow(GridBagLayout, GridBagConstraints, String, double)}
-	 */
-	private void addPercentLabel(GridBagLayout gbl, GridBagConstraints gbc, Row row) {
-		gbc.gridx = 3;
-		gbc.ipadx = 5;
-		gbl.setConstraints(row.percentL, gbc);
-		gbc.ipadx = 0;
-		reviewPanel.add(row.percentL);
-	}
-
-	/**
-	 * This function re-computes the total number of hours for the selected
-	 * period. It is ran every time the user edits a text field specifying the
-	 * number of hours for a particular top-level project. Percentage labels are
-	 * also updated.
-	 */
-	private void recomputeTotal() {
-		double total = 0;
-		for (Row row : rows.values()) {
-			try {
-				row.hours = Double.parseDouble(row.hoursTF.getText());
-				total += row.hours;
-				row.hoursTF.setForeground(normalColour);
-			} catch (NumberFormatException e) {
-				row.hoursTF.setForeground(errorColour);
-				totalLabel.setText("ERROR");
-				totalLabel.setForeground(errorColour);
-				return;
-			}
-		}
-		totalLabel.setText(decimalFormat.format(total));
-		totalLabel.setForeground(normalColour);
-		for (Row row : rows.values()) {
-			String percentS = decimalFormat.format(total == 0 ? 0 : 100 * row.hours / total);
-			row.percentL.setText("(" + percentS + "%)");
-		}
+	private void refreshReviewTable() {
+		long refreshStart = System.nanoTime();
+		if (reviewTable.isEditing())
+			reviewTable.getCellEditor().cancelCellEditing();
+		try {
+			index.refresh();
+			Map<String, Long> sums = index.query(fromDate.getDate(), toDate.getDate(), null, null, false);
+			tableModel.setResults(sums, main.getProjectsTree().getTopLevelProjects());
+		} catch (IOException e) {e.printStackTrace();}
+		long malformedLines = index.getMalformedLines();
+		quarantineButton.setText("SKIPPED " + malformedLines + " MALFORMED LOG " + (malformedLines == 1 ? "LINE" : "LINES"));
+		quarantineButton.setVisible(malformedLines > 0);
 		pack();
+		Metrics.INSTANCE.recordReviewRefresh(refreshStart);
 	}
 
 	/**
@@ -504,10 +626,11 @@ class ReviewDialog extends JDialog implements CaretListener {
 			public void actionPerformed(ActionEvent e) {
 				try {
 					checkTotal();
-					fileChooser.setSelectedFile(new File(getDefaultFilename()));
-					int returnValue = fileChooser.showDialog(ReviewDialog.this, "Save");
+					JFileChooser chooser = getFileChooser();
+					chooser.setSelectedFile(new File(getDefaultFilename()));
+					int returnValue = chooser.showDialog(ReviewDialog.this, "Save");
 					if (returnValue != JFileChooser.APPROVE_OPTION) return;
-					writeToFile(fileChooser.getSelectedFile());
+					writeToFile(chooser.getSelectedFile());
 					ReviewDialog.this.setVisible(false);
 				} catch (Exception ex) {
 					JOptionPane.showMessageDialog(ReviewDialog.this,
@@ -559,18 +682,17 @@ class ReviewDialog extends JDialog implements CaretListener {
 	}
 
 	private String generateOverviewText() throws InsufficientDataException {
-		StringBuilder sb = new StringBuilder();
-		final String team = config.getTeam();
-		double total = checkTotal();
-		final String nl = System.getProperty("line.separator");
-		for (Entry<String, Row> entry : rows.entrySet()) {
-			double hours = Double.parseDouble(entry.getValue().hoursTF.getText());
-			double fraction = hours / total;
-			if (fraction < 0.004) continue;
-			String line = team + ", " + decimalFormat.format(fraction) + ", " + entry.getKey();
-			sb.append(line + nl);
+		checkTotal();
+		List<String> projects = new ArrayList<String>();
+		List<Double> hours = new ArrayList<Double>();
+		for (int row = 0; row < tableModel.getRowCount(); row++) {
+			projects.add(tableModel.getProject(row));
+			hours.add(tableModel.getHours(row));
 		}
-		return sb.toString();
+		String overview = BatchExporter.generateOverviewText(config.getTeam(), projects, hours);
+		if (overview == null)
+			throw new InsufficientDataException("Cannot submit data with no logged hours.");
+		return overview;
 	}
 
 	/**
@@ -584,12 +706,114 @@ class ReviewDialog extends JDialog implements CaretListener {
 	 *             Thrown if unable to generate the overview.
 	 */
 	public void writeToFile(File f) throws IOException, InsufficientDataException {
+		String overview = generateOverviewText();
 		f.createNewFile();
 		FileWriter fw = new FileWriter(f);
-		fw.write(generateOverviewText());
+		fw.write(overview);
 		fw.close();
 	}
 
+	/**
+	 * The function creates a button, which asks for a directory, and writes
+	 * the timesheets of all the weeks of the selected year into it (see
+	 * {@link BatchExporter}). If no year is selected, the year of the 'from'
+	 * date is used. The export runs in the background.
+	 *
+	 * @return The 'export year' button.
+	 */
+	private JButton createExportYearButton() {
+		JButton b = new JButton("EXPORT ALL WEEKS OF YEAR");
+		b.setBackground(Color.BLACK);
+		b.setForeground(Color.GRAY);
+		b.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				final File directory;
+				try {
+					JFileChooser chooser = getFileChooser();
+					chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+					try {
+						if (chooser.showDialog(ReviewDialog.this, "Export") != JFileChooser.APPROVE_OPTION) return;
+					} finally {
+						chooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+					}
+					directory = chooser.getSelectedFile();
+				} catch (Exception ex) {
+					JOptionPane.showMessageDialog(ReviewDialog.this, ex.getMessage(), "Error occurred", JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				final int year = yearCB.getSelectedIndex() == 0
+						? BatchExporter.getWeekBasedYear(fromDate.getDate().getTime())
+						: (Integer) yearCB.getSelectedItem();
+				new SwingWorker<Integer, Void>() {
+					@Override
+					protected Integer doInBackground() throws Exception {
+						long from = BatchExporter.getWeekStart(new GregorianCalendar(year, Calendar.JANUARY, 4).getTimeInMillis());
+						long to = BatchExporter.getWeekStart(new GregorianCalendar(year + 1, Calendar.JANUARY, 4).getTimeInMillis());
+						return BatchExporter.export(config.getLogFilename(), new LogFilter(from, to, null), config.getTeam(), directory);
+					}
+
+					@Override
+					protected void done() {
+						try {
+							JOptionPane.showMessageDialog(ReviewDialog.this, "Wrote " + get() + " timesheets for " + year + " into " + directory + ".");
+						} catch (Exception ex) {
+							JOptionPane.showMessageDialog(ReviewDialog.this, ex.getMessage(), "Error occurred", JOptionPane.ERROR_MESSAGE);
+						}
+					}
+				}.execute();
+			}
+		});
+		return b;
+	}
+
+	/**
+	 * The function creates a button, which shows the report of the log lines
+	 * that could not be parsed, with their line numbers and byte offsets.
+	 *
+	 * @return The quarantine button.
+	 */
+	private JButton createQuarantineButton() {
+		JButton button = new JButton();
+		button.setBackground(Color.BLACK);
+		button.setForeground(Color.RED);
+		button.setVisible(false);
+		button.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JTextArea report = new JTextArea(index.getQuarantine().getReport(), 15, 80);
+				report.setEditable(false);
+				JOptionPane.showMessageDialog(ReviewDialog.this, new JScrollPane(report),
+						"Malformed log lines", JOptionPane.WARNING_MESSAGE);
+			}
+		});
+		return button;
+	}
+
+	/**
+	 * The function creates a button, which shows the distributions of the
+	 * session durations by project path for the selected period: the median,
+	 * the percentiles, and the share of short sessions.
+	 *
+	 * @return The sessions button.
+	 */
+	private JButton createSessionsButton() {
+		JButton button = new JButton("SESSION LENGTHS");
+		button.setBackground(Color.BLACK);
+		button.setForeground(Color.GRAY);
+		button.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JTextArea report = new JTextArea(index.distribution(fromDate.getDate(), toDate.getDate()).getReport(), 15, 80);
+				report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, report.getFont().getSize()));
+				report.setEditable(false);
+				JOptionPane.showMessageDialog(ReviewDialog.this, new JScrollPane(report),
+						"Session lengths", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+		return button;
+	}
+
 	private JButton createCopyToClipboardButton() {
 		JButton button = new JButton("COPY TO CLIPBOARD");
 		button.setBackground(Color.BLACK);
@@ -627,14 +851,11 @@ class ReviewDialog extends JDialog implements CaretListener {
 	 *             Thrown if the total is zero.
 	 */
 	private double checkTotal() throws InsufficientDataException {
-		double total = Double.parseDouble(totalLabel.getText());
+		if (reviewTable.isEditing())
+			reviewTable.getCellEditor().stopCellEditing();
+		double total = tableModel.getTotal();
 		if (total == 0)
 			throw new InsufficientDataException("Cannot submit data with no logged hours.");
 		return total;
 	}
-
-	@Override
-	public void caretUpdate(CaretEvent e) {
-		recomputeTotal();
-	}
 }
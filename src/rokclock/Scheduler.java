@@ -0,0 +1,267 @@
+package rokclock;
+
+import java.util.concurrent.*;
+
+/**
+ * The service used for triggering events after specified periods. All timing
+ * is done on a single background thread, and only the final callbacks are
+ * handed over to the callback executor (e.g. the Event Dispatch Thread).
+ * <p>
+ * Deadlines are computed from the monotonic clock ({@link System#nanoTime()}),
+ * anchored to the wall-clock time when the period was scheduled, so they do
+ * not drift regardless of how late the callbacks are run. The two clocks are
+ * compared on every check; if the wall-clock time jumps ahead of the monotonic
+ * clock (e.g. because the system was suspended), the gap is detected, the
+ * period ends as soon as its wall-clock deadline has passed, and the reported
+ * end of the period is capped at the moment the gap started.
+ */
+class Scheduler {
+	/**
+	 * The listener that is notified when a scheduled period ends.
+	 */
+	interface Listener {
+		/**
+		 * This method is called on the callback executor when a scheduled
+		 * period ends.
+		 *
+		 * @param endTime
+		 *            The wall-clock time in milliseconds from epoch at which
+		 *            the period actually ended. This is the deadline, unless a
+		 *            suspend gap started before it.
+		 */
+		void periodEnded(long endTime);
+	}
+
+	/**
+	 * The longest time in milliseconds between two consecutive clock checks.
+	 */
+	private static final long CHECK_MILLIS = 1000;
+	/**
+	 * The minimal difference in milliseconds between the wall-clock time and
+	 * the monotonic clock that is considered a suspend gap.
+	 */
+	private static final long SUSPEND_GAP_MILLIS = 5000;
+	/**
+	 * The single thread on which all the timing is done.
+	 */
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "rokclock-scheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/**
+	 * The executor on which the callbacks are run.
+	 */
+	private final Executor callbackExecutor;
+	/**
+	 * The listener of the currently scheduled period. Null if none.
+	 */
+	private Listener listener;
+	/**
+	 * The length of the currently scheduled period in milliseconds.
+	 */
+	private long period;
+	/**
+	 * The monotonic time (in nanoseconds) at which the current period ends.
+	 */
+	private long deadlineNanos;
+	/**
+	 * The wall-clock time (in milliseconds from epoch) at which the current
+	 * period ends.
+	 */
+	private long deadlineTime;
+	/**
+	 * The monotonic time (in nanoseconds) of the last clock check.
+	 */
+	private long lastCheckNanos;
+	/**
+	 * The wall-clock time (in milliseconds from epoch) of the last clock check.
+	 */
+	private long lastCheckTime;
+	/**
+	 * The wall-clock time at which a detected suspend gap started. Zero if no
+	 * gap has been detected within the current period.
+	 */
+	private long gapStartTime;
+	/**
+	 * The generation of the scheduled period; incremented whenever the period
+	 * is re-scheduled or cancelled, so that stale checks and callbacks can be
+	 * recognised and ignored.
+	 */
+	private long generation = 0;
+	/**
+	 * The next scheduled clock check. Can be null.
+	 */
+	private ScheduledFuture<?> nextCheck;
+
+	/**
+	 * Creates a scheduler that runs its callbacks on the specified executor.
+	 *
+	 * @param callbackExecutor
+	 *            The executor to run the callbacks on.
+	 */
+	Scheduler(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * (Re-)schedules a repeating period of the specified length. Any previously
+	 * scheduled period is cancelled. Consecutive periods are anchored to the
+	 * same starting point, so they do not accumulate drift; after a suspend
+	 * gap, the next period starts afresh.
+	 *
+	 * @param periodInMillis
+	 *            The length of the period in milliseconds.
+	 * @param listener
+	 *            The listener to notify whenever the period ends.
+	 */
+	synchronized void schedule(long periodInMillis, Listener listener) {
+		cancel();
+		this.listener = listener;
+		period = periodInMillis;
+		lastCheckNanos = System.nanoTime();
+		lastCheckTime = System.currentTimeMillis();
+		startPeriod(lastCheckNanos, lastCheckTime);
+	}
+
+	/**
+	 * Cancels the currently scheduled period. Nothing happens if no period is
+	 * scheduled.
+	 */
+	synchronized void cancel() {
+		generation++;
+		listener = null;
+		if (nextCheck != null) {
+			nextCheck.cancel(false);
+			nextCheck = null;
+		}
+	}
+
+	/**
+	 * Runs the specified task on the callback executor after the specified
+	 * delay. No new thread is created for this.
+	 *
+	 * @param delayInMillis
+	 *            The delay in milliseconds.
+	 * @param task
+	 *            The task to run.
+	 */
+	void runLater(long delayInMillis, final Runnable task) {
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				callbackExecutor.execute(task);
+			}
+		}, delayInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the specified task repeatedly on the scheduler's own thread, with
+	 * the specified delay between consecutive runs. The task should be short,
+	 * as it delays any other timing.
+	 *
+	 * @param delayInMillis
+	 *            The delay between runs in milliseconds.
+	 * @param task
+	 *            The task to run.
+	 */
+	void repeat(long delayInMillis, Runnable task) {
+		executor.scheduleWithFixedDelay(task, delayInMillis, delayInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts a new period at the specified point in time.
+	 *
+	 * @param startNanos
+	 *            The monotonic time of the start.
+	 * @param startTime
+	 *            The wall-clock time of the start.
+	 */
+	private void startPeriod(long startNanos, long startTime) {
+		deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(period);
+		deadlineTime = startTime + period;
+		gapStartTime = 0;
+		scheduleCheck(generation);
+	}
+
+	/**
+	 * Schedules the next clock check, either at the deadline, or after
+	 * {@link #CHECK_MILLIS}, whichever comes first.
+	 *
+	 * @param checkGeneration
+	 *            The generation the check belongs to.
+	 */
+	private void scheduleCheck(final long checkGeneration) {
+		long remaining = deadlineNanos - System.nanoTime();
+		long delay = Math.max(0, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CHECK_MILLIS)));
+		nextCheck = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				check(checkGeneration);
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Compares the clocks, detects suspend gaps, and ends the period if its
+	 * deadline has been reached. The next period is started before the end of
+	 * this one is reported, and the report is made without holding the lock,
+	 * so the callback can safely re-schedule or cancel the period (which makes
+	 * the next check stale), even on a synchronous callback executor.
+	 *
+	 * @param checkGeneration
+	 *            The generation the check belongs to.
+	 */
+	private void check(long checkGeneration) {
+		Listener firedListener;
+		long endTime;
+		synchronized (this) {
+			if (checkGeneration != generation || listener == null) return;
+			long nowNanos = System.nanoTime();
+			long now = System.currentTimeMillis();
+			long expectedNow = lastCheckTime + TimeUnit.NANOSECONDS.toMillis(nowNanos - lastCheckNanos);
+			if (now - expectedNow > SUSPEND_GAP_MILLIS && gapStartTime == 0)
+				gapStartTime = lastCheckTime;
+			lastCheckNanos = nowNanos;
+			lastCheckTime = now;
+			boolean monotonicDeadline = nowNanos - deadlineNanos >= 0;
+			boolean wallDeadline = gapStartTime != 0 && now >= deadlineTime;
+			if (!monotonicDeadline && !wallDeadline) {
+				scheduleCheck(checkGeneration);
+				return;
+			}
+			firedListener = listener;
+			endTime = gapStartTime != 0 ? Math.min(deadlineTime, gapStartTime) : deadlineTime;
+			if (gapStartTime != 0 || wallDeadline) startPeriod(nowNanos, now);
+			else startPeriod(deadlineNanos, deadlineTime);
+		}
+		fire(checkGeneration, firedListener, endTime);
+	}
+
+	/**
+	 * Hands the end of a period over to the callback executor. The listener is
+	 * only notified if the period has not been re-scheduled or cancelled in the
+	 * meantime.
+	 *
+	 * @param firedGeneration
+	 *            The generation of the ended period.
+	 * @param firedListener
+	 *            The listener to notify.
+	 * @param endTime
+	 *            The wall-clock time at which the period ended.
+	 */
+	private void fire(final long firedGeneration, final Listener firedListener, final long endTime) {
+		callbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Scheduler.this) {
+					if (firedGeneration != generation) return;
+				}
+				firedListener.periodEnded(endTime);
+			}
+		});
+	}
+}
@@ -0,0 +1,864 @@
+package rokclock;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.out;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+import rokclock.Config.LogCompression;
+import rokclock.Config.LogSegmentation;
+
+/**
+ * A log that is split into segments, stored in a directory next to where the
+ * single log file would be (e.g. "log.txt.segments"). A new segment is started
+ * either for every month, or once the current segment reaches a certain size.
+ * The directory contains a small manifest, which records the earliest start
+ * time, the latest end time, the number of entries and the size of every
+ * segment, so that readers can skip the segments outside of the time period
+ * they are interested in.
+ * <p>
+ * The manifest has a line per segment in the format:
+ *
+ * <pre>
+ * &lt;name&gt;,&lt;min-start-millis&gt;,&lt;max-end-millis&gt;,&lt;entry-count&gt;,&lt;bytes&gt;
+ * </pre>
+ *
+ * Closed segments (see {@link #isClosed(Segment)}) can be compressed with gzip
+ * or deflate; their names then get the suffix ".gz" or ".deflate",
+ * respectively, and they are decompressed on the fly when read.
+ * <p>
+ * The manifest is the commit point of appended entries: readers only read as
+ * many bytes of a segment as the manifest records, and bytes found past that
+ * (e.g. after a crash between writing the entries and the manifest) are
+ * recorded in the manifest before the next append, or cut off if they end
+ * with a partial line.
+ * <p>
+ * The single log file can still contain entries that are not in the
+ * segments: its history if segmentation was enabled without migrating it, or
+ * entries appended after the migration while segmentation was disabled. The
+ * manifest therefore also has a line "@residual,&lt;offset&gt;", which records
+ * from which offset the log file belongs to the log as well; the migration
+ * tool sets it to the migrated length, and a log created by appending sets it
+ * to 0. Manifests written before this line existed do not have it, and the
+ * log file is then ignored, as before.
+ */
+class SegmentedLog {
+	/**
+	 * The metadata of a single segment.
+	 */
+	static class Segment {
+		/**
+		 * The name of the segment's file within the segments' directory.
+		 */
+		String name;
+		/**
+		 * The earliest start time of any entry, in milliseconds from epoch.
+		 */
+		long minStart = Long.MAX_VALUE;
+		/**
+		 * The latest end time of any entry, in milliseconds from epoch.
+		 */
+		long maxEnd = Long.MIN_VALUE;
+		/**
+		 * The number of entries.
+		 */
+		long count = 0;
+		/**
+		 * The size of the segment in bytes.
+		 */
+		long bytes = 0;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param name
+		 *            The name of the segment's file.
+		 */
+		Segment(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records the metadata of a newly added entry.
+		 *
+		 * @param startTime
+		 *            The start time of the entry.
+		 * @param endTime
+		 *            The end time of the entry.
+		 * @param size
+		 *            The size of the entry in bytes.
+		 */
+		void record(long startTime, long endTime, long size) {
+			minStart = Math.min(minStart, startTime);
+			maxEnd = Math.max(maxEnd, endTime);
+			count++;
+			bytes += size;
+		}
+
+		/**
+		 * Checks whether this segment is compressed.
+		 *
+		 * @return True if compressed.
+		 */
+		boolean isCompressed() {
+			return name.endsWith(GZIP_SUFFIX) || name.endsWith(DEFLATE_SUFFIX);
+		}
+
+		/**
+		 * Checks whether any entry of this segment can overlap with the
+		 * specified time period.
+		 *
+		 * @param fromDate
+		 *            The start of the period (inclusive). Can be null.
+		 * @param toDate
+		 *            The end of the period (exclusive). Can be null.
+		 * @return True if the segment needs to be read.
+		 */
+		boolean overlaps(Date fromDate, Date toDate) {
+			if (count == 0) return false;
+			if (fromDate != null && maxEnd < fromDate.getTime()) return false;
+			if (toDate != null && minStart >= toDate.getTime()) return false;
+			return true;
+		}
+	}
+
+	/**
+	 * The name of the manifest file within the segments' directory.
+	 */
+	private static final String MANIFEST = "manifest.txt";
+	/**
+	 * The name of the manifest line recording the residual offset of the log
+	 * file.
+	 */
+	private static final String RESIDUAL = "@residual";
+	/**
+	 * The names of monthly segments; the first group is the month.
+	 */
+	private static final Pattern MONTHLY_NAME = Pattern.compile("(\\d{4}-\\d{2})(\\.\\d+)?\\.txt(\\.gz|\\.deflate)?");
+	/**
+	 * The suffix of segments compressed with gzip.
+	 */
+	private static final String GZIP_SUFFIX = ".gz";
+	/**
+	 * The suffix of segments compressed with deflate.
+	 */
+	private static final String DEFLATE_SUFFIX = ".deflate";
+	/**
+	 * The single background thread that compresses closed segments.
+	 */
+	private static final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "log-compressor");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/**
+	 * A platform-independent newline.
+	 */
+	private static final String nl = System.getProperty("line.separator");
+	/**
+	 * The segments' directory.
+	 */
+	private final File directory;
+	/**
+	 * The segments, in the order in which they were created.
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/**
+	 * The date format used for naming monthly segments.
+	 */
+	private final DateFormat monthFormat = new SimpleDateFormat("yyyy-MM");
+	/**
+	 * The offset from which the log file belongs to the log, or -1 if the log
+	 * file is ignored.
+	 */
+	private long residualStart = -1;
+
+	/**
+	 * Opens the segmented log that corresponds to the specified log filename.
+	 * The manifest is read if it exists.
+	 *
+	 * @param logFilename
+	 *            The name of the (single) log file.
+	 * @throws IOException
+	 *             Thrown if the manifest cannot be read.
+	 */
+	SegmentedLog(String logFilename) throws IOException {
+		directory = getDirectory(logFilename);
+		loadManifest();
+	}
+
+	/**
+	 * Obtains the segments' directory for the specified log filename.
+	 *
+	 * @param logFilename
+	 *            The name of the (single) log file.
+	 * @return The segments' directory.
+	 */
+	static File getDirectory(String logFilename) {
+		return new File(logFilename + ".segments");
+	}
+
+	/**
+	 * Checks whether a segmented log exists for the specified log filename.
+	 *
+	 * @param logFilename
+	 *            The name of the (single) log file.
+	 * @return True if the segments' manifest exists.
+	 */
+	static boolean exists(String logFilename) {
+		return new File(getDirectory(logFilename), MANIFEST).exists();
+	}
+
+	/**
+	 * Obtains the file of the specified segment.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return The segment's file.
+	 */
+	File getFile(Segment segment) {
+		return new File(directory, segment.name);
+	}
+
+	/**
+	 * Obtains the offset from which the single log file also belongs to the
+	 * log, i.e. contains entries that are not in the segments.
+	 *
+	 * @return The offset, or -1 if the log file should be ignored.
+	 */
+	synchronized long getResidualStart() {
+		return residualStart;
+	}
+
+	/**
+	 * Opens a stream of the uncompressed bytes of the specified segment,
+	 * decompressing it on the fly if it is compressed. If the segment's file
+	 * has been compressed (by another process) since the manifest was read,
+	 * the compressed file is read instead. Only as many bytes as the manifest
+	 * records are read.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return The stream.
+	 * @throws IOException
+	 *             Thrown if the segment cannot be opened.
+	 */
+	InputStream openStream(Segment segment) throws IOException {
+		File file = getFile(segment);
+		if (!file.exists() && !segment.isCompressed())
+			for (String suffix : new String[] {GZIP_SUFFIX, DEFLATE_SUFFIX})
+				if (new File(file.getPath() + suffix).exists())
+					file = new File(file.getPath() + suffix);
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		if (file.getName().endsWith(GZIP_SUFFIX))
+			in = new GZIPInputStream(in, 1 << 16);
+		else if (file.getName().endsWith(DEFLATE_SUFFIX))
+			in = new InflaterInputStream(in, new Inflater(), 1 << 16);
+		return new LimitedInputStream(in, segment.bytes);
+	}
+
+	/**
+	 * Opens a reader for the specified segment (see
+	 * {@link #openStream(Segment)}).
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return The reader.
+	 * @throws IOException
+	 *             Thrown if the segment cannot be opened.
+	 */
+	BufferedReader openReader(Segment segment) throws IOException {
+		return new BufferedReader(new InputStreamReader(openStream(segment)));
+	}
+
+	/**
+	 * A stream that ends after a limited number of bytes of another stream.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		/**
+		 * The number of bytes that can still be read.
+		 */
+		private long remaining;
+
+		/**
+		 * A simple constructor.
+		 *
+		 * @param in
+		 *            The underlying stream.
+		 * @param limit
+		 *            The number of bytes that can be read.
+		 */
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b != -1) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Compresses all the closed segments that are not compressed yet on a
+	 * background thread.
+	 *
+	 * @param compression
+	 *            The compression to use.
+	 */
+	void compressInBackground(final LogCompression compression) {
+		if (compression == null || compression == LogCompression.NONE) return;
+		compressor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {compressClosedSegments(compression);}
+				catch (IOException e) {
+					err.println("Could not compress the log segments.");
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compresses all the closed segments that are not compressed yet. The
+	 * compressed file is written next to the original; the manifest is only
+	 * updated (and the original deleted) if no entry was appended to the
+	 * segment in the meantime.
+	 *
+	 * @param compression
+	 *            The compression to use.
+	 * @return The number of compressed segments.
+	 * @throws IOException
+	 *             Thrown if compression fails.
+	 */
+	int compressClosedSegments(LogCompression compression) throws IOException {
+		String suffix = compression == LogCompression.GZIP ? GZIP_SUFFIX : DEFLATE_SUFFIX;
+		List<Segment> closed = new ArrayList<Segment>();
+		synchronized (this) {
+			for (Segment segment : segments)
+				if (!segment.isCompressed() && isClosed(segment))
+					closed.add(segment);
+		}
+		int compressed = 0;
+		for (Segment segment : closed) {
+			long bytes;
+			synchronized (this) {bytes = segment.bytes;}
+			File original = getFile(segment);
+			File target = new File(original.getPath() + suffix);
+			compress(original, target, compression);
+			synchronized (this) {
+				if (segment.bytes != bytes) {
+					target.delete(); // appended to in the meantime
+					continue;
+				}
+				segment.name = target.getName();
+				saveManifest();
+			}
+			if (!original.delete())
+				err.println("Could not delete the compressed segment " + original);
+			compressed++;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Compresses a single file.
+	 *
+	 * @param source
+	 *            The file to compress.
+	 * @param target
+	 *            The compressed file.
+	 * @param compression
+	 *            The compression to use.
+	 * @throws IOException
+	 *             Thrown if compression fails.
+	 */
+	private static void compress(File source, File target, LogCompression compression) throws IOException {
+		InputStream in = new FileInputStream(source);
+		FileOutputStream fos = new FileOutputStream(target);
+		try {
+			DeflaterOutputStream out = compression == LogCompression.GZIP
+				? new GZIPOutputStream(fos, 1 << 16)
+				: new DeflaterOutputStream(fos, new Deflater(Deflater.BEST_COMPRESSION), 1 << 16);
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			out.finish();
+			fos.getFD().sync();
+		} finally {
+			in.close();
+			fos.close();
+		}
+	}
+
+	/**
+	 * Checks whether a segment is closed, i.e. entries are no longer expected
+	 * to be appended to it. A monthly segment is closed once its month is
+	 * over, even if a segment for an earlier month was created after it (for
+	 * a late entry), so that the segment of the current month is never
+	 * compressed; any other segment is closed once it is not the most
+	 * recently created one.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @return True if the segment is closed.
+	 */
+	synchronized boolean isClosed(Segment segment) {
+		Matcher m = MONTHLY_NAME.matcher(segment.name);
+		if (m.matches())
+			return m.group(1).compareTo(monthFormat.format(new Date())) < 0;
+		return segments.indexOf(segment) < segments.size() - 1;
+	}
+
+	/**
+	 * Obtains the segments that can contain entries overlapping with the
+	 * specified time period.
+	 *
+	 * @param fromDate
+	 *            The start of the period (inclusive). Can be null.
+	 * @param toDate
+	 *            The end of the period (exclusive). Can be null.
+	 * @return The list of segments.
+	 */
+	synchronized List<Segment> getSegments(Date fromDate, Date toDate) {
+		List<Segment> result = new ArrayList<Segment>();
+		for (Segment segment : segments)
+			if (segment.overlaps(fromDate, toDate))
+				result.add(segment);
+		return result;
+	}
+
+	/**
+	 * Appends a single entry to the appropriate segment, and updates the
+	 * manifest.
+	 *
+	 * @param entry
+	 *            The log entry (without a newline).
+	 * @param startTime
+	 *            The start time of the entry in milliseconds from epoch.
+	 * @param endTime
+	 *            The end time of the entry in milliseconds from epoch.
+	 * @param segmentation
+	 *            The option for choosing the segment.
+	 * @param maxBytes
+	 *            The maximal segment size, used when splitting by size.
+	 * @return True if a new segment was started, i.e. the previous one was
+	 *         closed.
+	 * @throws IOException
+	 *             Thrown if the entry or the manifest cannot be written.
+	 */
+	synchronized boolean append(String entry, long startTime, long endTime,
+			LogSegmentation segmentation, long maxBytes) throws IOException {
+		return appendAll(Collections.singletonList(entry), Collections.singletonList(new long[] {startTime, endTime}),
+				segmentation, maxBytes);
+	}
+
+	/**
+	 * Appends a group of entries, forces them to the disk, and updates the
+	 * manifest once for the whole group. Each affected segment is opened,
+	 * written and synced only once. If writing the entries or the manifest
+	 * fails, the segments and their metadata are restored as they were, so
+	 * none of the entries are committed.
+	 *
+	 * @param entries
+	 *            The log entries (without newlines).
+	 * @param times
+	 *            The start and the end time of every entry, in milliseconds
+	 *            from epoch.
+	 * @param segmentation
+	 *            The option for choosing the segment.
+	 * @param maxBytes
+	 *            The maximal segment size, used when splitting by size.
+	 * @return True if a new segment was started, i.e. the previous one was
+	 *         closed.
+	 * @throws IOException
+	 *             Thrown if the entries or the manifest cannot be written.
+	 */
+	synchronized boolean appendAll(List<String> entries, List<long[]> times,
+			LogSegmentation segmentation, long maxBytes) throws IOException {
+		int segmentCount = segments.size();
+		Map<Segment, ByteArrayOutputStream> buffers = new LinkedHashMap<Segment, ByteArrayOutputStream>();
+		Map<Segment, long[]> committed = new HashMap<Segment, long[]>();
+		boolean written = false;
+		try {
+			for (int i = 0; i < entries.size(); i++) {
+				byte[] bytes = (entries.get(i) + nl).getBytes();
+				long[] t = times.get(i);
+				Segment segment = getSegmentFor(t[0], bytes.length, segmentation, maxBytes);
+				ByteArrayOutputStream buffer = buffers.get(segment);
+				if (buffer == null) {
+					recoverUncommitted(segment);
+					committed.put(segment, new long[] {segment.minStart, segment.maxEnd, segment.count, segment.bytes});
+					buffers.put(segment, buffer = new ByteArrayOutputStream());
+				}
+				buffer.write(bytes);
+				segment.record(t[0], t[1], bytes.length);
+			}
+			for (Map.Entry<Segment, ByteArrayOutputStream> entry : buffers.entrySet()) {
+				FileOutputStream fos = new FileOutputStream(getFile(entry.getKey()), true);
+				try {
+					entry.getValue().writeTo(fos);
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+			}
+			saveManifest();
+			written = true;
+		} finally {
+			if (!written) {
+				// restore the segments and their metadata
+				for (Map.Entry<Segment, long[]> entry : committed.entrySet()) {
+					Segment segment = entry.getKey();
+					long[] m = entry.getValue();
+					segment.minStart = m[0];
+					segment.maxEnd = m[1];
+					segment.count = m[2];
+					segment.bytes = m[3];
+					truncate(getFile(segment), segment.bytes);
+				}
+				for (Segment segment : segments.subList(segmentCount, segments.size()))
+					getFile(segment).delete();
+				segments.subList(segmentCount, segments.size()).clear();
+			}
+		}
+		return segments.size() != segmentCount;
+	}
+
+	/**
+	 * Truncates a file, if it is longer than the specified length. Failures
+	 * are only reported, as this is used for cleaning up after a failure.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param length
+	 *            The length.
+	 */
+	private static void truncate(File file, long length) {
+		if (!file.exists() || file.length() <= length) return;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {raf.setLength(length);}
+			finally {raf.close();}
+		} catch (IOException e) {
+			err.println("Could not truncate " + file + " to " + length + " bytes.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records the complete lines found in an uncompressed segment past the
+	 * bytes recorded in the manifest, e.g. after a crash between writing them
+	 * and writing the manifest, or after another process appended to the
+	 * segment. A partial line at the end is cut off, so that the next entry
+	 * starts on a new line.
+	 *
+	 * @param segment
+	 *            The segment.
+	 * @throws IOException
+	 *             Thrown if the segment cannot be read or truncated.
+	 */
+	private void recoverUncommitted(Segment segment) throws IOException {
+		if (segment.isCompressed()) return;
+		File file = getFile(segment);
+		if (file.length() <= segment.bytes) return;
+		DateFormat df = new SimpleDateFormat(Config.dfS);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(segment.bytes);
+			InputStream in = new BufferedInputStream(new FileInputStream(raf.getFD()), 1 << 16);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1) {
+				line.write(b);
+				if (b != '\n') continue;
+				long[] t = parseTimes(line.toString().trim(), df);
+				if (t != null) segment.record(t[0], t[1], line.size());
+				else segment.bytes += line.size();
+				line.reset();
+			}
+			if (line.size() > 0)
+				raf.setLength(segment.bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Obtains the segment to which an entry should be appended, creating a new
+	 * one if necessary.
+	 *
+	 * @param startTime
+	 *            The start time of the entry.
+	 * @param size
+	 *            The size of the entry in bytes.
+	 * @param segmentation
+	 *            The option for choosing the segment.
+	 * @param maxBytes
+	 *            The maximal segment size, used when splitting by size.
+	 * @return The segment.
+	 * @throws IOException
+	 *             Thrown if the segments' directory cannot be created.
+	 */
+	private Segment getSegmentFor(long startTime, long size,
+			LogSegmentation segmentation, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		String name;
+		if (segmentation == LogSegmentation.MONTHLY) {
+			String month = monthFormat.format(new Date(startTime));
+			name = month + ".txt";
+			// the latest uncompressed segment for the month is appended to
+			for (int i = segments.size() - 1; i >= 0; i--) {
+				Segment segment = segments.get(i);
+				Matcher m = MONTHLY_NAME.matcher(segment.name);
+				if (!segment.isCompressed() && m.matches() && m.group(1).equals(month))
+					return segment;
+			}
+			// a compressed segment for the month cannot be appended to
+			for (int i = 2; isTaken(name); i++)
+				name = month + "." + i + ".txt";
+		} else {
+			if (last != null && last.bytes + size <= maxBytes)
+				return last;
+			name = String.format("segment-%06d.txt", segments.size() + 1);
+		}
+		Segment segment = new Segment(name);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Checks whether a segment with the specified name (possibly compressed)
+	 * already exists.
+	 *
+	 * @param name
+	 *            The uncompressed name.
+	 * @return True if the name is taken.
+	 */
+	private boolean isTaken(String name) {
+		for (Segment segment : segments)
+			if (segment.name.equals(name) || segment.name.equals(name + GZIP_SUFFIX)
+					|| segment.name.equals(name + DEFLATE_SUFFIX))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads the manifest, if it exists.
+	 *
+	 * @throws IOException
+	 *             Thrown if the manifest cannot be read or parsed.
+	 */
+	private void loadManifest() throws IOException {
+		File manifestFile = new File(directory, MANIFEST);
+		if (!manifestFile.exists()) {
+			residualStart = 0; // a new log, so all of the log file belongs to it
+			return;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(manifestFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				String[] fields = line.split(",");
+				try {
+					if (fields[0].equals(RESIDUAL)) {
+						residualStart = Long.parseLong(fields[1]);
+						continue;
+					}
+					Segment segment = new Segment(fields[0]);
+					segment.minStart = Long.parseLong(fields[1]);
+					segment.maxEnd = Long.parseLong(fields[2]);
+					segment.count = Long.parseLong(fields[3]);
+					segment.bytes = Long.parseLong(fields[4]);
+					segments.add(segment);
+				} catch (RuntimeException e) {
+					throw new IOException("Corrupt segment manifest line: \"" + line + "\"");
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Writes the manifest atomically.
+	 *
+	 * @throws IOException
+	 *             Thrown if the manifest cannot be written.
+	 */
+	private void saveManifest() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Segment segment : segments)
+			sb.append(segment.name).append(',').append(segment.minStart)
+			.append(',').append(segment.maxEnd).append(',').append(segment.count)
+			.append(',').append(segment.bytes).append(nl);
+		if (residualStart >= 0)
+			sb.append(RESIDUAL).append(',').append(residualStart).append(nl);
+		Main.writeFileAtomically(new File(directory, MANIFEST), sb.toString());
+	}
+
+	/**
+	 * Extracts the start and the end time of a log entry. All the formats
+	 * written by the program are recognised: the current format (optionally
+	 * prefixed with the user's unique identifier) and the old format
+	 * (project,sub-project,from,to).
+	 *
+	 * @param entry
+	 *            The log entry.
+	 * @param df
+	 *            The date format to use; not shared between threads.
+	 * @return The start and the end time in milliseconds from epoch, or null
+	 *         if the entry cannot be parsed.
+	 */
+	static long[] parseTimes(String entry, DateFormat df) {
+		String[] fields = entry.split("\\s*,\\s*", 5);
+		for (int first = 0; first + 1 < fields.length && first <= 2; first++)
+			try {
+				long start = df.parse(fields[first]).getTime();
+				long end = df.parse(fields[first + 1]).getTime();
+				return new long[] {start, end};
+			} catch (ParseException e) {} // try the next position
+		return null;
+	}
+
+	/**
+	 * The migration tool, which splits an existing (single) log file into
+	 * segments. The original log file is left untouched, but only the entries
+	 * appended to it after the migration are read as part of the log. Entries
+	 * that cannot be parsed are kept in the same segment as the previous
+	 * entry. If the
+	 * first argument is "-compress", the closed segments of an existing
+	 * segmented log are compressed instead.
+	 *
+	 * @param args
+	 *            The name of the log file, optionally followed by either
+	 *            "monthly" (default) or the maximal segment size in bytes; or,
+	 *            "-compress", the compression, and the name of the log file.
+	 * @throws Exception
+	 *             Thrown if the migration fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals("-compress")) {
+			compressMain(args[1], args[2]);
+			return;
+		}
+		if (args.length != 1 && args.length != 2) {
+			err.println("Usage: java -cp bin rokclock.SegmentedLog <logFilename> [monthly|<maxBytes>]");
+			err.println("       java -cp bin rokclock.SegmentedLog -compress (gzip|deflate) <logFilename>");
+			exit(1);
+		}
+		String logFilename = args[0];
+		LogSegmentation segmentation = LogSegmentation.MONTHLY;
+		long maxBytes = 0;
+		if (args.length == 2 && !args[1].equalsIgnoreCase("monthly")) {
+			segmentation = LogSegmentation.SIZE;
+			maxBytes = Long.parseLong(args[1]);
+		}
+		if (exists(logFilename)) {
+			err.println("Segments already exist in " + getDirectory(logFilename));
+			exit(1);
+		}
+		SegmentedLog log = new SegmentedLog(logFilename);
+		DateFormat df = new SimpleDateFormat(Config.dfS);
+		Map<Segment, Writer> writers = new HashMap<Segment, Writer>();
+		// a partially written last line is left to the log file
+		long migrated = AnalysisCheckpoint.findLastLineEnd(new File(logFilename));
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				new LimitedInputStream(new FileInputStream(logFilename), migrated)));
+		try {
+			String line;
+			long[] times = {0, 0};
+			while ((line = br.readLine()) != null) {
+				if (line.trim().isEmpty()) continue;
+				long[] parsed = parseTimes(line, df);
+				if (parsed != null) times = parsed;
+				long size = (line + nl).getBytes().length;
+				Segment segment = log.getSegmentFor(times[0], size, segmentation, maxBytes);
+				Writer w = writers.get(segment);
+				if (w == null) {
+					w = new BufferedWriter(new FileWriter(log.getFile(segment), true));
+					writers.put(segment, w);
+				}
+				w.write(line + nl);
+				if (parsed != null) segment.record(times[0], times[1], size);
+				else segment.bytes += size;
+			}
+		} finally {
+			br.close();
+			for (Writer w : writers.values())
+				w.close();
+		}
+		log.residualStart = migrated;
+		log.saveManifest();
+		for (Segment segment : log.segments)
+			out.println(segment.name + ": " + segment.count + " entries, " + segment.bytes + " bytes");
+	}
+
+	/**
+	 * Compresses the closed segments of an existing segmented log.
+	 *
+	 * @param compressionS
+	 *            The name of the compression ("gzip" or "deflate").
+	 * @param logFilename
+	 *            The name of the log file.
+	 * @throws IOException
+	 *             Thrown if compression fails.
+	 */
+	private static void compressMain(String compressionS, String logFilename) throws IOException {
+		LogCompression compression = null;
+		try {compression = LogCompression.valueOf(compressionS.toUpperCase());}
+		catch (IllegalArgumentException e) {}
+		if (compression == null || compression == LogCompression.NONE) {
+			err.println("The compression should be either gzip or deflate.");
+			exit(1);
+		}
+		if (!exists(logFilename)) {
+			err.println("No segments exist in " + getDirectory(logFilename));
+			exit(1);
+		}
+		int compressed = new SegmentedLog(logFilename).compressClosedSegments(compression);
+		out.println("Compressed " + compressed + " segment(s).");
+	}
+}